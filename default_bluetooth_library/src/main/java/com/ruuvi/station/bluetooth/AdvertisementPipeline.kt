@@ -0,0 +1,128 @@
+package com.ruuvi.station.bluetooth
+
+import com.ruuvi.station.bluetooth.decoder.LeScanResult
+import com.ruuvi.station.bluetooth.util.Clock
+import com.ruuvi.station.bluetooth.util.SystemClockTime
+import com.ruuvi.station.bluetooth.util.TraceEvent
+import com.ruuvi.station.bluetooth.util.TraceLog
+import com.ruuvi.station.bluetooth.util.extensions.macToLong
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Everything between the radio and the tag listener: allowlist check, decoding, duplicate
+ * suppression by measurement sequence number and delivery, with [ScanMetrics] for each step.
+ * Uses no Android API, so with [com.ruuvi.station.bluetooth.util.NanoTimeClock] and an
+ * [InMemoryRegistry] it runs on a plain JVM.
+ */
+class AdvertisementPipeline(
+    private val registry: Registry,
+    private val filterPolicy: ScanFilterPolicy = ScanFilterPolicy(),
+    val metrics: ScanMetrics = ScanMetrics(),
+    private val clock: Clock = SystemClockTime
+) {
+    /**
+     * What the pipeline knows about tags between advertisements.
+     */
+    interface Registry {
+        /**
+         * Whether the library holds a GATT connection to [address], which makes the tag
+         * connectable even when its advertisement says otherwise.
+         */
+        fun isConnected(address: String): Boolean
+
+        fun onConnectable(result: LeScanResult)
+
+        fun lastSequenceNumber(id: String): Int?
+
+        fun onMeasurementDelivered(id: String, sequenceNumber: Int)
+    }
+
+    /**
+     * Registry without connections, for replaying captures.
+     */
+    class InMemoryRegistry : Registry {
+        private val sequenceNumbers = ConcurrentHashMap<String, Int>()
+
+        override fun isConnected(address: String): Boolean = false
+
+        override fun onConnectable(result: LeScanResult) {}
+
+        override fun lastSequenceNumber(id: String): Int? = sequenceNumbers[id]
+
+        override fun onMeasurementDelivered(id: String, sequenceNumber: Int) {
+            sequenceNumbers[id] = sequenceNumber
+        }
+    }
+
+    fun process(advertisement: Advertisement, listener: IRuuviTagScanner.OnTagFoundListener?) {
+        val address = advertisement.address
+        TraceLog.record(TraceEvent.SCAN_RESULT, address.macToLong(), advertisement.rssi.toLong(), advertisement.timestampNanos)
+        if (!filterPolicy.accept(address, advertisement.payload)) return
+        metrics.count(ScanCounter.RECEIVED, address)
+        metrics.record(ScanLatency.RADIO_TO_CALLBACK, clock.elapsedRealtimeNanos() - advertisement.timestampNanos, address)
+        val leresult = LeScanResult()
+        leresult.device = advertisement.device
+        leresult.address = address
+        leresult.rssi = advertisement.rssi
+        leresult.scanData = advertisement.payload
+        leresult.timestampNanos = advertisement.timestampNanos
+        val decodeStarted = System.nanoTime()
+        val parsed = leresult.parse()
+        metrics.record(ScanLatency.DECODE, System.nanoTime() - decodeStarted, address)
+        when (leresult.parseStatus) {
+            LeScanResult.ParseStatus.PARSED -> metrics.count(ScanCounter.PARSED, address)
+            LeScanResult.ParseStatus.UNKNOWN_FORMAT -> metrics.count(ScanCounter.UNKNOWN_FORMAT, address)
+            LeScanResult.ParseStatus.FAILED -> metrics.count(ScanCounter.PARSE_FAILED, address)
+            else -> {}
+        }
+        if (parsed != null) {
+            var connectable = advertisement.connectable
+            if (connectable) {
+                registry.onConnectable(leresult)
+            } else if (registry.isConnected(address)) {
+                connectable = true
+            }
+            parsed.connectable = connectable
+            deliver(parsed, listener, advertisement.timestampNanos)
+        }
+    }
+
+    /**
+     * Delivers a decoded reading unless its measurement was already delivered.
+     *
+     * @param receivedAtNanos when the reading was received, in the clock's time base
+     */
+    fun deliver(tag: FoundRuuviTag, listener: IRuuviTagScanner.OnTagFoundListener?, receivedAtNanos: Long) {
+        if (tag.measurementSequenceNumber != null) {
+            val lastSequenceNumber = tag.id?.let { registry.lastSequenceNumber(it) }
+
+            if (lastSequenceNumber == null || tag.measurementSequenceNumber != lastSequenceNumber) {
+                notifyListener(tag, listener, receivedAtNanos)
+
+                tag.id?.let {id ->
+                    tag.measurementSequenceNumber?.let { sequenceNumber ->
+                        registry.onMeasurementDelivered(id, sequenceNumber)
+                    }
+                }
+            } else {
+                metrics.count(ScanCounter.DEDUPLICATED, tag.id)
+                TraceLog.record(TraceEvent.MEASUREMENT_SKIPPED, tag.id?.macToLong() ?: -1, lastSequenceNumber.toLong())
+            }
+        } else {
+            notifyListener(tag, listener, receivedAtNanos)
+        }
+    }
+
+    private fun notifyListener(tag: FoundRuuviTag, listener: IRuuviTagScanner.OnTagFoundListener?, receivedAtNanos: Long) {
+        if (listener == null) return
+        val started = System.nanoTime()
+        if (listener is OnTimedTagFoundListener) {
+            listener.onTagFound(tag, receivedAtNanos)
+        } else {
+            listener.onTagFound(tag)
+        }
+        metrics.record(ScanLatency.LISTENER, System.nanoTime() - started, tag.id)
+        metrics.record(ScanLatency.RADIO_TO_LISTENER, clock.elapsedRealtimeNanos() - receivedAtNanos, tag.id)
+        metrics.count(ScanCounter.DELIVERED, tag.id)
+    }
+}
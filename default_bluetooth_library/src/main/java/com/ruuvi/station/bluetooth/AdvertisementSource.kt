@@ -0,0 +1,82 @@
+package com.ruuvi.station.bluetooth
+
+import android.bluetooth.BluetoothDevice
+import com.ruuvi.station.bluetooth.util.Clock
+import com.ruuvi.station.bluetooth.util.SystemClockTime
+
+/**
+ * One received advertisement, whether from the radio or a replayed capture.
+ *
+ * @param timestampNanos when it was received, in the time base of the source's [AdvertisementSource.clock]
+ * @param connectable whether the advertisement carries a device name, which Ruuvi tags only
+ * send while they accept connections
+ * @param device the Android device, null for replayed advertisements
+ */
+class Advertisement(
+    val address: String,
+    val rssi: Int,
+    val payload: ByteArray?,
+    val timestampNanos: Long,
+    val connectable: Boolean,
+    val device: BluetoothDevice? = null
+) {
+    companion object {
+        private const val SHORTENED_LOCAL_NAME = 0x08
+        private const val COMPLETE_LOCAL_NAME = 0x09
+
+        /**
+         * Whether the raw advertisement data contains a local name AD structure.
+         */
+        fun hasLocalName(payload: ByteArray?): Boolean {
+            if (payload == null) return false
+            var offset = 0
+            while (offset < payload.size) {
+                val length = payload[offset].toInt() and 0xFF
+                if (length == 0 || offset + length >= payload.size) return false
+                val type = payload[offset + 1].toInt() and 0xFF
+                if (type == SHORTENED_LOCAL_NAME || type == COMPLETE_LOCAL_NAME) return true
+                offset += length + 1
+            }
+            return false
+        }
+    }
+}
+
+interface AdvertisementSink {
+    fun onAdvertisement(advertisement: Advertisement)
+
+    /**
+     * The source stopped delivering, e.g. the Android scan failed with [errorCode].
+     */
+    fun onSourceFailed(errorCode: Int)
+
+    /**
+     * A finite source, such as a replay, delivered everything.
+     */
+    fun onSourceFinished() {}
+}
+
+/**
+ * Where [RuuviTagScanner] gets advertisements from: the Android scanner by default, or a
+ * replayed capture so everything after the radio runs without a device.
+ */
+interface AdvertisementSource {
+    /**
+     * Time base of the advertisement timestamps, which the scanner's pipeline and scan session
+     * use too.
+     */
+    val clock: Clock
+        get() = SystemClockTime
+
+    /**
+     * Whether [start] can succeed right now.
+     */
+    fun isAvailable(): Boolean
+
+    /**
+     * @return false when the source can't start
+     */
+    fun start(sink: AdvertisementSink): Boolean
+
+    fun stop()
+}
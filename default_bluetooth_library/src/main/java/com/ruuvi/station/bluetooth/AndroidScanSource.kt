@@ -0,0 +1,126 @@
+package com.ruuvi.station.bluetooth
+
+import android.annotation.SuppressLint
+import android.app.PendingIntent
+import android.bluetooth.BluetoothAdapter
+import android.bluetooth.BluetoothManager
+import android.bluetooth.le.*
+import android.content.Context
+import android.os.Build
+import androidx.annotation.RequiresApi
+import timber.log.Timber
+
+/**
+ * Advertisements from the Android BLE scanner, limited by the filters [filters] returns when a
+ * scan starts.
+ */
+class AndroidScanSource(
+    private val context: Context,
+    private val filters: () -> List<ScanFilter>
+) : AdvertisementSource {
+    private val bluetoothPermissionInteractor = BluetoothPermissionsInteractor(context)
+
+    private var bluetoothAdapter: BluetoothAdapter? = null
+    private var scanner: BluetoothLeScanner? = null
+    @Volatile
+    private var sink: AdvertisementSink? = null
+
+    private val scanSettings: ScanSettings
+        get() = ScanSettings.Builder()
+                .setReportDelay(0)
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .build()
+
+    private val scanCallback = object : ScanCallback() {
+        override fun onScanResult(callbackType: Int, result: ScanResult?) {
+            super.onScanResult(callbackType, result)
+            result?.let { sink?.onAdvertisement(toAdvertisement(it)) }
+        }
+
+        override fun onScanFailed(errorCode: Int) {
+            Timber.d("onScanFailed error code = $errorCode")
+            super.onScanFailed(errorCode)
+            sink?.onSourceFailed(errorCode)
+        }
+    }
+
+    init {
+        initScanner()
+    }
+
+    private fun initScanner() {
+        Timber.d("Trying to initialize bluetooth adapter")
+        val bluetoothManager = context.getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager
+        bluetoothAdapter = bluetoothManager.adapter
+        scanner = bluetoothAdapter?.bluetoothLeScanner
+    }
+
+    /**
+     * Whether the adapter is on and the scan permissions are granted.
+     */
+    @SuppressLint("MissingPermission")
+    fun canScan(): Boolean =
+        bluetoothAdapter != null &&
+            scanner != null &&
+            bluetoothPermissionInteractor.requiredPermissionsGranted() &&
+            bluetoothAdapter?.state == BluetoothAdapter.STATE_ON
+
+    override fun isAvailable(): Boolean {
+        if (!canScan()) initScanner()
+        return canScan()
+    }
+
+    @SuppressLint("MissingPermission")
+    override fun start(sink: AdvertisementSink): Boolean {
+        if (!isAvailable()) return false
+        this.sink = sink
+        Timber.d("startScan")
+        scanner?.startScan(filters(), scanSettings, scanCallback)
+        return true
+    }
+
+    @SuppressLint("MissingPermission")
+    override fun stop() {
+        if (!canScan()) return
+        Timber.d("stopScan")
+        scanner?.stopScan(scanCallback)
+    }
+
+    /**
+     * Lets the system scan with the current filters while the app is idle and deliver batched
+     * results to [pendingIntent]. Batching needs controller support, otherwise each result is
+     * delivered separately.
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    @SuppressLint("MissingPermission")
+    fun startPendingIntentScan(pendingIntent: PendingIntent, reportDelayMillis: Long): Boolean {
+        if (!canScan()) return false
+        val batching = bluetoothAdapter?.isOffloadedScanBatchingSupported == true
+        val settings = ScanSettings.Builder()
+            .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+            .setReportDelay(if (batching) reportDelayMillis else 0)
+            .build()
+        val result = scanner?.startScan(filters(), settings, pendingIntent)
+        Timber.d("startPendingIntentScan batching = $batching result = $result")
+        return result == 0
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    @SuppressLint("MissingPermission")
+    fun stopPendingIntentScan(pendingIntent: PendingIntent) {
+        if (!canScan()) return
+        Timber.d("stopPendingIntentScan")
+        scanner?.stopScan(pendingIntent)
+    }
+
+    companion object {
+        fun toAdvertisement(result: ScanResult) = Advertisement(
+            address = result.device.address,
+            rssi = result.rssi,
+            payload = result.scanRecord?.bytes,
+            timestampNanos = result.timestampNanos,
+            connectable = result.scanRecord?.deviceName != null,
+            device = result.device
+        )
+    }
+}
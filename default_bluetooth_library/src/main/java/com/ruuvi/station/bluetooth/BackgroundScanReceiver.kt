@@ -0,0 +1,51 @@
+package com.ruuvi.station.bluetooth
+
+import android.app.PendingIntent
+import android.bluetooth.le.BluetoothLeScanner
+import android.bluetooth.le.ScanResult
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.os.Build
+import timber.log.Timber
+
+/**
+ * Receives the results of the system-held background scan started with
+ * [BluetoothInteractor.startPendingIntentScanning] and passes them through the regular decoder.
+ */
+class BackgroundScanReceiver : BroadcastReceiver() {
+    override fun onReceive(context: Context, intent: Intent) {
+        val errorCode = intent.getIntExtra(BluetoothLeScanner.EXTRA_ERROR_CODE, NO_ERROR)
+        if (errorCode != NO_ERROR) {
+            Timber.d("BackgroundScanReceiver scan failed error code = $errorCode")
+            return
+        }
+        val results = extractResults(intent)
+        Timber.d("BackgroundScanReceiver.onReceive ${results.size} results")
+        if (results.isEmpty()) return
+        if (BluetoothLibrary.isInitialized) {
+            BluetoothLibrary.bluetoothInteractor.onPendingIntentScanResults(results)
+        } else {
+            Timber.d("BackgroundScanReceiver: library not initialized, results dropped")
+        }
+    }
+
+    companion object {
+        private const val REQUEST_CODE = 1001
+        private const val NO_ERROR = 0
+
+        fun extractResults(intent: Intent): List<ScanResult> {
+            return intent.getParcelableArrayListExtra<ScanResult>(BluetoothLeScanner.EXTRA_LIST_SCAN_RESULT)
+                ?: emptyList()
+        }
+
+        /**
+         * Mutable because the system adds the results to it.
+         */
+        fun createPendingIntent(context: Context): PendingIntent {
+            val intent = Intent(context, BackgroundScanReceiver::class.java)
+            val mutable = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) PendingIntent.FLAG_MUTABLE else 0
+            return PendingIntent.getBroadcast(context, REQUEST_CODE, intent, PendingIntent.FLAG_UPDATE_CURRENT or mutable)
+        }
+    }
+}
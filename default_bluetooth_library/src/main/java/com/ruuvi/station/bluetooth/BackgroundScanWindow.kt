@@ -0,0 +1,104 @@
+package com.ruuvi.station.bluetooth
+
+/**
+ * Result of one background scan window.
+ *
+ * @param completedEarly true when every expected tag reported before the maximum time
+ * @param missedTags expected tags that did not report during the window
+ */
+data class ScanWindowStatistics(
+    val startedAt: Long,
+    val durationMillis: Long,
+    val maxDurationMillis: Long,
+    val expectedTags: Int,
+    val reportedTags: Int,
+    val completedEarly: Boolean,
+    val missedTags: Set<String>,
+    val coalescedReadings: Int
+)
+
+interface OnTagBatchFoundListener {
+    /**
+     * Latest reading of every tag seen during a background scan window, called once when the
+     * window ends.
+     */
+    fun onTagsFound(tags: List<FoundRuuviTag>)
+}
+
+/**
+ * One background scan window that can end before its maximum time, as soon as every tag in
+ * [expectedTags] has delivered a measurement. With no expected tags it always runs to the end.
+ *
+ * When [coalesce] is set readings are held back, keeping only the latest one per tag, and
+ * handed to [onFinished] together when the window ends.
+ */
+class BackgroundScanWindow(
+    private val expectedTags: Set<String>,
+    private val maxDurationMillis: Long,
+    private val coalesce: Boolean,
+    private val onFinished: (ScanWindowStatistics, List<FoundRuuviTag>) -> Unit
+) {
+    private val startedAt = System.currentTimeMillis()
+    private val startedAtElapsed = System.nanoTime()
+    private val missing = HashSet(expectedTags)
+    private val latest = LinkedHashMap<String, FoundRuuviTag>()
+    private var coalescedReadings = 0
+    private var finished = false
+
+    val isFinished: Boolean
+        @Synchronized get() = finished
+
+    /**
+     * @return true when the reading was held back for the batch, false when it should be
+     * delivered right away
+     */
+    fun onTagFound(tag: FoundRuuviTag): Boolean {
+        val complete: Boolean
+        val held = synchronized(this) {
+            if (finished) return false
+            val id = tag.id
+            complete = id != null && missing.remove(id) && missing.isEmpty()
+            if (coalesce && id != null) {
+                latest[id] = tag
+                coalescedReadings++
+                true
+            } else {
+                false
+            }
+        }
+        if (complete) finish(true)
+        return held
+    }
+
+    /**
+     * Ends the window because its maximum time elapsed or scanning stopped.
+     */
+    fun timeout() {
+        finish(false)
+    }
+
+    private fun finish(completedEarly: Boolean) {
+        val missed: Set<String>
+        val batch: List<FoundRuuviTag>
+        synchronized(this) {
+            if (finished) return
+            finished = true
+            missed = HashSet(missing)
+            batch = latest.values.toList()
+            latest.clear()
+        }
+        onFinished(
+            ScanWindowStatistics(
+                startedAt = startedAt,
+                durationMillis = (System.nanoTime() - startedAtElapsed) / 1000000,
+                maxDurationMillis = maxDurationMillis,
+                expectedTags = expectedTags.size,
+                reportedTags = expectedTags.size - missed.size,
+                completedEarly = completedEarly,
+                missedTags = missed,
+                coalescedReadings = coalescedReadings
+            ),
+            batch
+        )
+    }
+}
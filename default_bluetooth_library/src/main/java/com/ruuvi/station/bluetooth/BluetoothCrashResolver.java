@@ -11,17 +11,30 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.SystemClock;
 
+import com.ruuvi.station.bluetooth.util.HyperLogLog;
+import com.ruuvi.station.bluetooth.util.LibraryScheduler;
+import com.ruuvi.station.bluetooth.util.LongHashSet;
+import com.ruuvi.station.bluetooth.util.ScheduledTask;
+import com.ruuvi.station.bluetooth.util.TaskScheduler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import kotlin.Unit;
 import timber.log.Timber;
 
+import static com.ruuvi.station.bluetooth.util.extensions.MacAddressKt.macToLong;
+
 /**
  *
  * This class provides relief for Android Bug 67272.  This bug in the Bluedroid stack causes crashes
@@ -46,9 +59,50 @@ public class BluetoothCrashResolver {
     /**
      * This is not the same file that Bluedroid uses.  This is just to maintain state of this module.
      */
-    private static final String DISTINCT_BLUETOOTH_ADDRESSES_FILE = "BluetoothCrashResolverState.txt";
-    private boolean recoveryInProgress = false;
+    private static final String DISTINCT_BLUETOOTH_ADDRESSES_FILE = "BluetoothCrashResolverState.bin";
+    /**
+     * Text format written by earlier versions, migrated on first load.
+     */
+    private static final String LEGACY_DISTINCT_BLUETOOTH_ADDRESSES_FILE = "BluetoothCrashResolverState.txt";
+    private static final int STATE_FILE_VERSION = 2;
+    /**
+     * Version, crash detection time, crash and recovery counts, recovery result and address mode.
+     */
+    private static final int STATE_HEADER_BYTES = 4 + 8 + 4 + 4 + 1 + 1;
+    private static final byte ADDRESS_MODE_EXACT = 0;
+    private static final byte ADDRESS_MODE_ESTIMATE = 1;
+    /**
+     * Bluedroid crashes well before this many addresses, so a larger file is corrupt.
+     */
+    private static final int MAX_PERSISTED_ADDRESSES = 4096;
+    private static final int RECENT_ADDRESS_SLOTS = 256;
+    private static final long NO_ADDRESS = -1L;
+    /**
+     * Steps of a recovery: discovery is started so Bluedroid pares its address list, left
+     * running for {@link #TIME_TO_LET_DISCOVERY_RUN_MILLIS}, then cancelled.
+     */
+    private enum RecoveryState {
+        IDLE,
+        DISCOVERING,
+        CANCELLING
+    }
+
+    private final Object recoveryLock = new Object();
+    private final TaskScheduler scheduler;
+    private volatile RecoveryState recoveryState = RecoveryState.IDLE;
+    /**
+     * Set from when a recovery is posted to the scheduler until it runs, so a burst of scanned
+     * devices posts only one.
+     */
+    private final AtomicBoolean recoveryScheduled = new AtomicBoolean(false);
+    private boolean started = false;
     private boolean discoveryStartConfirmed = false;
+    private long recoveryStartTime = 0L;
+    private ScheduledTask recoveryTimer;
+    private int succeededRecoveryCount = 0;
+    private int failedRecoveryCount = 0;
+    private long lastRecoveryDurationMillis = 0L;
+    private long totalRecoveryDurationMillis = 0L;
 
     private long lastBluetoothOffTime = 0L;
     private long lastBluetoothTurningOnTime = 0L;
@@ -61,7 +115,21 @@ public class BluetoothCrashResolver {
 
     private Context context = null;
     private UpdateNotifier updateNotifier;
-    private final Set<String> distinctBluetoothAddresses = new HashSet<String>();
+    private final LongHashSet distinctBluetoothAddresses = new LongHashSet(BLUEDROID_MAX_BLUETOOTH_MAC_COUNT);
+    /**
+     * Replaces {@link #distinctBluetoothAddresses} when distinct addresses are only estimated,
+     * guarded by the same lock.
+     */
+    private final HyperLogLog distinctAddressEstimate;
+    /**
+     * Addresses counted since the last recovery, one per slot chosen by the low address bits, so
+     * a device seen again is recognized without taking the lock.  A slot taken by another
+     * address only costs a locked lookup.
+     */
+    private final AtomicLongArray recentAddresses = new AtomicLongArray(RECENT_ADDRESS_SLOTS);
+    private int estimatedAddressCount = 0;
+    private long lastLoadDurationNanos = 0L;
+    private volatile long lastSaveDurationNanos = 0L;
     /**
      // It is very likely a crash if Bluetooth turns off and comes
      // back on in an extremely short interval.  Testing on a Nexus 4 shows
@@ -93,6 +161,11 @@ public class BluetoothCrashResolver {
      * sure.
      */
     private static final int TIME_TO_LET_DISCOVERY_RUN_MILLIS = 5000;  /* if 0, it means forever */
+    /**
+     * A cancelled discovery that doesn't report ACTION_DISCOVERY_FINISHED within this time ends
+     * the recovery as failed.
+     */
+    private static final long DISCOVERY_CANCEL_TIMEOUT_MILLIS = 5000L;
 
     /**
      * Constructor should be called only once per long-running process that does Bluetooth LE
@@ -101,7 +174,26 @@ public class BluetoothCrashResolver {
      * @param context the Activity or Service that is doing the Bluetooth scanning
      */
     public BluetoothCrashResolver(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param estimateDistinctAddresses estimate the number of distinct devices in 4 KB instead
+     *                                  of remembering every address, for places full of devices
+     *                                  with randomized addresses
+     */
+    public BluetoothCrashResolver(Context context, boolean estimateDistinctAddresses) {
+        this(context, estimateDistinctAddresses, LibraryScheduler.INSTANCE);
+    }
+
+    /**
+     * @param scheduler runs the recovery steps and state saves, never the caller's thread
+     */
+    public BluetoothCrashResolver(Context context, boolean estimateDistinctAddresses, TaskScheduler scheduler) {
         this.context = context.getApplicationContext();
+        this.distinctAddressEstimate = estimateDistinctAddresses ? new HyperLogLog() : null;
+        this.scheduler = scheduler;
+        clearRecentAddresses();
         loadState();
     }
 
@@ -110,7 +202,9 @@ public class BluetoothCrashResolver {
      * crashes from happening.  Proactive steps require calls to notifyScannedDevice(Device device)
      * so that crashes can be predicted ahead of time.
      */
-    public void start() {
+    public synchronized void start() {
+        if (started) return;
+        started = true;
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
         filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
@@ -121,10 +215,12 @@ public class BluetoothCrashResolver {
     }
 
     /**
-     * Stops looking for crashes.  Does not need to be called in normal operations, but may be
-     * useful for testing.
+     * Stops looking for crashes and writes the state.  Call when scanning is torn down, so the
+     * receiver registered in {@link #start()} doesn't leak.
      */
-    public void stop() {
+    public synchronized void stop() {
+        if (!started) return;
+        started = false;
         context.unregisterReceiver(receiver);
         Timber.d( "stopped listening for BluetoothAdapter events");
         saveState();
@@ -174,26 +270,44 @@ public class BluetoothCrashResolver {
      */
     @TargetApi(18)
     public void notifyScannedDevice(BluetoothDevice device, BluetoothAdapter.LeScanCallback scanner) {
-        int oldSize, newSize;
-
-        oldSize = distinctBluetoothAddresses.size();
+        notifyScannedDevice(device);
+    }
 
+    /**
+     * Same as {@link #notifyScannedDevice(BluetoothDevice, BluetoothAdapter.LeScanCallback)}, for
+     * ScanCallback based scanners. Never blocks, a recovery runs on the scheduler.
+     */
+    public void notifyScannedDevice(BluetoothDevice device) {
+        long address = macToLong(device.getAddress());
+        if (address < 0) return;
+        int slot = recentAddressSlot(address);
+        if (recentAddresses.get(slot) == address) return;
+
+        boolean added;
+        int newSize;
         synchronized(distinctBluetoothAddresses) {
-            distinctBluetoothAddresses.add(device.getAddress());
+            if (distinctAddressEstimate != null) {
+                // Estimating walks all registers, so only when one of them changed
+                added = distinctAddressEstimate.add(address);
+                if (added) estimatedAddressCount = distinctAddressEstimate.estimate();
+                newSize = estimatedAddressCount;
+            } else {
+                added = distinctBluetoothAddresses.add(address);
+                newSize = distinctBluetoothAddresses.size();
+            }
+            recentAddresses.set(slot, address);
         }
 
-        newSize = distinctBluetoothAddresses.size();
-        if (oldSize != newSize && newSize % 100 == 0) {
-            Timber.d( "Distinct Bluetooth devices seen: %s", distinctBluetoothAddresses.size());
+        if (added && newSize % 100 == 0) {
+            Timber.d( "Distinct Bluetooth devices seen: %s", newSize);
         }
-        if (distinctBluetoothAddresses.size()  > getCrashRiskDeviceCount()) {
-            if (PREEMPTIVE_ACTION_ENABLED && !recoveryInProgress) {
+        if (newSize > getCrashRiskDeviceCount()) {
+            if (PREEMPTIVE_ACTION_ENABLED && !isRecoveryInProgress()) {
                 Timber.w( "Large number of Bluetooth devices detected: %s Proactively attempting to clear out address list to prevent a crash",
-                        distinctBluetoothAddresses.size());
+                        newSize);
                 Timber.w( "Stopping LE Scan");
                 //BluetoothAdapter.getDefaultAdapter().stopLeScan(scanner);
-                startRecovery();
-                processStateChange();
+                scheduleRecovery();
             }
         }
     }
@@ -204,20 +318,21 @@ public class BluetoothCrashResolver {
             return;
         }
         Timber.w( "BluetoothService crash detected");
-        if (distinctBluetoothAddresses.size() > 0) {
+        int distinctAddressCount = getDistinctAddressCount();
+        if (distinctAddressCount > 0) {
             Timber.d( "Distinct Bluetooth devices seen at crash: %s",
-                    distinctBluetoothAddresses.size());
+                    distinctAddressCount);
         }
         lastBluetoothCrashDetectionTime = SystemClock.elapsedRealtime();
         detectedCrashCount++;
 
-        if (recoveryInProgress) {
+        if (isRecoveryInProgress()) {
             Timber.d( "Ignoring Bluetooth crash because recovery is already in progress.");
+            processStateChange();
         }
         else {
-            startRecovery();
+            scheduleRecovery();
         }
-        processStateChange();
 
     }
 
@@ -233,7 +348,44 @@ public class BluetoothCrashResolver {
     public boolean isLastRecoverySucceeded() {
         return lastRecoverySucceeded;
     }
-    public boolean isRecoveryInProgress() { return recoveryInProgress; }
+    public boolean isRecoveryInProgress() { return recoveryState != RecoveryState.IDLE; }
+    public int getSucceededRecoveryCount() {
+        synchronized (recoveryLock) {
+            return succeededRecoveryCount;
+        }
+    }
+    public int getFailedRecoveryCount() {
+        synchronized (recoveryLock) {
+            return failedRecoveryCount;
+        }
+    }
+    public long getLastRecoveryDurationMillis() {
+        synchronized (recoveryLock) {
+            return lastRecoveryDurationMillis;
+        }
+    }
+    public long getTotalRecoveryDurationMillis() {
+        synchronized (recoveryLock) {
+            return totalRecoveryDurationMillis;
+        }
+    }
+    /**
+     * @return distinct devices seen since the last recovery, estimated if so constructed
+     */
+    public int getDistinctAddressCount() {
+        synchronized (distinctBluetoothAddresses) {
+            return distinctAddressEstimate != null ? estimatedAddressCount : distinctBluetoothAddresses.size();
+        }
+    }
+    public boolean isEstimatingDistinctAddresses() {
+        return distinctAddressEstimate != null;
+    }
+    public long getLastLoadDurationNanos() {
+        return lastLoadDurationNanos;
+    }
+    public long getLastSaveDurationNanos() {
+        return lastSaveDurationNanos;
+    }
 
     public interface UpdateNotifier {
         void dataUpdated();
@@ -247,8 +399,7 @@ public class BluetoothCrashResolver {
      Used to force a recovery operation
      */
     public void forceFlush() {
-        startRecovery();
-        processStateChange();
+        scheduleRecovery();
     }
 
     private int getCrashRiskDeviceCount() {
@@ -269,140 +420,298 @@ public class BluetoothCrashResolver {
         }
     }
 
+    /**
+     * Runs the recovery on the scheduler, so scan callbacks and broadcasts never wait for the
+     * adapter.
+     */
+    private void scheduleRecovery() {
+        if (!recoveryScheduled.compareAndSet(false, true)) return;
+        scheduler.schedule(0L, () -> {
+            recoveryScheduled.set(false);
+            startRecovery();
+            processStateChange();
+            return Unit.INSTANCE;
+        });
+    }
+
     @SuppressLint("MissingPermission")
     @TargetApi(17)
     private void startRecovery() {
         // The discovery operation will start by clearing out the Bluetooth mac list to only the 256
         // most recently seen BLE mac addresses.
-        recoveryAttemptCount++;
-        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-        Timber.d( "about to check if discovery is active");
-        if (!adapter.isDiscovering()) {
+        boolean failed = false;
+        synchronized (recoveryLock) {
+            if (recoveryState != RecoveryState.IDLE) {
+                Timber.d( "Recovery already in progress");
+                return;
+            }
+            recoveryAttemptCount++;
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            Timber.d( "about to check if discovery is active");
+            if (adapter == null || adapter.isDiscovering()) {
+                Timber.w( "Already discovering.  Recovery attempt abandoned.");
+                return;
+            }
             Timber.w( "Recovery attempt started");
-            recoveryInProgress = true;
+            recoveryState = RecoveryState.DISCOVERING;
+            recoveryStartTime = SystemClock.elapsedRealtime();
             discoveryStartConfirmed = false;
             Timber.d( "about to command discovery");
             if (!adapter.startDiscovery()) {
                 Timber.w( "Can't start discovery.  Is Bluetooth turned on?");
+                failed = true;
             }
-            Timber.d( "startDiscovery commanded.  isDiscovering()=%s", adapter.isDiscovering());
-            // We don't actually need to do a discovery -- we just need to kick one off so the
-            // mac list will be pared back to 256.  Because discovery is an expensive operation in
-            // terms of battery, we will cancel it.
-            if (TIME_TO_LET_DISCOVERY_RUN_MILLIS > 0 ) {
+            else if (TIME_TO_LET_DISCOVERY_RUN_MILLIS > 0) {
+                // We don't actually need to do a discovery -- we just need to kick one off so the
+                // mac list will be pared back to 256.  Because discovery is an expensive operation in
+                // terms of battery, we will cancel it.
                 Timber.d( "We will be cancelling this discovery in %s milliseconds.", TIME_TO_LET_DISCOVERY_RUN_MILLIS);
-                cancelDiscovery();
+                recoveryTimer = scheduler.schedule(TIME_TO_LET_DISCOVERY_RUN_MILLIS, () -> {
+                    cancelDiscovery();
+                    return Unit.INSTANCE;
+                });
             }
             else {
                 Timber.d( "We will let this discovery run its course.");
             }
         }
-        else {
-            Timber.w( "Already discovering.  Recovery attempt abandoned.");
-        }
-
+        if (failed) finishRecovery(false);
     }
-    private void finishRecovery() {
-        Timber.w( "Recovery attempt finished");
+
+    private void finishRecovery(boolean succeeded) {
+        synchronized (recoveryLock) {
+            if (recoveryState == RecoveryState.IDLE) return;
+            if (recoveryTimer != null) {
+                recoveryTimer.cancel();
+                recoveryTimer = null;
+            }
+            lastRecoveryDurationMillis = SystemClock.elapsedRealtime() - recoveryStartTime;
+            totalRecoveryDurationMillis += lastRecoveryDurationMillis;
+            if (succeeded) succeededRecoveryCount++; else failedRecoveryCount++;
+            lastRecoverySucceeded = succeeded;
+            recoveryState = RecoveryState.IDLE;
+        }
+        Timber.w( "Recovery attempt finished in %s ms, succeeded=%s", lastRecoveryDurationMillis, succeeded);
         synchronized(distinctBluetoothAddresses) {
             distinctBluetoothAddresses.clear();
+            clearRecentAddresses();
+            if (distinctAddressEstimate != null) {
+                distinctAddressEstimate.clear();
+                estimatedAddressCount = 0;
+            }
         }
-        recoveryInProgress = false;
+        processStateChange();
     }
 
     private final BroadcastReceiver receiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
+            onAdapterEvent(intent);
+        }
+    };
 
-            if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)) {
-                if (recoveryInProgress) {
-                    Timber.d( "Bluetooth discovery finished");
-                    finishRecovery();
-                }
-                else {
-                    Timber.d( "Bluetooth discovery finished (external)");
-                }
+    /**
+     * Handles a BluetoothAdapter broadcast; the receiver registered in {@link #start()} calls
+     * this, and so can code that simulates the adapter.
+     */
+    void onAdapterEvent(Intent intent) {
+        String action = intent.getAction();
+        if (action == null) return;
+
+        if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)) {
+            if (isRecoveryInProgress()) {
+                Timber.d( "Bluetooth discovery finished");
+                finishRecovery(true);
             }
-            if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_STARTED)) {
-                if (recoveryInProgress) {
-                    discoveryStartConfirmed = true;
-                    Timber.d( "Bluetooth discovery started");
-                }
-                else {
-                    Timber.d( "Bluetooth discovery started (external)");
-                }
+            else {
+                Timber.d( "Bluetooth discovery finished (external)");
             }
+        }
+        if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_STARTED)) {
+            boolean ours;
+            synchronized (recoveryLock) {
+                ours = recoveryState == RecoveryState.DISCOVERING;
+                if (ours) discoveryStartConfirmed = true;
+            }
+            if (ours) {
+                Timber.d( "Bluetooth discovery started");
+            }
+            else {
+                Timber.d( "Bluetooth discovery started (external)");
+            }
+        }
 
-            if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
-                final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
-                        BluetoothAdapter.ERROR);
-                switch (state) {
-                    case BluetoothAdapter.ERROR:
-                        Timber.d( "Bluetooth state is ERROR");
-                        break;
-                    case BluetoothAdapter.STATE_OFF:
-                        Timber.d( "Bluetooth state is OFF");
-                        lastBluetoothOffTime = SystemClock.elapsedRealtime();
-                        break;
-                    case BluetoothAdapter.STATE_TURNING_OFF:
-                        break;
-                    case BluetoothAdapter.STATE_ON:
-                        Timber.d( "Bluetooth state is ON");
-                        Timber.d( "Bluetooth was turned off for %s milliseconds", lastBluetoothTurningOnTime - lastBluetoothOffTime);
-                        if (lastBluetoothTurningOnTime - lastBluetoothOffTime < SUSPICIOUSLY_SHORT_BLUETOOTH_OFF_INTERVAL_MILLIS) {
-                            crashDetected();
-                        }
-                        break;
-                    case BluetoothAdapter.STATE_TURNING_ON:
-                        lastBluetoothTurningOnTime = SystemClock.elapsedRealtime();
-                        Timber.d( "Bluetooth state is TURNING_ON");
-                        break;
-                }
+        if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
+            final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
+                    BluetoothAdapter.ERROR);
+            switch (state) {
+                case BluetoothAdapter.ERROR:
+                    Timber.d( "Bluetooth state is ERROR");
+                    break;
+                case BluetoothAdapter.STATE_OFF:
+                    Timber.d( "Bluetooth state is OFF");
+                    lastBluetoothOffTime = SystemClock.elapsedRealtime();
+                    break;
+                case BluetoothAdapter.STATE_TURNING_OFF:
+                    break;
+                case BluetoothAdapter.STATE_ON:
+                    Timber.d( "Bluetooth state is ON");
+                    Timber.d( "Bluetooth was turned off for %s milliseconds", lastBluetoothTurningOnTime - lastBluetoothOffTime);
+                    if (lastBluetoothTurningOnTime - lastBluetoothOffTime < SUSPICIOUSLY_SHORT_BLUETOOTH_OFF_INTERVAL_MILLIS) {
+                        crashDetected();
+                    }
+                    break;
+                case BluetoothAdapter.STATE_TURNING_ON:
+                    lastBluetoothTurningOnTime = SystemClock.elapsedRealtime();
+                    Timber.d( "Bluetooth state is TURNING_ON");
+                    break;
             }
         }
-    };
+    }
 
 
+    /**
+     * Takes a snapshot of the state and writes it on the scheduler, so the scanning thread never
+     * waits for the file system.
+     */
     private void saveState() {
-        FileOutputStream outputStream;
-        OutputStreamWriter writer = null;
         lastStateSaveTime = SystemClock.elapsedRealtime();
+        final long[] addresses;
+        final byte[] registers;
+        synchronized (distinctBluetoothAddresses) {
+            addresses = distinctAddressEstimate == null ? distinctBluetoothAddresses.toArray() : null;
+            registers = distinctAddressEstimate != null ? distinctAddressEstimate.getRegisters() : null;
+        }
+        final long crashDetectionTime = lastBluetoothCrashDetectionTime;
+        final int crashCount = detectedCrashCount;
+        final int recoveryCount = recoveryAttemptCount;
+        final boolean recoverySucceeded = lastRecoverySucceeded;
+        scheduler.schedule(0L, () -> {
+            writeState(crashDetectionTime, crashCount, recoveryCount, recoverySucceeded, addresses, registers);
+            return Unit.INSTANCE;
+        });
+    }
 
+    /**
+     * Writes either the exact addresses or, in constant size, the estimator registers.
+     */
+    private synchronized void writeState(long crashDetectionTime, int crashCount, int recoveryCount,
+                                         boolean recoverySucceeded, long[] addresses, byte[] registers) {
+        long start = System.nanoTime();
+        File file = new File(context.getFilesDir(), DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream output = null;
         try {
-            outputStream = context.openFileOutput(DISTINCT_BLUETOOTH_ADDRESSES_FILE, Context.MODE_PRIVATE);
-            writer = new OutputStreamWriter(outputStream);
-            writer.write(lastBluetoothCrashDetectionTime+"\n");
-            writer.write(detectedCrashCount+"\n");
-            writer.write(recoveryAttemptCount+"\n");
-            writer.write(lastRecoverySucceeded ? "1\n" : "0\n");
-            synchronized (distinctBluetoothAddresses) {
-                for (String mac : distinctBluetoothAddresses) {
-                    writer.write(mac);
-                    writer.write("\n");
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            output.writeInt(STATE_FILE_VERSION);
+            output.writeLong(crashDetectionTime);
+            output.writeInt(crashCount);
+            output.writeInt(recoveryCount);
+            output.writeBoolean(recoverySucceeded);
+            if (registers != null) {
+                output.writeByte(ADDRESS_MODE_ESTIMATE);
+                output.write(registers);
+            } else {
+                output.writeByte(ADDRESS_MODE_EXACT);
+                output.writeInt(addresses.length);
+                for (long address : addresses) {
+                    output.writeLong(address);
                 }
             }
+            output.close();
+            output = null;
+            if (!temporary.renameTo(file)) {
+                Timber.w( "Can't replace %s", DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+                return;
+            }
         } catch (IOException e) {
             Timber.w( "Can't write macs to %s", DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+            return;
         }
         finally {
-            if (writer != null) {
+            if (output != null) {
                 try {
-                    writer.close();
+                    output.close();
                 } catch (IOException e1) { }
             }
         }
-        Timber.d( "Wrote %s Bluetooth addresses", distinctBluetoothAddresses.size());
-
+        lastSaveDurationNanos = System.nanoTime() - start;
+        Timber.d( "Wrote Bluetooth crash resolver state in %s us", lastSaveDurationNanos / 1000);
     }
 
     private void loadState() {
-        FileInputStream inputStream;
+        long start = System.nanoTime();
+        File file = new File(context.getFilesDir(), DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+        if (file.exists()) {
+            readState(file);
+        } else {
+            File legacyFile = new File(context.getFilesDir(), LEGACY_DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+            if (legacyFile.exists()) {
+                readLegacyState(legacyFile);
+                saveState();
+                if (!legacyFile.delete()) {
+                    Timber.w( "Can't delete %s", LEGACY_DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+                }
+            }
+        }
+        lastLoadDurationNanos = System.nanoTime() - start;
+        Timber.d( "Read %s Bluetooth addresses in %s us", getDistinctAddressCount(), lastLoadDurationNanos / 1000);
+    }
+
+    private void readState(File file) {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != STATE_FILE_VERSION) {
+                Timber.w( "Unknown version of %s", DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+                return;
+            }
+            lastBluetoothCrashDetectionTime = input.readLong();
+            detectedCrashCount = input.readInt();
+            recoveryAttemptCount = input.readInt();
+            lastRecoverySucceeded = input.readBoolean();
+            byte mode = input.readByte();
+            if (mode == ADDRESS_MODE_ESTIMATE) {
+                byte[] registers = new byte[HyperLogLog.REGISTER_COUNT];
+                input.readFully(registers);
+                if (distinctAddressEstimate != null) {
+                    synchronized (distinctBluetoothAddresses) {
+                        distinctAddressEstimate.setRegisters(registers);
+                        updateEstimate();
+                    }
+                }
+                return;
+            }
+            int count = input.readInt();
+            if (count < 0 || count > MAX_PERSISTED_ADDRESSES || file.length() < STATE_HEADER_BYTES + 4 + count * 8L) {
+                Timber.w( "Ignoring %s addresses in %s", count, DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+                return;
+            }
+            synchronized (distinctBluetoothAddresses) {
+                for (int i = 0; i < count; i++) {
+                    addAddress(input.readLong());
+                }
+                updateEstimate();
+            }
+        } catch (IOException e) {
+            Timber.w( "Can't read macs from %s", DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+        } catch (IllegalArgumentException e) {
+            Timber.w( "Can't parse file %s", DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+        }
+        finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e1) { }
+            }
+        }
+    }
+
+    private void readLegacyState(File file) {
         BufferedReader reader = null;
 
         try {
-            inputStream = context.openFileInput(DISTINCT_BLUETOOTH_ADDRESSES_FILE);
-            reader = new BufferedReader(new InputStreamReader(inputStream));
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
             String line;
             line = reader.readLine();
             if (line != null) {
@@ -425,14 +734,19 @@ public class BluetoothCrashResolver {
             }
 
             String mac;
-            while ((mac = reader.readLine()) != null) {
-                distinctBluetoothAddresses.add(mac);
+            int count = 0;
+            synchronized (distinctBluetoothAddresses) {
+                while ((mac = reader.readLine()) != null && count++ < MAX_PERSISTED_ADDRESSES) {
+                    long address = macToLong(mac);
+                    if (address >= 0) addAddress(address);
+                }
+                updateEstimate();
             }
 
         } catch (IOException e) {
-            Timber.w( "Can't read macs from %s", DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+            Timber.w( "Can't read macs from %s", LEGACY_DISTINCT_BLUETOOTH_ADDRESSES_FILE);
         } catch (NumberFormatException e) {
-            Timber.w( "Can't parse file %s", DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+            Timber.w( "Can't parse file %s", LEGACY_DISTINCT_BLUETOOTH_ADDRESSES_FILE);
         }
         finally {
             if (reader != null) {
@@ -441,27 +755,67 @@ public class BluetoothCrashResolver {
                 } catch (IOException e1) { }
             }
         }
-        Timber.d( "Read %s Bluetooth addresses", distinctBluetoothAddresses.size());
+        Timber.d( "Migrated %s Bluetooth addresses from %s", getDistinctAddressCount(), LEGACY_DISTINCT_BLUETOOTH_ADDRESSES_FILE);
+    }
+
+    /**
+     * Adds a restored address to whichever structure is in use, called holding the lock.
+     */
+    private void addAddress(long address) {
+        if (distinctAddressEstimate != null) {
+            distinctAddressEstimate.add(address);
+        } else {
+            distinctBluetoothAddresses.add(address);
+        }
+    }
+
+    private static int recentAddressSlot(long address) {
+        return (int) (address ^ (address >>> 24)) & (RECENT_ADDRESS_SLOTS - 1);
+    }
+
+    private void clearRecentAddresses() {
+        for (int i = 0; i < RECENT_ADDRESS_SLOTS; i++) {
+            recentAddresses.set(i, NO_ADDRESS);
+        }
+    }
+
+    private void updateEstimate() {
+        if (distinctAddressEstimate != null) {
+            estimatedAddressCount = distinctAddressEstimate.estimate();
+        }
     }
 
     @SuppressLint("MissingPermission")
+    /**
+     * Runs on the scheduler once discovery has had {@link #TIME_TO_LET_DISCOVERY_RUN_MILLIS}.
+     */
     private void cancelDiscovery() {
-        try {
-            Thread.sleep(TIME_TO_LET_DISCOVERY_RUN_MILLIS);
-            if (!discoveryStartConfirmed) {
+        boolean finished = false;
+        boolean confirmed;
+        synchronized (recoveryLock) {
+            if (recoveryState != RecoveryState.DISCOVERING) return;
+            recoveryTimer = null;
+            confirmed = discoveryStartConfirmed;
+            if (!confirmed) {
                 Timber.w( "BluetoothAdapter.ACTION_DISCOVERY_STARTED never received.  Recovery may fail.");
             }
 
             final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-            if (adapter.isDiscovering()) {
+            if (adapter != null && adapter.isDiscovering()) {
                 Timber.d( "Cancelling discovery");
+                recoveryState = RecoveryState.CANCELLING;
                 adapter.cancelDiscovery();
+                recoveryTimer = scheduler.schedule(DISCOVERY_CANCEL_TIMEOUT_MILLIS, () -> {
+                    Timber.w( "BluetoothAdapter.ACTION_DISCOVERY_FINISHED never received.");
+                    finishRecovery(false);
+                    return Unit.INSTANCE;
+                });
             }
             else {
                 Timber.d( "Discovery not running.  Won't cancel it");
+                finished = true;
             }
-        } catch (InterruptedException e) {
-            Timber.d( "DiscoveryCanceller sleep interrupted.");
         }
+        if (finished) finishRecovery(confirmed);
     }
-}
\ No newline at end of file
+}
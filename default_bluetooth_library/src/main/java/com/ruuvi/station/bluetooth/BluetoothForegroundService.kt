@@ -16,8 +16,6 @@ import org.kodein.di.KodeinAware
 import org.kodein.di.android.kodein
 import org.kodein.di.generic.instance
 import timber.log.Timber
-import java.util.*
-import kotlin.concurrent.schedule
 
 class BluetoothForegroundService : Service(), KodeinAware {
     override val kodein: Kodein by kodein()
@@ -28,10 +26,7 @@ class BluetoothForegroundService : Service(), KodeinAware {
     private var scanner = object : Runnable {
         override fun run() {
             Timber.d("Start scanning in foreground service")
-            bluetoothInteractor.startScan()
-            Timer(false).schedule(bluetoothInteractor.getWorkTime()) {
-                bluetoothInteractor.stopScanningFromBackground()
-            }
+            bluetoothInteractor.startBackgroundScanWindow()
             val interval = scannerSettings.getBackgroundScanIntervalMilliseconds()
             Timber.d("Scheduling scanning with interval = $interval")
             handler.postDelayed(this, interval)
@@ -73,6 +68,7 @@ class BluetoothForegroundService : Service(), KodeinAware {
     override fun onDestroy() {
         Timber.d("Destroy of foreground service for bluetooth scan")
         handler.removeCallbacks(scanner)
+        bluetoothInteractor.stopBackgroundScanWindow()
         super.onDestroy()
     }
 
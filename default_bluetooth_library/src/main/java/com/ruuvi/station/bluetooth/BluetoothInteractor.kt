@@ -1,23 +1,58 @@
 package com.ruuvi.station.bluetooth
 
 import android.app.Application
+import android.bluetooth.le.ScanResult
 import android.content.Intent
 import android.os.Build
 import androidx.annotation.ChecksSdkIntAtLeast
+import com.ruuvi.station.bluetooth.gatt.ConnectionPoolStatistics
+import com.ruuvi.station.bluetooth.gatt.ConnectionTuningRecord
+import com.ruuvi.station.bluetooth.gatt.GattStatistics
+import com.ruuvi.station.bluetooth.gatt.LogAggregatesListener
+import com.ruuvi.station.bluetooth.gatt.LogSyncOptions
+import com.ruuvi.station.bluetooth.gatt.SyncHistory
+import com.ruuvi.station.bluetooth.gatt.LogSyncMetrics
+import com.ruuvi.station.bluetooth.gatt.StreamingMetrics
+import com.ruuvi.station.bluetooth.storage.AdvertisementCaptureReader
+import com.ruuvi.station.bluetooth.storage.AdvertisementRecorder
 import com.ruuvi.station.bluetooth.util.Foreground
+import com.ruuvi.station.bluetooth.util.LibraryScheduler
+import com.ruuvi.station.bluetooth.util.ScheduledTask
 import com.ruuvi.station.bluetooth.util.ScannerSettings
+import com.ruuvi.station.bluetooth.util.TraceLog
 import timber.log.Timber
+import java.io.File
 import java.util.*
 
 class BluetoothInteractor(
         private val application: Application,
         private val onTagsFoundListener: IRuuviTagScanner.OnTagFoundListener,
-        val settings: ScannerSettings
+        val settings: ScannerSettings,
+        private val onTagBatchFoundListener: OnTagBatchFoundListener? = null
 ) {
     private var isRunningInForeground = false
+    private var backgroundScanStop: ScheduledTask? = null
+    @Volatile
+    private var backgroundScanWindow: BackgroundScanWindow? = null
+    private val backgroundScanStatistics = ArrayDeque<ScanWindowStatistics>()
 
-    private var ruuviRangeNotifier: IRuuviTagScanner =
-        RuuviTagScanner(application, "BluetoothInteractor")
+    private val tagFoundListener = object : OnTimedTagFoundListener {
+        override fun onTagFound(tag: FoundRuuviTag, receivedAtNanos: Long) {
+            if (backgroundScanWindow?.onTagFound(tag) != true) {
+                val listener = onTagsFoundListener
+                if (listener is OnTimedTagFoundListener) {
+                    listener.onTagFound(tag, receivedAtNanos)
+                } else {
+                    listener.onTagFound(tag)
+                }
+            }
+        }
+    }
+
+    private val scannerState = ScannerState(application)
+
+    private var ruuviRangeNotifier: RuuviTagScanner =
+        RuuviTagScanner(application, "BluetoothInteractor", scannerState)
 
     @ChecksSdkIntAtLeast(api = Build.VERSION_CODES.S)
     private val isApi31 = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
@@ -37,6 +72,7 @@ class BluetoothInteractor(
             isRunningInForeground = false
 
             if (settings.allowBackgroundScan()) {
+                if (usePendingIntentScan() && startPendingIntentScanning()) return
                 startForegroundService()
                 if (!isApi31) startBackgroundScanning()
             } else {
@@ -59,15 +95,45 @@ class BluetoothInteractor(
         Foreground.init(application)
 
         Foreground.get().addListener(listener)
+        scannerState.crashResolver?.start()
     }
 
     fun startForegroundScanning() {
         Timber.d("startForegroundScanning")
+        endBackgroundScanWindow()
+        stopPendingIntentScanning()
         stopForegroundService()
         if (!isApi31) ScanningPeriodicReceiver.cancel(application)
         startScan()
     }
 
+    private fun usePendingIntentScan() =
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && settings.usePendingIntentBackgroundScan()
+
+    /**
+     * Hands the scan filters to the system, which wakes the app only to deliver batched results
+     * to [BackgroundScanReceiver]. Replaces the foreground service and alarms on Android 8+.
+     */
+    fun startPendingIntentScanning(): Boolean {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return false
+        Timber.d("startPendingIntentScanning")
+        ruuviRangeNotifier.setAllowlist(settings.getScanAllowlist())
+        return ruuviRangeNotifier.startPendingIntentScan(
+            BackgroundScanReceiver.createPendingIntent(application),
+            settings.getBackgroundScanIntervalMilliseconds()
+        )
+    }
+
+    fun stopPendingIntentScanning() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return
+        Timber.d("stopPendingIntentScanning")
+        ruuviRangeNotifier.stopPendingIntentScan(BackgroundScanReceiver.createPendingIntent(application))
+    }
+
+    internal fun onPendingIntentScanResults(results: List<ScanResult>) {
+        ruuviRangeNotifier.deliverScanResults(results, tagFoundListener)
+    }
+
     fun startBackgroundScanning() {
         Timber.d("startBackgroundScanning")
         ScanningPeriodicReceiver.start(application, settings.getBackgroundScanIntervalMilliseconds())
@@ -75,19 +141,169 @@ class BluetoothInteractor(
 
     fun startScan() {
         Timber.d("startScan")
-        ruuviRangeNotifier.startScanning(onTagsFoundListener)
+        ruuviRangeNotifier.setAllowlist(settings.getScanAllowlist())
+        ruuviRangeNotifier.startScanning(tagFoundListener)
     }
 
+    /**
+     * Scans for at most [getWorkTime] ms, then stops unless the app came to the foreground
+     * meanwhile. Stops earlier once every tag of [ScannerSettings.getExpectedTags] has reported.
+     * A window that is still running is ended and a new one started.
+     *
+     * With [ScannerSettings.coalesceBackgroundResults] and a batch listener, readings of the
+     * window go to [OnTagBatchFoundListener] once at its end instead of one by one.
+     */
+    fun startBackgroundScanWindow() {
+        Timber.d("startBackgroundScanWindow")
+        endBackgroundScanWindow()
+        val workTime = getWorkTime()
+        val coalesce = onTagBatchFoundListener != null && settings.coalesceBackgroundResults()
+        val window = BackgroundScanWindow(settings.getExpectedTags(), workTime, coalesce) { statistics, batch ->
+            onBackgroundScanWindowFinished(statistics, batch)
+        }
+        backgroundScanWindow = window
+        startScan()
+        backgroundScanStop = LibraryScheduler.schedule(workTime) {
+            window.timeout()
+        }
+    }
+
+    fun stopBackgroundScanWindow() {
+        Timber.d("stopBackgroundScanWindow")
+        endBackgroundScanWindow()
+        stopScanningFromBackground()
+    }
+
+    /**
+     * Latest background scan windows, oldest first.
+     */
+    fun getBackgroundScanStatistics(): List<ScanWindowStatistics> = synchronized(backgroundScanStatistics) {
+        backgroundScanStatistics.toList()
+    }
+
+    private fun onBackgroundScanWindowFinished(statistics: ScanWindowStatistics, batch: List<FoundRuuviTag>) {
+        Timber.d("background scan window finished $statistics")
+        synchronized(backgroundScanStatistics) {
+            if (backgroundScanStatistics.size == MAX_SCAN_WINDOW_STATISTICS) backgroundScanStatistics.removeFirst()
+            backgroundScanStatistics.addLast(statistics)
+        }
+        if (batch.isNotEmpty()) onTagBatchFoundListener?.onTagsFound(batch)
+        // a window ended or replaced by a newer one must not stop the current scan
+        if (backgroundScanWindow?.isFinished != true) return
+        endBackgroundScanWindow()
+        stopScanningFromBackground()
+    }
+
+    /**
+     * Cancels the pending stop and ends the current window, delivering its coalesced readings.
+     */
+    private fun endBackgroundScanWindow() {
+        backgroundScanStop?.cancel()
+        backgroundScanStop = null
+        val window = backgroundScanWindow
+        backgroundScanWindow = null
+        window?.timeout()
+    }
+
+    /**
+     * Reads the log history of a tag. With [from] = null only readings the library has not
+     * delivered before are requested and returned.
+     */
     fun readLogs(id: String, from: Date?, listener: IRuuviGattListener): Boolean {
         Timber.d("readLogs")
         return ruuviRangeNotifier.connect(id, from, listener)
     }
 
+    fun readLogs(
+        id: String,
+        from: Date?,
+        listener: IRuuviGattListener,
+        options: LogSyncOptions,
+        aggregatesListener: LogAggregatesListener?
+    ): Boolean {
+        Timber.d("readLogs $options")
+        return ruuviRangeNotifier.connect(id, from, listener, options, aggregatesListener)
+    }
+
     fun getFwVersion(macAddress: String, listener: IRuuviGattListener): Boolean {
         Timber.d("getFwVersion $macAddress")
         return ruuviRangeNotifier.getFwVersion(macAddress, listener)
     }
 
+    /**
+     * Forgets which readings of the tag were delivered, so the next automatic sync reads the
+     * whole history again.
+     */
+    fun resetSyncHistory(id: String) {
+        SyncHistory.get(application).reset(id)
+    }
+
+    fun getLogSyncMetrics(id: String): LogSyncMetrics? = GattStatistics.getSyncMetrics(id)
+
+    fun getConnectionTuning(): List<ConnectionTuningRecord> = GattStatistics.getConnectionTuning()
+
+    fun getScanSessionStatistics(): ScanSessionStatistics = ruuviRangeNotifier.getScanSessionStatistics()
+
+    /**
+     * Scan callbacks per minute for each filter mode used so far.
+     */
+    fun getScanFilterStatistics(): List<ScanFilterModeStatistics> = ruuviRangeNotifier.getScanFilterStatistics()
+
+    fun getConnectionPoolStatistics(): ConnectionPoolStatistics = ruuviRangeNotifier.getConnectionPoolStatistics()
+
+    /**
+     * Counters and latencies of the scan path since the last [resetScanMetrics].
+     */
+    fun getScanMetrics(): ScanMetricsSnapshot = ruuviRangeNotifier.getScanMetrics()
+
+    fun resetScanMetrics() {
+        ruuviRangeNotifier.resetScanMetrics()
+    }
+
+    /**
+     * Starts capturing every raw advertisement to rolling segments in the files directory, for
+     * reproducing field issues with [getAdvertisementCapture].
+     */
+    fun startAdvertisementCapture() {
+        Timber.d("startAdvertisementCapture")
+        ruuviRangeNotifier.setAdvertisementRecorder(AdvertisementRecorder(File(application.filesDir, CAPTURE_DIRECTORY)))
+    }
+
+    fun stopAdvertisementCapture() {
+        Timber.d("stopAdvertisementCapture")
+        ruuviRangeNotifier.setAdvertisementRecorder(null)
+    }
+
+    fun getAdvertisementCapture(): AdvertisementCaptureReader =
+        AdvertisementCaptureReader(File(application.filesDir, CAPTURE_DIRECTORY))
+
+    /**
+     * Writes the recent scan and GATT trace events, see [TraceLog.dump].
+     */
+    fun dumpTrace(): File {
+        val file = File(application.filesDir, TRACE_FILE)
+        TraceLog.dump(file)
+        return file
+    }
+
+    /**
+     * Distinct device count and recovery counters of the Bluetooth crash workaround.
+     */
+    fun getCrashResolver(): BluetoothCrashResolver? = scannerState.crashResolver
+
+    /**
+     * Keeps a connection to the tag open and delivers its readings to the tag listener at the
+     * connection's heartbeat rate, until [stopStreaming] or [disconnect] is called.
+     */
+    fun startStreaming(id: String): Boolean {
+        Timber.d("startStreaming $id")
+        return ruuviRangeNotifier.startStreaming(id, onTagsFoundListener)
+    }
+
+    fun stopStreaming(id: String): Boolean = ruuviRangeNotifier.stopStreaming(id)
+
+    fun getStreamingMetrics(id: String): StreamingMetrics? = ruuviRangeNotifier.getStreamingMetrics(id)
+
     fun disconnect(id: String): Boolean {
         Timber.d("gatt disconnect")
         return ruuviRangeNotifier.disconnect(id)
@@ -105,8 +321,22 @@ class BluetoothInteractor(
 
     fun restoreBluetoothScan() {
         Timber.d("restoring interactor")
-        stopScanning()
-        ruuviRangeNotifier = RuuviTagScanner(application, "BluetoothInteractor")
+        ruuviRangeNotifier.release()
+        scannerState.save()
+        ruuviRangeNotifier = RuuviTagScanner(application, "BluetoothInteractor", scannerState)
+    }
+
+    /**
+     * Stops scanning and the crash resolver and writes the scanner state. The interactor is
+     * not usable afterwards.
+     */
+    fun shutdown() {
+        Timber.d("shutdown")
+        Foreground.get().removeListener(listener)
+        endBackgroundScanWindow()
+        ruuviRangeNotifier.release()
+        scannerState.crashResolver?.stop()
+        scannerState.save()
     }
 
     fun canScan() = ruuviRangeNotifier.canScan()
@@ -114,4 +344,10 @@ class BluetoothInteractor(
     // This should return for how long background scan should be activated (depends on BackgroundScanInterval) (ms)
     // For interval of 60min - work time will be 1m4s
     fun getWorkTime(): Long = 4000 + settings.getBackgroundScanIntervalMilliseconds() / 60
+
+    companion object {
+        private const val MAX_SCAN_WINDOW_STATISTICS = 50
+        private const val TRACE_FILE = "ruuvi_trace.bin"
+        private const val CAPTURE_DIRECTORY = "advertisement_capture"
+    }
 }
\ No newline at end of file
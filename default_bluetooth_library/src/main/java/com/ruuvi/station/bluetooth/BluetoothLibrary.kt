@@ -12,12 +12,21 @@ object BluetoothLibrary {
     val isInitialized
         get() = this::bluetoothInteractor.isInitialized
 
+    /**
+     * Creates the interactor on the first call and returns it on later ones, whose arguments
+     * are ignored.
+     *
+     * @param onTagBatchFoundListener receives the readings of background scan windows at once
+     * when [ScannerSettings.coalesceBackgroundResults] is on
+     */
+    @JvmOverloads
     fun getBluetoothInteractor(
             application: Application,
             onTagsFoundListener: IRuuviTagScanner.OnTagFoundListener,
-            settings: ScannerSettings): BluetoothInteractor {
+            settings: ScannerSettings,
+            onTagBatchFoundListener: OnTagBatchFoundListener? = null): BluetoothInteractor {
         if (!isInitialized) {
-            bluetoothInteractor = BluetoothInteractor(application, onTagsFoundListener, settings)
+            bluetoothInteractor = BluetoothInteractor(application, onTagsFoundListener, settings, onTagBatchFoundListener)
         }
         return bluetoothInteractor
     }
@@ -0,0 +1,130 @@
+package com.ruuvi.station.bluetooth
+
+import com.ruuvi.station.bluetooth.storage.CapturedAdvertisement
+import com.ruuvi.station.bluetooth.util.Clock
+import com.ruuvi.station.bluetooth.util.NanoTimeClock
+import com.ruuvi.station.bluetooth.util.extensions.toMacAddress
+import timber.log.Timber
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * How fast [CaptureReplaySource] replays: with the captured gaps divided by [factor], or
+ * without any waiting when [factor] is infinite.
+ */
+class ReplaySpeed private constructor(val factor: Double) {
+    override fun toString(): String = if (factor.isInfinite()) "ReplaySpeed(unlimited)" else "ReplaySpeed(${factor}x)"
+
+    companion object {
+        val ORIGINAL = ReplaySpeed(1.0)
+        val AS_FAST_AS_POSSIBLE = ReplaySpeed(Double.POSITIVE_INFINITY)
+
+        fun scaled(factor: Double): ReplaySpeed {
+            require(factor > 0) { "Speed factor must be positive, was $factor" }
+            return ReplaySpeed(factor)
+        }
+    }
+}
+
+/**
+ * Replays advertisements, e.g. from [com.ruuvi.station.bluetooth.storage.AdvertisementCaptureReader],
+ * in capture order. Replayed advertisements are stamped with [clock] when they are handed to the
+ * sink, so latencies measured downstream are those of the replay.
+ *
+ * [start] replays on a thread of its own; [run] replays on the calling thread, which suits
+ * tests and benchmarks. One replay runs at a time.
+ */
+class CaptureReplaySource(
+    private val captures: () -> Sequence<CapturedAdvertisement>,
+    private val speed: ReplaySpeed = ReplaySpeed.AS_FAST_AS_POSSIBLE,
+    override val clock: Clock = NanoTimeClock
+) : AdvertisementSource {
+    private val replaying = AtomicBoolean()
+    @Volatile
+    private var thread: Thread? = null
+    @Volatile
+    private var stopped = false
+
+    /**
+     * Advertisements handed to the sink by the last replay.
+     */
+    @Volatile
+    var replayed = 0L
+        private set
+
+    override fun isAvailable(): Boolean = !replaying.get()
+
+    override fun start(sink: AdvertisementSink): Boolean {
+        if (!replaying.compareAndSet(false, true)) return false
+        stopped = false
+        thread = Thread({
+            try {
+                replay(sink)
+            } finally {
+                thread = null
+                replaying.set(false)
+            }
+        }, THREAD_NAME).apply {
+            isDaemon = true
+            start()
+        }
+        return true
+    }
+
+    override fun stop() {
+        stopped = true
+        thread?.interrupt()
+    }
+
+    /**
+     * Replays everything on the calling thread, unless [stop] is called meanwhile. A [stop]
+     * before the call doesn't affect it.
+     *
+     * @return false when another replay is running
+     */
+    fun run(sink: AdvertisementSink): Boolean {
+        if (!replaying.compareAndSet(false, true)) return false
+        stopped = false
+        try {
+            replay(sink)
+        } finally {
+            replaying.set(false)
+        }
+        return true
+    }
+
+    private fun replay(sink: AdvertisementSink) {
+        replayed = 0
+        var firstCaptured = 0L
+        var replayStarted = 0L
+        try {
+            for (capture in captures()) {
+                if (stopped) return
+                if (replayed == 0L) {
+                    firstCaptured = capture.timestampNanos
+                    replayStarted = clock.elapsedRealtimeNanos()
+                } else if (!speed.factor.isInfinite()) {
+                    val due = replayStarted + ((capture.timestampNanos - firstCaptured) / speed.factor).toLong()
+                    val wait = due - clock.elapsedRealtimeNanos()
+                    if (wait > 0) Thread.sleep(wait / 1000000, (wait % 1000000).toInt())
+                }
+                sink.onAdvertisement(
+                    Advertisement(
+                        address = capture.address.toMacAddress(),
+                        rssi = capture.rssi,
+                        payload = capture.payload,
+                        timestampNanos = clock.elapsedRealtimeNanos(),
+                        connectable = Advertisement.hasLocalName(capture.payload)
+                    )
+                )
+                replayed++
+            }
+            sink.onSourceFinished()
+        } catch (e: InterruptedException) {
+            Timber.d("Replay stopped after $replayed advertisements")
+        }
+    }
+
+    companion object {
+        private const val THREAD_NAME = "ruuvi-replay"
+    }
+}
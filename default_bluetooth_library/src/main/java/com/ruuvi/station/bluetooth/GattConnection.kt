@@ -3,6 +3,7 @@ package com.ruuvi.station.bluetooth
 import android.bluetooth.*
 import android.content.Context
 import android.os.Build
+import com.ruuvi.station.bluetooth.util.LibraryScheduler
 import com.ruuvi.station.bluetooth.util.extensions.hexStringToByteArray
 import com.ruuvi.station.bluetooth.util.extensions.toHexString
 import com.ruuvi.station.bluetooth.util.extensions.toInt
@@ -11,7 +12,6 @@ import net.swiftzer.semver.SemVer
 import timber.log.Timber
 import java.nio.ByteBuffer
 import java.util.*
-import kotlin.concurrent.schedule
 
 class GattConnection(context: Context, var device: BluetoothDevice) {
     private lateinit var bluetoothGatt: BluetoothGatt
@@ -174,7 +174,7 @@ class GattConnection(context: Context, var device: BluetoothDevice) {
                 }
                 // this is here to prevent the tag from showing up as "not connectable"
                 // as the the tag will be in disconnected state later than the phone reports
-                Timer().schedule(1500) {
+                LibraryScheduler.schedule(1500) {
                     isConnected = false
                 }
             }
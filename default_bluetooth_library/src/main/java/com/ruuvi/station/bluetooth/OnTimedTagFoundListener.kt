@@ -0,0 +1,20 @@
+package com.ruuvi.station.bluetooth
+
+import android.os.SystemClock
+
+/**
+ * Tag listener that also learns when the reading was received, to measure how long it took to
+ * reach the app. [RuuviTagScanner] and [BluetoothInteractor] call the timed variant when the
+ * listener implements this interface.
+ */
+interface OnTimedTagFoundListener : IRuuviTagScanner.OnTagFoundListener {
+    /**
+     * @param receivedAtNanos when the radio received the advertisement, or the GATT notification
+     * arrived, in the [SystemClock.elapsedRealtimeNanos] time base
+     */
+    fun onTagFound(tag: FoundRuuviTag, receivedAtNanos: Long)
+
+    override fun onTagFound(tag: FoundRuuviTag) {
+        onTagFound(tag, SystemClock.elapsedRealtimeNanos())
+    }
+}
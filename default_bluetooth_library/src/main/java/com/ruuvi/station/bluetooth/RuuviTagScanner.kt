@@ -1,91 +1,127 @@
 package com.ruuvi.station.bluetooth
 
-import android.annotation.SuppressLint
-import android.bluetooth.BluetoothAdapter
-import android.bluetooth.BluetoothManager
-import android.bluetooth.le.*
+import android.app.PendingIntent
+import android.bluetooth.le.ScanResult
 import android.content.Context
-import android.os.ParcelUuid
+import android.os.Build
+import androidx.annotation.RequiresApi
 import com.ruuvi.station.bluetooth.decoder.LeScanResult
-import com.ruuvi.station.bluetooth.gatt.NordicGattManager
+import com.ruuvi.station.bluetooth.gatt.LogAggregatesListener
+import com.ruuvi.station.bluetooth.gatt.LogSyncOptions
+import com.ruuvi.station.bluetooth.gatt.StreamingMetrics
+import com.ruuvi.station.bluetooth.gatt.ConnectionPoolStatistics
+import com.ruuvi.station.bluetooth.storage.AdvertisementRecorder
+import com.ruuvi.station.bluetooth.util.extensions.macToLong
 import timber.log.Timber
 import java.util.*
-import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.ConcurrentMap
-import java.util.concurrent.atomic.AtomicBoolean
 
+/**
+ * @param state what outlives the scanner, a new one without a snapshot file unless given
+ * @param source where advertisements come from, the Android scanner unless given, e.g. a
+ * [CaptureReplaySource]. Its clock times the whole pipeline. Pending intent scans always use
+ * the Android scanner, which is only created when needed.
+ */
 class RuuviTagScanner(
         private val context: Context,
-        private val from: String
+        private val from: String,
+        private val state: ScannerState = ScannerState(context, null),
+        private val injectedSource: AdvertisementSource? = null
 ) : IRuuviTagScanner {
 
-    private val bluetoothPermissionInteractor = BluetoothPermissionsInteractor(context)
     private var tagListener: IRuuviTagScanner.OnTagFoundListener? = null
 
-    private var bluetoothAdapter: BluetoothAdapter? = null
-    private var scanner: BluetoothLeScanner? = null
-    private val devices: ConcurrentMap<String, LeScanResult> = ConcurrentHashMap()
-    private val gattManagers: ConcurrentMap<String, NordicGattManager> = ConcurrentHashMap()
+    private val devices = state.devices
+    private val connectionPool = state.connectionPool
+    private val filterPolicy = ScanFilterPolicy()
+    private var accountedScanMillis = 0L
 
-    private val scanSettings: ScanSettings
-        get() = ScanSettings.Builder()
-                .setReportDelay(0)
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                .build()
+    private val androidSource by lazy { AndroidScanSource(context) { filterPolicy.getScanFilters() } }
+    private val source: AdvertisementSource
+        get() = injectedSource ?: androidSource
+    private val clock = source.clock
 
-    private val isScanning = AtomicBoolean(false)
-    private val sequenceMap = HashMap<String, Int>()
+    private val pipeline = AdvertisementPipeline(object : AdvertisementPipeline.Registry {
+        override fun isConnected(address: String): Boolean =
+            connectionPool.get(address)?.isConnected == true
 
-    init {
-        Timber.d("[$from] Setting up range notifier")
-        initScanner()
+        override fun onConnectable(result: LeScanResult) {
+            if (result.device != null) state.onConnectableDevice(result)
+        }
+
+        override fun lastSequenceNumber(id: String): Int? = state.sequenceMap[id]
+
+        override fun onMeasurementDelivered(id: String, sequenceNumber: Int) {
+            state.onMeasurementDelivered(id, sequenceNumber)
+        }
+    }, filterPolicy, state.scanMetrics, clock)
+    private val metrics = state.scanMetrics
+
+    private val sink: AdvertisementSink = object : AdvertisementSink {
+        override fun onAdvertisement(advertisement: Advertisement) {
+            scanSession.onScanResult()
+            handleAdvertisement(advertisement, tagListener)
+        }
+
+        override fun onSourceFailed(errorCode: Int) {
+            Timber.d("[$from] onScanFailed error code = $errorCode")
+            scanSession.onScanFailed(errorCode)
+        }
+
+        override fun onSourceFinished() {
+            Timber.d("[$from] source finished")
+            scanSession.onSourceFinished()
+        }
     }
 
-    private fun initScanner() {
-        Timber.d("Trying to initialize bluetooth adapter")
-        val bluetoothManager = context.getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager
-        bluetoothAdapter = bluetoothManager.adapter
-        scanner = bluetoothAdapter?.bluetoothLeScanner
+    private val scanSession: ScanSessionManager = ScanSessionManager(object : ScanSessionManager.ScanBackend {
+        override fun start(): Boolean {
+            Timber.d("[$from] startScan")
+            return this@RuuviTagScanner.source.start(sink)
+        }
+
+        override fun stop() {
+            Timber.d("[$from] stopScan")
+            this@RuuviTagScanner.source.stop()
+        }
+    }, clock)
+
+    init {
+        Timber.d("[$from] Setting up range notifier")
     }
 
-    @SuppressLint("MissingPermission")
     override fun startScanning(
             foundListener: IRuuviTagScanner.OnTagFoundListener
     ) {
         Timber.d("[$from] startScanning")
 
-        if (!canScan()) {
-            Timber.d("Can't scan bluetoothAdapter is null")
-            initScanner()
-            if (!canScan()) return
-        }
-        if (!isScanning.compareAndSet(false, true)) {
-            Timber.d("Already scanning!")
+        if (!source.isAvailable()) {
+            Timber.d("Can't scan, advertisement source not available")
             return
         }
 
         this.tagListener = foundListener
-        scanner?.startScan(getScanFilters(), scanSettings, scanCallback)
+        scanSession.requestStart()
     }
 
-    @SuppressLint("MissingPermission")
-    override fun canScan(): Boolean =
-        bluetoothAdapter != null &&
-            scanner != null &&
-            bluetoothPermissionInteractor.requiredPermissionsGranted() &&
-            bluetoothAdapter?.state == BluetoothAdapter.STATE_ON
+    override fun canScan(): Boolean = injectedSource?.isAvailable() ?: androidSource.canScan()
+
+    override fun connect(macAddress: String, readLogsFrom: Date?, listener: IRuuviGattListener): Boolean =
+        connect(macAddress, readLogsFrom, listener, LogSyncOptions(), null)
 
-    override fun connect(macAddress: String, readLogsFrom: Date?, listener: IRuuviGattListener): Boolean {
+    fun connect(
+        macAddress: String,
+        readLogsFrom: Date?,
+        listener: IRuuviGattListener,
+        options: LogSyncOptions,
+        aggregatesListener: LogAggregatesListener?
+    ): Boolean {
         val device = devices[macAddress]
         device.let {
             it?.let { leResult ->
-                var gattManager = gattManagers[macAddress]
-                if (gattManager == null) {
-                    gattManager = NordicGattManager(context, leResult.device)
-                    gattManagers[macAddress] = gattManager
-                }
+                val gattManager = connectionPool.acquire(leResult.device)
                 gattManager.setCallBack(listener)
-                gattManager.getLogs(readLogsFrom)
+                gattManager.setAggregatesListener(aggregatesListener)
+                gattManager.getLogs(readLogsFrom, options)
             }
         }
         return device != null
@@ -95,11 +131,7 @@ class RuuviTagScanner(
         val device = devices[macAddress]
         device.let {
             it?.let { leResult ->
-                var gattManager = gattManagers[macAddress]
-                if (gattManager == null) {
-                    gattManager = NordicGattManager(context, leResult.device)
-                    gattManagers[macAddress] = gattManager
-                }
+                val gattManager = connectionPool.acquire(leResult.device)
                 gattManager.setCallBack(listener)
                 gattManager.getVersion()
             }
@@ -107,84 +139,130 @@ class RuuviTagScanner(
         return device != null
     }
 
+    /**
+     * Connects to the tag and passes its heartbeat frames to [listener], skipping measurements
+     * already delivered from advertisements.
+     */
+    fun startStreaming(macAddress: String, listener: IRuuviTagScanner.OnTagFoundListener): Boolean {
+        val device = devices[macAddress] ?: return false
+        val gattManager = connectionPool.acquire(device.device)
+        gattManager.startStreaming(object : IRuuviTagScanner.OnTagFoundListener {
+            override fun onTagFound(tag: FoundRuuviTag) {
+                pipeline.deliver(tag, listener, clock.elapsedRealtimeNanos())
+            }
+        })
+        return true
+    }
+
+    fun stopStreaming(macAddress: String): Boolean {
+        Timber.d("stopStreaming $macAddress")
+        val gattManager = connectionPool.get(macAddress) ?: return false
+        gattManager.stopStreaming()
+        return true
+    }
+
+    fun getStreamingMetrics(macAddress: String): StreamingMetrics? =
+        connectionPool.get(macAddress)?.getStreamingMetrics()
+
     override fun disconnect(macAddress: String): Boolean {
         Timber.d("disconnect $macAddress")
-        gattManagers[macAddress]?.let { manager ->
-            manager.executeDisconnect()
-            return true
-        }
-        return false
+        return connectionPool.disconnect(macAddress)
     }
 
-    @SuppressLint("MissingPermission")
+    fun getConnectionPoolStatistics(): ConnectionPoolStatistics = connectionPool.getStatistics()
+
     override fun stopScanning() {
-        if (!canScan()) return
-        Timber.d("[$from] stopScanning isScanning = $isScanning")
-        scanner?.stopScan(scanCallback)
-        isScanning.set(false)
-    }
-
-    private var scanCallback = object : ScanCallback() {
-        override fun onScanResult(callbackType: Int, result: ScanResult?) {
-            Timber.d("[$from] onScanResult $result")
-            super.onScanResult(callbackType, result)
-            result?.let {
-                val leresult = LeScanResult()
-                leresult.device = it.device
-                leresult.rssi = it.rssi
-                leresult.scanData = it.scanRecord?.bytes
-                val parsed = leresult.parse()
-                if (parsed != null) {
-                    var connectable = it.scanRecord?.deviceName != null
-                    if (connectable) {
-                        devices[leresult.device.address] = leresult
-                    } else if (gattManagers[it.device.address]?.isConnected == true) {
-                        connectable = true
-                    }
-                    parsed.connectable = connectable
-                    sendDataToListener(parsed)
-                }
-            }
-        }
+        Timber.d("[$from] stopScanning isScanning = ${scanSession.isScanning}")
+        scanSession.requestStop()
+    }
 
-        override fun onScanFailed(errorCode: Int) {
-            Timber.d("[$from] onScanFailed error code = $errorCode")
-            super.onScanFailed(errorCode)
+    /**
+     * Stops scanning right away, without waiting for a start that could reuse the scan. Call
+     * before dropping the scanner so its scan and timers don't outlive it.
+     */
+    fun release() {
+        Timber.d("[$from] release")
+        scanSession.shutdown()
+        tagListener = null
+    }
+
+    fun getScanSessionStatistics(): ScanSessionStatistics = scanSession.getStatistics()
+
+    /**
+     * Limits scanning to the given tags. Up to the controller's filter capacity this is done with
+     * one scan filter per tag, so other devices don't wake the app; beyond it results are
+     * filtered by address in the app. An empty allowlist scans for all tags.
+     */
+    fun setAllowlist(allowlist: ScanAllowlist) {
+        accountScanTime()
+        if (filterPolicy.setAllowlist(allowlist)) {
+            // with one filter per tag silence only means the tags are out of range
+            scanSession.stallDetectionEnabled = filterPolicy.mode != ScanFilterMode.ALLOWLIST
+            scanSession.restart()
         }
     }
 
-    private fun sendDataToListener(tag: FoundRuuviTag) {
-        if (tag.measurementSequenceNumber != null) {
-            val lastSequenceNumber = sequenceMap[tag.id]
+    fun getScanFilterStatistics(): List<ScanFilterModeStatistics> {
+        accountScanTime()
+        return filterPolicy.getStatistics()
+    }
 
-            if (lastSequenceNumber == null || tag.measurementSequenceNumber != lastSequenceNumber) {
-                tagListener?.onTagFound(tag)
+    @Synchronized
+    private fun accountScanTime() {
+        val uptime = scanSession.getStatistics().uptimeMillis
+        filterPolicy.onScanTime(uptime - accountedScanMillis)
+        accountedScanMillis = uptime
+    }
 
-                tag.id?.let {id ->
-                    tag.measurementSequenceNumber?.let { sequenceNumber ->
-                        sequenceMap[id] = sequenceNumber
-                    }
-                }
-            } else {
-                Timber.d("Measurement skipped for ${tag.id} sequenceNumber = ${tag.measurementSequenceNumber}")
-            }
-        } else {
-            tagListener?.onTagFound(tag)
+    /**
+     * Decodes results the system delivered for a [PendingIntent] scan, see [BackgroundScanReceiver].
+     */
+    fun deliverScanResults(results: List<ScanResult>, listener: IRuuviTagScanner.OnTagFoundListener) {
+        Timber.d("[$from] deliverScanResults ${results.size}")
+        for (result in results) {
+            handleAdvertisement(AndroidScanSource.toAdvertisement(result), listener)
         }
     }
 
-    private fun getScanFilters(): List<ScanFilter> {
-        val filters: MutableList<ScanFilter> = ArrayList()
-        val ruuviFilter = ScanFilter
-                .Builder()
-                .setManufacturerData(0x0499, byteArrayOf())
-                .build()
-        val eddystoneFilter = ScanFilter
-                .Builder()
-                .setServiceUuid(ParcelUuid.fromString("0000feaa-0000-1000-8000-00805f9b34fb"))
-                .build()
-        filters.add(ruuviFilter)
-        filters.add(eddystoneFilter)
-        return filters
-    }
-}
\ No newline at end of file
+    /**
+     * Lets the system scan with the current filters while the app is idle and deliver batched
+     * results to [pendingIntent]. Batching needs controller support, otherwise each result is
+     * delivered separately.
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    fun startPendingIntentScan(pendingIntent: PendingIntent, reportDelayMillis: Long): Boolean =
+        androidSource.startPendingIntentScan(pendingIntent, reportDelayMillis)
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    fun stopPendingIntentScan(pendingIntent: PendingIntent) {
+        androidSource.stopPendingIntentScan(pendingIntent)
+    }
+
+    fun getScanMetrics(): ScanMetricsSnapshot = metrics.snapshot()
+
+    /**
+     * Records every raw advertisement received from now on to [recorder], or stops recording
+     * when null. The previous recorder is closed.
+     */
+    fun setAdvertisementRecorder(recorder: AdvertisementRecorder?) {
+        val previous = state.advertisementRecorder
+        state.advertisementRecorder = recorder
+        if (previous !== recorder) previous?.close()
+    }
+
+    fun resetScanMetrics() {
+        metrics.reset()
+    }
+
+    private fun handleAdvertisement(advertisement: Advertisement, listener: IRuuviTagScanner.OnTagFoundListener?) {
+        // Bluedroid tracks every address it sees, not only the ones that pass the allowlist
+        advertisement.device?.let { state.crashResolver?.notifyScannedDevice(it) }
+        state.advertisementRecorder?.record(
+            advertisement.timestampNanos,
+            advertisement.address.macToLong(),
+            advertisement.rssi,
+            advertisement.payload
+        )
+        pipeline.process(advertisement, listener)
+    }
+}
@@ -0,0 +1,187 @@
+package com.ruuvi.station.bluetooth
+
+import android.bluetooth.BluetoothAdapter
+import android.bluetooth.le.ScanFilter
+import android.os.ParcelUuid
+import timber.log.Timber
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Tags the scan is limited to.
+ *
+ * @param addresses MAC addresses of the tags
+ * @param dataFormats when not empty, only manufacturer data advertisements whose first byte is
+ * one of these formats (e.g. 5) pass the filter; Eddystone advertisements are then excluded
+ */
+data class ScanAllowlist(
+    val addresses: Set<String> = emptySet(),
+    val dataFormats: Set<Int> = emptySet()
+) {
+    val filterCount: Int
+        get() = addresses.size * maxOf(1, dataFormats.size)
+}
+
+enum class ScanFilterMode {
+    /** Manufacturer and Eddystone filters for every Ruuvi tag around */
+    BROAD,
+    /** One filter per allowed tag, evaluated by the Bluetooth stack */
+    ALLOWLIST,
+    /** Too many tags for the controller, broad filters plus an address check in the app */
+    SOFTWARE_ALLOWLIST
+}
+
+data class ScanFilterModeStatistics(
+    val mode: ScanFilterMode,
+    val scanMillis: Long,
+    val wakeups: Long,
+    val droppedResults: Long
+) {
+    val wakeupsPerMinute: Double
+        get() = if (scanMillis > 0) wakeups * 60000.0 / scanMillis else 0.0
+}
+
+/**
+ * Builds the scan filters for the current [ScanAllowlist] and counts scan callbacks per mode,
+ * so wakeups with and without an allowlist can be compared. [accept] runs for every scan result
+ * and takes no lock: it reads an immutable snapshot of the allowlist and mode and counts with
+ * atomics.
+ */
+class ScanFilterPolicy(private val maxHardwareFilters: Int = DEFAULT_MAX_HARDWARE_FILTERS) {
+    private class Snapshot(val allowlist: ScanAllowlist, val mode: ScanFilterMode)
+
+    @Volatile
+    private var snapshot = Snapshot(ScanAllowlist(), ScanFilterMode.BROAD)
+
+    val mode: ScanFilterMode
+        get() = snapshot.mode
+
+    private val scanMillis = LongArray(ScanFilterMode.values().size)
+    private val wakeups = AtomicLongArray(ScanFilterMode.values().size)
+    private val droppedResults = AtomicLongArray(ScanFilterMode.values().size)
+
+    /**
+     * @return true when the filters changed and a running scan has to be restarted
+     */
+    @Synchronized
+    fun setAllowlist(requested: ScanAllowlist): Boolean {
+        val allowlist = requested.copy(
+            addresses = requested.addresses
+                .map { it.uppercase() }
+                .filter { BluetoothAdapter.checkBluetoothAddress(it) }
+                .toSet()
+        )
+        if (allowlist == snapshot.allowlist) return false
+        val mode = when {
+            allowlist.addresses.isEmpty() -> ScanFilterMode.BROAD
+            allowlist.filterCount <= maxHardwareFilters -> ScanFilterMode.ALLOWLIST
+            else -> ScanFilterMode.SOFTWARE_ALLOWLIST
+        }
+        snapshot = Snapshot(allowlist, mode)
+        Timber.d("Scan filter mode $mode for ${allowlist.addresses.size} tags")
+        return true
+    }
+
+    fun getScanFilters(): List<ScanFilter> {
+        val snapshot = snapshot
+        return if (snapshot.mode == ScanFilterMode.ALLOWLIST) allowlistFilters(snapshot.allowlist) else broadFilters()
+    }
+
+    /**
+     * Counts the wakeup and tells whether the result passes the software allowlist, which checks
+     * the address and the data format the way the [ScanFilterMode.ALLOWLIST] filters do.
+     *
+     * @param payload raw advertisement data
+     */
+    fun accept(address: String, payload: ByteArray?): Boolean {
+        val snapshot = snapshot
+        val mode = snapshot.mode
+        wakeups.incrementAndGet(mode.ordinal)
+        if (mode != ScanFilterMode.SOFTWARE_ALLOWLIST) return true
+        val allowlist = snapshot.allowlist
+        if (address in allowlist.addresses &&
+            (allowlist.dataFormats.isEmpty() || dataFormatOf(payload) in allowlist.dataFormats)
+        ) {
+            return true
+        }
+        droppedResults.incrementAndGet(mode.ordinal)
+        return false
+    }
+
+    /**
+     * Adds scanning time to the current mode, called with the scan uptime since the last call.
+     */
+    @Synchronized
+    fun onScanTime(millis: Long) {
+        scanMillis[snapshot.mode.ordinal] += millis
+    }
+
+    @Synchronized
+    fun getStatistics(): List<ScanFilterModeStatistics> = ScanFilterMode.values().map { mode ->
+        ScanFilterModeStatistics(mode, scanMillis[mode.ordinal], wakeups.get(mode.ordinal), droppedResults.get(mode.ordinal))
+    }
+
+    private fun allowlistFilters(allowlist: ScanAllowlist): List<ScanFilter> {
+        val filters = ArrayList<ScanFilter>(allowlist.filterCount)
+        for (address in allowlist.addresses) {
+            if (allowlist.dataFormats.isEmpty()) {
+                filters.add(ScanFilter.Builder().setDeviceAddress(address).build())
+            } else {
+                for (format in allowlist.dataFormats) {
+                    filters.add(
+                        ScanFilter.Builder()
+                            .setDeviceAddress(address)
+                            .setManufacturerData(RUUVI_MANUFACTURER_ID, byteArrayOf(format.toByte()), FORMAT_MASK)
+                            .build()
+                    )
+                }
+            }
+        }
+        return filters
+    }
+
+    private fun broadFilters(): List<ScanFilter> {
+        val filters: MutableList<ScanFilter> = ArrayList()
+        val ruuviFilter = ScanFilter
+                .Builder()
+                .setManufacturerData(RUUVI_MANUFACTURER_ID, byteArrayOf())
+                .build()
+        val eddystoneFilter = ScanFilter
+                .Builder()
+                .setServiceUuid(ParcelUuid.fromString("0000feaa-0000-1000-8000-00805f9b34fb"))
+                .build()
+        filters.add(ruuviFilter)
+        filters.add(eddystoneFilter)
+        return filters
+    }
+
+    companion object {
+        /**
+         * Android has no API for the controller's filter capacity; 16 fits common controllers.
+         */
+        const val DEFAULT_MAX_HARDWARE_FILTERS = 16
+        private const val RUUVI_MANUFACTURER_ID = 0x0499
+        private const val MANUFACTURER_SPECIFIC_DATA = 0xFF
+        private val FORMAT_MASK = byteArrayOf(0xFF.toByte())
+
+        /**
+         * First byte of the Ruuvi manufacturer specific data in [payload], -1 when there is none.
+         */
+        internal fun dataFormatOf(payload: ByteArray?): Int {
+            if (payload == null) return -1
+            var offset = 0
+            while (offset < payload.size) {
+                val length = payload[offset].toInt() and 0xFF
+                if (length == 0 || offset + length >= payload.size) return -1
+                if (length >= 4 &&
+                    payload[offset + 1].toInt() and 0xFF == MANUFACTURER_SPECIFIC_DATA &&
+                    payload[offset + 2].toInt() and 0xFF == RUUVI_MANUFACTURER_ID and 0xFF &&
+                    payload[offset + 3].toInt() and 0xFF == RUUVI_MANUFACTURER_ID shr 8
+                ) {
+                    return payload[offset + 4].toInt() and 0xFF
+                }
+                offset += length + 1
+            }
+            return -1
+        }
+    }
+}
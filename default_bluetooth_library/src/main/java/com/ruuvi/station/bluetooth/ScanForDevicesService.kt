@@ -8,8 +8,6 @@ import org.kodein.di.KodeinAware
 import org.kodein.di.android.kodein
 import org.kodein.di.generic.instance
 import timber.log.Timber
-import java.util.*
-import kotlin.concurrent.schedule
 
 class ScanForDevicesService : JobIntentService(), KodeinAware {
 
@@ -20,11 +18,7 @@ class ScanForDevicesService : JobIntentService(), KodeinAware {
 
         Timber.d("onHandleWork")
 
-        bluetoothInteractor.startScan()
-
-        Timer(false).schedule(bluetoothInteractor.getWorkTime()) {
-            bluetoothInteractor.stopScanningFromBackground()
-        }
+        bluetoothInteractor.startBackgroundScanWindow()
     }
 
     companion object {
@@ -0,0 +1,159 @@
+package com.ruuvi.station.bluetooth
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+enum class ScanCounter {
+    /** Scan results that passed the scan filters */
+    RECEIVED,
+    PARSED,
+    /** Ruuvi data in a format the library can't decode */
+    UNKNOWN_FORMAT,
+    PARSE_FAILED,
+    /** Measurements dropped because their sequence number was already delivered */
+    DEDUPLICATED,
+    DELIVERED
+}
+
+enum class ScanLatency {
+    /** From the controller receiving the advertisement to the scan callback */
+    RADIO_TO_CALLBACK,
+    DECODE,
+    /** Time spent in the tag listener */
+    LISTENER,
+    /** From the controller receiving the advertisement until the tag listener returns */
+    RADIO_TO_LISTENER
+}
+
+/**
+ * Latencies counted in power of two buckets: bucket `i` holds values below `2^i` ns.
+ */
+class LatencySnapshot(
+    val count: Long,
+    val totalNanos: Long,
+    val maxNanos: Long,
+    private val buckets: LongArray
+) {
+    val meanNanos: Long
+        get() = if (count > 0) totalNanos / count else 0
+
+    /**
+     * @return upper bound of the bucket holding the given percentile (0-100), at most [maxNanos]
+     */
+    fun percentileNanos(percentile: Double): Long {
+        if (count == 0L) return 0
+        val rank = maxOf(1L, Math.ceil(count * percentile / 100).toLong())
+        var seen = 0L
+        for (i in buckets.indices) {
+            seen += buckets[i]
+            if (seen >= rank) return minOf(maxNanos, if (i >= 63) Long.MAX_VALUE else (1L shl i) - 1)
+        }
+        return maxNanos
+    }
+
+    override fun toString(): String =
+        "LatencySnapshot(count=$count, mean=$meanNanos ns, p50=${percentileNanos(50.0)} ns, " +
+            "p99=${percentileNanos(99.0)} ns, max=$maxNanos ns)"
+}
+
+data class StageMetricsSnapshot(
+    val counters: Map<ScanCounter, Long>,
+    val latencies: Map<ScanLatency, LatencySnapshot>
+)
+
+/**
+ * @param tags metrics per tag MAC address, for at most [ScanMetrics.maxTags] tags
+ */
+data class ScanMetricsSnapshot(
+    val overall: StageMetricsSnapshot,
+    val tags: Map<String, StageMetricsSnapshot>
+)
+
+/**
+ * Counters and latency histograms of the scan path, overall and per tag, in fixed memory per
+ * tag. Recording uses only atomic operations, so the scan callback never waits for a reader.
+ * A snapshot taken while results arrive may mix values from before and after one of them.
+ */
+class ScanMetrics(val maxTags: Int = DEFAULT_MAX_TAGS) {
+    private val overall = StageMetrics()
+    private val tags = ConcurrentHashMap<String, StageMetrics>()
+
+    fun count(counter: ScanCounter, address: String?) {
+        overall.counters.incrementAndGet(counter.ordinal)
+        tagMetrics(address)?.counters?.incrementAndGet(counter.ordinal)
+    }
+
+    fun record(latency: ScanLatency, nanos: Long, address: String?) {
+        if (nanos < 0) return
+        overall.histograms[latency.ordinal].record(nanos)
+        tagMetrics(address)?.histograms?.get(latency.ordinal)?.record(nanos)
+    }
+
+    fun snapshot(): ScanMetricsSnapshot =
+        ScanMetricsSnapshot(overall.snapshot(), tags.mapValues { it.value.snapshot() })
+
+    fun reset() {
+        overall.reset()
+        tags.clear()
+    }
+
+    private fun tagMetrics(address: String?): StageMetrics? {
+        if (address == null) return null
+        tags[address]?.let { return it }
+        if (tags.size >= maxTags) return null
+        val metrics = StageMetrics()
+        return tags.putIfAbsent(address, metrics) ?: metrics
+    }
+
+    private class StageMetrics {
+        val counters = AtomicLongArray(ScanCounter.values().size)
+        val histograms = Array(ScanLatency.values().size) { LatencyHistogram() }
+
+        fun snapshot() = StageMetricsSnapshot(
+            counters = ScanCounter.values().associateWith { counters.get(it.ordinal) },
+            latencies = ScanLatency.values().associateWith { histograms[it.ordinal].snapshot() }
+        )
+
+        fun reset() {
+            for (i in 0 until counters.length()) counters.set(i, 0)
+            histograms.forEach { it.reset() }
+        }
+    }
+
+    private class LatencyHistogram {
+        private val buckets = AtomicLongArray(BUCKETS)
+        private val count = AtomicLong()
+        private val total = AtomicLong()
+        private val max = AtomicLong()
+
+        fun record(nanos: Long) {
+            buckets.incrementAndGet(64 - java.lang.Long.numberOfLeadingZeros(nanos))
+            count.incrementAndGet()
+            total.addAndGet(nanos)
+            var current = max.get()
+            while (nanos > current && !max.compareAndSet(current, nanos)) {
+                current = max.get()
+            }
+        }
+
+        fun snapshot() = LatencySnapshot(
+            count = count.get(),
+            totalNanos = total.get(),
+            maxNanos = max.get(),
+            buckets = LongArray(BUCKETS) { buckets.get(it) }
+        )
+
+        fun reset() {
+            for (i in 0 until BUCKETS) buckets.set(i, 0)
+            count.set(0)
+            total.set(0)
+            max.set(0)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_TAGS = 256
+        private const val BUCKETS = 64
+    }
+}
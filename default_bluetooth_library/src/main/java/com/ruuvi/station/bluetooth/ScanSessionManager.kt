@@ -0,0 +1,299 @@
+package com.ruuvi.station.bluetooth
+
+import com.ruuvi.station.bluetooth.util.Clock
+import com.ruuvi.station.bluetooth.util.LibraryScheduler
+import com.ruuvi.station.bluetooth.util.ScheduledTask
+import com.ruuvi.station.bluetooth.util.SystemClockTime
+import com.ruuvi.station.bluetooth.util.TaskScheduler
+import timber.log.Timber
+
+data class ScanSessionStatistics(
+    val isScanning: Boolean,
+    val starts: Int,
+    val mergedRestarts: Int,
+    val throttledStarts: Int,
+    val stalls: Int,
+    val failures: Int,
+    val uptimeMillis: Long
+)
+
+/**
+ * Starts and stops the BLE scan on behalf of [RuuviTagScanner] without tripping Android's scan
+ * throttling, which silently stops delivering results to apps that start more than
+ * [MAX_STARTS] scans in [START_WINDOW_MILLIS]:
+ *
+ * - a stop followed by a start within [STOP_MERGE_MILLIS] leaves the running scan alone,
+ * - a start over the budget is postponed until the oldest start leaves the window,
+ * - a scan without results for [stallTimeoutMillis] is restarted, within the same budget, unless
+ *   [stallDetectionEnabled] is off,
+ * - a failed scan is restarted after a delay doubling from [FAILURE_BACKOFF_MILLIS] up to
+ *   [MAX_FAILURE_BACKOFF_MILLIS] with every failure in a row.
+ */
+class ScanSessionManager(
+    private val backend: ScanBackend,
+    private val clock: Clock = SystemClockTime,
+    private val scheduler: TaskScheduler = LibraryScheduler,
+    private val stallTimeoutMillis: Long = DEFAULT_STALL_TIMEOUT_MILLIS
+) {
+    /**
+     * The scan itself, started and stopped only by the manager.
+     */
+    interface ScanBackend {
+        /**
+         * @return false when scanning is not possible right now
+         */
+        fun start(): Boolean
+
+        fun stop()
+    }
+
+    private val startTimes = LongArray(MAX_STARTS)
+    private var startCount = 0
+
+    private var requested = false
+    private var running = false
+    private var runningSince = 0L
+    @Volatile
+    private var lastResultAt = 0L
+    private var pendingStop: ScheduledTask? = null
+    private var pendingStart: ScheduledTask? = null
+    private var watchdog: ScheduledTask? = null
+    @Volatile
+    private var consecutiveFailures = 0
+
+    private var starts = 0
+    private var mergedRestarts = 0
+    private var throttledStarts = 0
+    private var stalls = 0
+    private var failures = 0
+    private var uptime = 0L
+
+    val isScanning: Boolean
+        @Synchronized get() = running
+
+    /**
+     * Whether a scan without results is considered stalled. Turn off when the scan filters
+     * match only specific tags, which may all be out of range for a long time.
+     */
+    var stallDetectionEnabled = true
+        @Synchronized get
+        @Synchronized set(value) {
+            if (field == value) return
+            field = value
+            if (!value) {
+                cancelWatchdog()
+            } else if (running) {
+                lastResultAt = clock.elapsedRealtime()
+                scheduleWatchdog()
+            }
+        }
+
+    @Synchronized
+    fun requestStart() {
+        requested = true
+        if (pendingStop != null) {
+            cancelPendingStop()
+            mergedRestarts++
+            Timber.d("Scan restart merged with pending stop")
+            return
+        }
+        if (!running) startWithinBudget()
+    }
+
+    /**
+     * Stops after [STOP_MERGE_MILLIS] unless a start is requested meanwhile.
+     */
+    @Synchronized
+    fun requestStop() {
+        requested = false
+        cancelPendingStart()
+        if (!running || pendingStop != null) return
+        pendingStop = scheduler.schedule(STOP_MERGE_MILLIS) {
+            synchronized(this@ScanSessionManager) {
+                pendingStop = null
+                if (!requested) stopNow()
+            }
+        }
+    }
+
+    /**
+     * Stops right away and forgets pending starts, stops and the watchdog, e.g. before the
+     * scanner is replaced.
+     */
+    @Synchronized
+    fun shutdown() {
+        requested = false
+        cancelPendingStart()
+        cancelPendingStop()
+        stopNow()
+    }
+
+    /**
+     * The backend delivered everything and stopped by itself, e.g. at the end of a replay. Ends
+     * the session without stopping the backend again.
+     */
+    @Synchronized
+    fun onSourceFinished() {
+        requested = false
+        cancelPendingStart()
+        cancelPendingStop()
+        cancelWatchdog()
+        if (!running) return
+        running = false
+        uptime += clock.elapsedRealtime() - runningSince
+    }
+
+    /**
+     * Restarts a running scan, e.g. to apply new filters. Counts against the start budget.
+     */
+    @Synchronized
+    fun restart() {
+        if (!running) return
+        stopNow()
+        if (requested) startWithinBudget()
+    }
+
+    /**
+     * Called for every scan result, so takes the lock only for the first result after a failure.
+     */
+    fun onScanResult() {
+        lastResultAt = clock.elapsedRealtime()
+        if (consecutiveFailures != 0) {
+            synchronized(this) {
+                consecutiveFailures = 0
+            }
+        }
+    }
+
+    @Synchronized
+    fun onScanFailed(errorCode: Int) {
+        Timber.d("Scan failed with error code $errorCode")
+        failures++
+        consecutiveFailures++
+        if (running) stopNow()
+        if (requested) startAfterFailure()
+    }
+
+    @Synchronized
+    fun getStatistics(): ScanSessionStatistics = ScanSessionStatistics(
+        isScanning = running,
+        starts = starts,
+        mergedRestarts = mergedRestarts,
+        throttledStarts = throttledStarts,
+        stalls = stalls,
+        failures = failures,
+        uptimeMillis = uptime + if (running) clock.elapsedRealtime() - runningSince else 0
+    )
+
+    private fun startWithinBudget() {
+        if (pendingStart != null) return
+        val now = clock.elapsedRealtime()
+        val delay = delayUntilStartAllowed(now)
+        if (delay > 0) {
+            throttledStarts++
+            Timber.d("Scan start postponed by $delay ms to avoid throttling")
+            pendingStart = scheduler.schedule(delay) {
+                synchronized(this@ScanSessionManager) {
+                    pendingStart = null
+                    if (requested && !running) startWithinBudget()
+                }
+            }
+            return
+        }
+        if (!backend.start()) {
+            Timber.d("Scan backend can't start")
+            return
+        }
+        startTimes[startCount % MAX_STARTS] = now
+        startCount++
+        starts++
+        running = true
+        runningSince = now
+        lastResultAt = now
+        scheduleWatchdog()
+    }
+
+    private fun startAfterFailure() {
+        cancelPendingStart()
+        val delay = minOf(FAILURE_BACKOFF_MILLIS shl minOf(consecutiveFailures - 1, MAX_BACKOFF_SHIFT), MAX_FAILURE_BACKOFF_MILLIS)
+        Timber.d("Scan restart after failure $consecutiveFailures in $delay ms")
+        pendingStart = scheduler.schedule(delay) {
+            synchronized(this@ScanSessionManager) {
+                pendingStart = null
+                if (requested && !running) startWithinBudget()
+            }
+        }
+    }
+
+    /**
+     * Time until the oldest of the last [MAX_STARTS] starts is [START_WINDOW_MILLIS] old.
+     */
+    private fun delayUntilStartAllowed(now: Long): Long {
+        if (startCount < MAX_STARTS) return 0
+        val oldest = startTimes[startCount % MAX_STARTS]
+        return maxOf(0, oldest + START_WINDOW_MILLIS + START_MARGIN_MILLIS - now)
+    }
+
+    private fun stopNow() {
+        cancelWatchdog()
+        if (!running) return
+        backend.stop()
+        running = false
+        uptime += clock.elapsedRealtime() - runningSince
+    }
+
+    private fun scheduleWatchdog() {
+        if (stallTimeoutMillis <= 0 || !stallDetectionEnabled) return
+        cancelWatchdog()
+        watchdog = scheduler.schedule(stallTimeoutMillis) {
+            synchronized(this@ScanSessionManager) {
+                watchdog = null
+                checkForStall()
+            }
+        }
+    }
+
+    private fun checkForStall() {
+        if (!running || !stallDetectionEnabled) return
+        val silence = clock.elapsedRealtime() - lastResultAt
+        if (silence < stallTimeoutMillis) {
+            watchdog = scheduler.schedule(stallTimeoutMillis - silence) {
+                synchronized(this@ScanSessionManager) {
+                    watchdog = null
+                    checkForStall()
+                }
+            }
+            return
+        }
+        stalls++
+        Timber.d("No scan results for $silence ms, restarting scan")
+        stopNow()
+        if (requested) startWithinBudget()
+    }
+
+    private fun cancelPendingStop() {
+        pendingStop?.cancel()
+        pendingStop = null
+    }
+
+    private fun cancelPendingStart() {
+        pendingStart?.cancel()
+        pendingStart = null
+    }
+
+    private fun cancelWatchdog() {
+        watchdog?.cancel()
+        watchdog = null
+    }
+
+    companion object {
+        const val MAX_STARTS = 5
+        const val START_WINDOW_MILLIS = 30000L
+        const val STOP_MERGE_MILLIS = 1000L
+        const val DEFAULT_STALL_TIMEOUT_MILLIS = 60000L
+        const val FAILURE_BACKOFF_MILLIS = 1000L
+        const val MAX_FAILURE_BACKOFF_MILLIS = 60000L
+        private const val MAX_BACKOFF_SHIFT = 16
+        private const val START_MARGIN_MILLIS = 500L
+    }
+}
@@ -0,0 +1,143 @@
+package com.ruuvi.station.bluetooth
+
+import android.bluetooth.BluetoothAdapter
+import android.bluetooth.BluetoothManager
+import android.content.Context
+import com.ruuvi.station.bluetooth.decoder.LeScanResult
+import com.ruuvi.station.bluetooth.gatt.GattConnectionPool
+import com.ruuvi.station.bluetooth.storage.AdvertisementRecorder
+import com.ruuvi.station.bluetooth.util.LibraryScheduler
+import com.ruuvi.station.bluetooth.util.ScheduledTask
+import timber.log.Timber
+import java.io.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+/**
+ * What [RuuviTagScanner] knows about tags: connectable devices, GATT connections and the last
+ * delivered measurement sequence numbers. Outlives scanner instances, so recreating the scanner
+ * after a Bluetooth restart neither forgets connectable tags nor delivers measurements twice.
+ * Connectable addresses and sequence numbers are also written to [file] a while after they
+ * change, so a new process starts with them.
+ *
+ * @param crashResolver told about every scanned device, when set
+ */
+class ScannerState(
+    context: Context,
+    private val file: File?,
+    val crashResolver: BluetoothCrashResolver? = null
+) {
+    val devices: ConcurrentMap<String, LeScanResult> = ConcurrentHashMap()
+    val connectionPool = GattConnectionPool(context)
+    val sequenceMap: ConcurrentMap<String, Int> = ConcurrentHashMap()
+    val scanMetrics = ScanMetrics()
+
+    /**
+     * Receives every scan result while set, see [RuuviTagScanner.setAdvertisementRecorder].
+     */
+    @Volatile
+    var advertisementRecorder: AdvertisementRecorder? = null
+
+    private var pendingSave: ScheduledTask? = null
+
+    /**
+     * Set while a save is scheduled, read without the lock on every delivered measurement.
+     */
+    @Volatile
+    private var dirty = false
+
+    constructor(context: Context) : this(
+        context,
+        File(context.applicationContext.filesDir, SNAPSHOT_FILE),
+        BluetoothCrashResolver(context)
+    )
+
+    init {
+        if (file != null && file.exists()) {
+            val bluetoothManager = context.getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager?
+            load(file, bluetoothManager?.adapter)
+        }
+    }
+
+    fun onConnectableDevice(result: LeScanResult) {
+        if (devices.put(result.device.address, result) == null) scheduleSave()
+    }
+
+    fun onMeasurementDelivered(id: String, sequenceNumber: Int) {
+        sequenceMap[id] = sequenceNumber
+        if (!dirty) scheduleSave()
+    }
+
+    /**
+     * Writes the snapshot right away, e.g. before the scanner is recreated.
+     */
+    @Synchronized
+    fun save() {
+        dirty = false
+        pendingSave?.cancel()
+        pendingSave = null
+        val file = file ?: return
+        try {
+            file.parentFile?.mkdirs()
+            val temporary = File(file.path + ".tmp")
+            val sequenceNumbers = HashMap(sequenceMap)
+            val addresses = HashSet(devices.keys)
+            addresses.addAll(sequenceNumbers.keys)
+            DataOutputStream(BufferedOutputStream(FileOutputStream(temporary))).use { output ->
+                output.writeInt(VERSION)
+                output.writeInt(addresses.size)
+                for (address in addresses) {
+                    output.writeUTF(address)
+                    output.writeBoolean(devices.containsKey(address))
+                    output.writeInt(sequenceNumbers[address] ?: NO_SEQUENCE_NUMBER)
+                }
+            }
+            if (!temporary.renameTo(file)) {
+                Timber.w("Can't replace scanner state $file")
+            }
+        } catch (e: IOException) {
+            Timber.w(e, "Can't write scanner state to $file")
+        }
+    }
+
+    @Synchronized
+    private fun scheduleSave() {
+        if (file == null || dirty) return
+        dirty = true
+        pendingSave = LibraryScheduler.schedule(SAVE_DELAY_MILLIS) {
+            save()
+        }
+    }
+
+    private fun load(file: File, adapter: BluetoothAdapter?) {
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                if (input.readInt() != VERSION) return
+                val count = input.readInt()
+                if (count < 0 || count > MAX_ENTRIES) return
+                repeat(count) {
+                    val address = input.readUTF()
+                    val connectable = input.readBoolean()
+                    val sequenceNumber = input.readInt()
+                    if (connectable && adapter != null && BluetoothAdapter.checkBluetoothAddress(address)) {
+                        val result = LeScanResult()
+                        result.device = adapter.getRemoteDevice(address)
+                        devices[address] = result
+                    }
+                    if (sequenceNumber != NO_SEQUENCE_NUMBER) sequenceMap[address] = sequenceNumber
+                }
+            }
+            Timber.d("Scanner state restored: ${devices.size} connectable, ${sequenceMap.size} sequence numbers")
+        } catch (e: IOException) {
+            Timber.w(e, "Can't read scanner state from $file")
+        }
+    }
+
+    companion object {
+        private const val SNAPSHOT_FILE = "ruuvi_scanner_state"
+        private const val VERSION = 1
+        private const val NO_SEQUENCE_NUMBER = -1
+        private const val MAX_ENTRIES = 100000
+        private const val SAVE_DELAY_MILLIS = 60000L
+    }
+}
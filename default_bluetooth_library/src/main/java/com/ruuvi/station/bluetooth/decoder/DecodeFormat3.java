@@ -1,8 +1,7 @@
 package com.ruuvi.station.bluetooth.decoder;
 
 import com.ruuvi.station.bluetooth.FoundRuuviTag;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import static com.ruuvi.station.bluetooth.decoder.DecoderUtils.round;
 
 public class DecodeFormat3 implements LeScanResult.RuuviTagDecoder {
     @Override
@@ -42,12 +41,4 @@ public class DecodeFormat3 implements LeScanResult.RuuviTagDecoder {
         tag.setAccelZ(round(tag.getAccelZ() != null ? tag.getAccelZ() : 0.0, 4));
         return tag;
     }
-
-    private static double round(double value, int places) {
-        if (places < 0) throw new IllegalArgumentException();
-
-        BigDecimal bd = new BigDecimal(value);
-        bd = bd.setScale(places, RoundingMode.HALF_UP);
-        return bd.doubleValue();
-    }
 }
@@ -1,9 +1,8 @@
 package com.ruuvi.station.bluetooth.decoder;
 
 import com.ruuvi.station.bluetooth.FoundRuuviTag;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import static com.ruuvi.station.bluetooth.decoder.FoundRuuviTagKt.validateValues;
+import static com.ruuvi.station.bluetooth.decoder.DecoderUtils.round;
 
 public class DecodeFormat5 implements LeScanResult.RuuviTagDecoder {
     // offset = 7
@@ -40,12 +39,4 @@ public class DecodeFormat5 implements LeScanResult.RuuviTagDecoder {
         tag.setAccelZ(round(tag.getAccelZ() != null ? tag.getAccelZ() : 0.0, 4));
         return validateValues(tag);
     }
-
-    private static double round(double value, int places) {
-        if (places < 0) throw new IllegalArgumentException();
-
-        BigDecimal bd = new BigDecimal(value);
-        bd = bd.setScale(places, RoundingMode.HALF_UP);
-        return bd.doubleValue();
-    }
 }
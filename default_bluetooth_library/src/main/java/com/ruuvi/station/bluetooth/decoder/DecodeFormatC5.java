@@ -1,12 +1,10 @@
 package com.ruuvi.station.bluetooth.decoder;
 
+import static com.ruuvi.station.bluetooth.decoder.DecoderUtils.round;
 import static com.ruuvi.station.bluetooth.decoder.FoundRuuviTagKt.validateValues;
 
 import com.ruuvi.station.bluetooth.FoundRuuviTag;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-
 public class DecodeFormatC5 implements LeScanResult.RuuviTagDecoder {
     @Override
     public FoundRuuviTag decode(byte[] data, int offset) {
@@ -37,12 +35,4 @@ public class DecodeFormatC5 implements LeScanResult.RuuviTagDecoder {
         tag.setAccelZ(round(tag.getAccelZ() != null ? tag.getAccelZ() : 0.0, 4));
         return validateValues(tag);
     }
-
-    private static double round(double value, int places) {
-        if (places < 0) throw new IllegalArgumentException();
-
-        BigDecimal bd = new BigDecimal(value);
-        bd = bd.setScale(places, RoundingMode.HALF_UP);
-        return bd.doubleValue();
-    }
 }
\ No newline at end of file
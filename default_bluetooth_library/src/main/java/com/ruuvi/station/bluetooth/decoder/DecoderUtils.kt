@@ -2,35 +2,33 @@ package com.ruuvi.station.bluetooth.decoder
 
 class DecoderUtils {
     companion object {
-        @OptIn(ExperimentalUnsignedTypes::class)
+        /**
+         * Index of the first byte after the Ruuvi manufacturer data header FF 99 04, null when
+         * there is none.
+         */
         fun getActualDataOffset(rawData: ByteArray): Int? {
-            var byte0Find = false
-            var byte1Find = false
-            rawData.toUByteArray().forEachIndexed { index, byte ->
-                if (byte0Find) {
-                    if (byte1Find) {
-                        if (byte == byte2) {
-                            return index + 1
-                        } else {
-                            byte0Find = false
-                            byte1Find = false
-                        }
-                    } else {
-                        if (byte == byte1) {
-                            byte1Find = true
-                        } else {
-                            byte0Find = false
-                        }
-                    }
-                } else {
-                    if (byte == byte0) {
-                        byte0Find = true
-                    }
+            for (index in 0 until rawData.size - 2) {
+                if (rawData[index].toUByte() == byte0 && rawData[index + 1].toUByte() == byte1 && rawData[index + 2].toUByte() == byte2) {
+                    return index + 3
                 }
             }
             return null
         }
 
+        /**
+         * Rounds [value] half up to [places] decimals like BigDecimal.setScale would, without
+         * allocating. Same result as BigDecimal for the decoded values, which have at most
+         * [places] decimals and differ from them only by binary representation error.
+         */
+        @JvmStatic
+        fun round(value: Double, places: Int): Double {
+            require(places >= 0)
+            val scale = POWERS_OF_TEN[places]
+            return if (value < 0) -Math.round(-value * scale) / scale else Math.round(value * scale) / scale
+        }
+
+        private val POWERS_OF_TEN = DoubleArray(10) { Math.pow(10.0, it.toDouble()) }
+
         const val byte0: UByte = 255u // 0xFF
         const val byte1: UByte = 153u // 0x99
         const val byte2: UByte = 4u   // 0x04
@@ -1,54 +1,95 @@
 package com.ruuvi.station.bluetooth.decoder;
 
 import android.bluetooth.BluetoothDevice;
-import com.neovisionaries.bluetooth.ble.advertising.ADManufacturerSpecific;
-import com.neovisionaries.bluetooth.ble.advertising.ADPayloadParser;
-import com.neovisionaries.bluetooth.ble.advertising.ADStructure;
-import com.neovisionaries.bluetooth.ble.advertising.EddystoneURL;
 import com.ruuvi.station.bluetooth.FoundRuuviTag;
 import java.io.ByteArrayOutputStream;
-import java.util.List;
 import timber.log.Timber;
 
 
 public class LeScanResult {
     private static final Integer PROTOCOL_OFFSET = 7;
+    private static final int MANUFACTURER_SPECIFIC_DATA = 0xFF;
+    private static final int SERVICE_DATA_16_BIT = 0x16;
+    private static final int RUUVI_COMPANY_ID = 0x0499;
+    private static final int EDDYSTONE_UUID = 0xFEAA;
+    private static final int EDDYSTONE_URL_FRAME = 0x10;
+    private static final String[] URL_SCHEMES = {"http://www.", "https://www.", "http://", "https://"};
+    private static final String[] URL_EXPANSIONS = {
+            ".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+            ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"};
     public BluetoothDevice device;
+    /**
+     * MAC address of the advertiser, used instead of {@link #device} when set, e.g. for
+     * replayed advertisements that have no BluetoothDevice.
+     */
+    public String address;
     public byte[] scanData;
     public int rssi;
+    /**
+     * When the advertisement was received, ScanResult.getTimestampNanos() in the
+     * SystemClock.elapsedRealtimeNanos() time base.
+     */
+    public long timestampNanos;
+    /**
+     * Outcome of the last {@link #parse()}.
+     */
+    public ParseStatus parseStatus = ParseStatus.NOT_PARSED;
+
+    public enum ParseStatus {
+        NOT_PARSED,
+        PARSED,
+        /** No Ruuvi manufacturer data or Ruuvi Eddystone URL */
+        NOT_RUUVI,
+        /** Ruuvi data in a format that no decoder exists for */
+        UNKNOWN_FORMAT,
+        /** Ruuvi data in a known format that couldn't be decoded, e.g. a truncated packet */
+        FAILED
+    }
 
     public FoundRuuviTag parse() {
         FoundRuuviTag tag = null;
+        boolean ruuviData = false;
+        boolean knownFormat = false;
 
         try {
-            // Parse the payload of the advertisement packet
-            // as a list of AD structures.
-            List<ADStructure> structures =
-                    ADPayloadParser.getInstance().parse(this.scanData);
-
-            // For each AD structure contained in the advertisement packet.
-            for (ADStructure structure : structures) {
-                if (structure instanceof EddystoneURL) {
-                    // Eddystone URL
-                    EddystoneURL es = (EddystoneURL) structure;
-                    if (es.getURL().toString().startsWith("https://ruu.vi/#") || es.getURL().toString().startsWith("https://r/")) {
-                        tag = from(
-                                this.device.getAddress(),
-                                es.getURL().toString(),
-                                null,
-                                this.rssi
-                        );
-                    }
-                }
-                // If the AD structure represents Eddystone TLM.
-                else if (structure instanceof ADManufacturerSpecific) {
-                    ADManufacturerSpecific es = (ADManufacturerSpecific) structure;
-                    if (es.getCompanyId() == 0x0499) {
-                        tag = from(this.device.getAddress(), null, this.scanData, this.rssi);
+            String id = address != null ? address : device.getAddress();
+            byte[] data = this.scanData;
+            // Walks the AD structures of the advertisement looking for the two Ruuvi ones,
+            // without building an object for each structure
+            int position = 0;
+            while (position < data.length) {
+                int length = data[position] & 0xff;
+                if (length == 0 || position + 1 + length > data.length) break;
+                int type = data[position + 1] & 0xff;
+                int start = position + 2;
+                int end = position + 1 + length;
+                if (type == MANUFACTURER_SPECIFIC_DATA && end - start >= 2
+                        && littleEndianShort(data, start) == RUUVI_COMPANY_ID) {
+                    ruuviData = true;
+                    knownFormat = isKnownFormat(data);
+                    tag = from(id, null, data, this.rssi);
+                } else if (type == SERVICE_DATA_16_BIT && end - start >= 5
+                        && littleEndianShort(data, start) == EDDYSTONE_UUID
+                        && (data[start + 2] & 0xff) == EDDYSTONE_URL_FRAME) {
+                    // frame type and TX power precede the URL
+                    String url = eddystoneUrl(data, start + 4, end);
+                    if (url != null && (url.startsWith("https://ruu.vi/#") || url.startsWith("https://r/"))) {
+                        // from() has no offset for URL data, so formats 2 and 4 never decode
+                        ruuviData = true;
+                        tag = from(id, url, null, this.rssi);
                     }
                 }
+                position = end;
+            }
+            if (tag != null) {
+                parseStatus = ParseStatus.PARSED;
+            } else if (!ruuviData) {
+                parseStatus = ParseStatus.NOT_RUUVI;
+            } else {
+                parseStatus = knownFormat ? ParseStatus.FAILED : ParseStatus.UNKNOWN_FORMAT;
             }
         } catch (Exception e) {
+            parseStatus = ParseStatus.FAILED;
             Timber.e(e,"Parsing ble data failed");
         }
 
@@ -64,7 +105,7 @@ public class LeScanResult {
             decoder = new DecodeFormat2and4();
         } else if (rawData != null) {
             offset = DecoderUtils.Companion.getActualDataOffset(rawData);
-            if (offset != null) {
+            if (offset != null && offset < rawData.length) {
                 int protocolVersion = rawData[offset] & 0xff;
                 switch (protocolVersion) {
                     case 3:
@@ -76,12 +117,12 @@ public class LeScanResult {
                     case 0xC5:
                         decoder = new DecodeFormatC5();
                         break;
-                    default: {
-                        Timber.d("Unknown tag protocol version: %1$s (PROTOCOL_OFFSET: %2$s) sensor %3$s", protocolVersion, offset, id);
-                    }
+                    default:
+                        // Runs for every packet of such a tag; counted in ScanMetrics instead of logged
+                        break;
                 }
-            } else {
-                Timber.d("Offset not found");
+                // a truncated packet would decode from whatever follows it
+                if (payloadLength(rawData, offset) < minimumLength(protocolVersion)) return null;
             }
         }
         if (decoder != null && offset != null) {
@@ -96,6 +137,66 @@ public class LeScanResult {
         return null;
     }
 
+    private static int littleEndianShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+    }
+
+    /**
+     * Expands an Eddystone URL from its scheme byte at offset to end, null for an unknown
+     * scheme.
+     */
+    private static String eddystoneUrl(byte[] data, int offset, int end) {
+        int scheme = data[offset] & 0xff;
+        if (scheme >= URL_SCHEMES.length) return null;
+        StringBuilder url = new StringBuilder(URL_SCHEMES[scheme]);
+        for (int i = offset + 1; i < end; i++) {
+            int c = data[i] & 0xff;
+            if (c < URL_EXPANSIONS.length) {
+                url.append(URL_EXPANSIONS[c]);
+            } else {
+                url.append((char) c);
+            }
+        }
+        return url.toString();
+    }
+
+    /**
+     * @return whether the Ruuvi manufacturer data in rawData has a data format with a decoder
+     */
+    private static boolean isKnownFormat(byte[] rawData) {
+        Integer offset = DecoderUtils.Companion.getActualDataOffset(rawData);
+        return offset != null && offset < rawData.length && minimumLength(rawData[offset] & 0xff) > 0;
+    }
+
+    /**
+     * @return bytes the decoder of the data format reads, 0 for formats without a decoder
+     */
+    private static int minimumLength(int protocolVersion) {
+        switch (protocolVersion) {
+            case 3:
+                return 14;
+            case 5:
+                return 18;
+            case 0xC5:
+                return 12;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Bytes of manufacturer data from offset on. Scan records are zero-padded, so when the AD
+     * structure header is there, its length is used rather than the length of rawData.
+     */
+    private static int payloadLength(byte[] rawData, int offset) {
+        int available = rawData.length - offset;
+        if (offset >= 4) {
+            // length, type 0xFF and company id 0x0499 precede the payload
+            available = Math.min(available, (rawData[offset - 4] & 0xff) - 3);
+        }
+        return available;
+    }
+
     private static byte[] parseByteDataFromB64(String data) {
         try {
             byte[] bData = decode(data);
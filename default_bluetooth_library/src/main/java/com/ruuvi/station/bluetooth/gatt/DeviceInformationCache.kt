@@ -0,0 +1,74 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import android.content.Context
+import android.content.SharedPreferences
+import timber.log.Timber
+
+/**
+ * Device Information service values of each tag and whether its firmware supports log reading.
+ * Lets a repeat connection read only the firmware revision: when it matches the cached one the
+ * rest of the service and the firmware version parsing are skipped.
+ */
+class DeviceInformationCache(private val preferences: SharedPreferences) {
+
+    fun get(macAddress: String): DeviceInformation? {
+        val key = keyOf(macAddress)
+        val firmware = preferences.getString(key + FIRMWARE, null) ?: return null
+        val model = preferences.getString(key + MODEL, null) ?: return null
+        val manufacturer = preferences.getString(key + MANUFACTURER, null) ?: return null
+        return DeviceInformation(
+            model = model,
+            firmware = firmware,
+            manufacturer = manufacturer,
+            serialNumber = preferences.getString(key + SERIAL_NUMBER, null),
+            canReadLogs = preferences.getBoolean(key + CAN_READ_LOGS, false),
+            fromCache = true
+        )
+    }
+
+    fun put(macAddress: String, info: DeviceInformation) {
+        val key = keyOf(macAddress)
+        preferences.edit()
+            .putString(key + FIRMWARE, info.firmware)
+            .putString(key + MODEL, info.model)
+            .putString(key + MANUFACTURER, info.manufacturer)
+            .putString(key + SERIAL_NUMBER, info.serialNumber)
+            .putBoolean(key + CAN_READ_LOGS, info.canReadLogs ?: LogSyncSession.canReadLogs(info.firmware))
+            .apply()
+    }
+
+    fun invalidate(macAddress: String) {
+        Timber.d("$macAddress device information invalidated")
+        val key = keyOf(macAddress)
+        preferences.edit()
+            .remove(key + FIRMWARE)
+            .remove(key + MODEL)
+            .remove(key + MANUFACTURER)
+            .remove(key + SERIAL_NUMBER)
+            .remove(key + CAN_READ_LOGS)
+            .apply()
+    }
+
+    private fun keyOf(macAddress: String) = macAddress.replace(":", "")
+
+    companion object {
+        private const val PREFERENCES_NAME = "ruuvi_device_information"
+        private const val FIRMWARE = ".firmware"
+        private const val MODEL = ".model"
+        private const val MANUFACTURER = ".manufacturer"
+        private const val SERIAL_NUMBER = ".serial"
+        private const val CAN_READ_LOGS = ".canReadLogs"
+
+        @Volatile
+        private var instance: DeviceInformationCache? = null
+
+        fun get(context: Context): DeviceInformationCache =
+            instance ?: synchronized(this) {
+                instance ?: DeviceInformationCache(
+                    context.applicationContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                ).also {
+                    instance = it
+                }
+            }
+    }
+}
@@ -0,0 +1,174 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import android.bluetooth.BluetoothDevice
+import android.content.Context
+import com.ruuvi.station.bluetooth.util.LibraryScheduler
+import com.ruuvi.station.bluetooth.util.ScheduledTask
+import com.ruuvi.station.bluetooth.util.TaskScheduler
+import timber.log.Timber
+
+data class ConnectionPoolStatistics(
+    val liveManagers: Int,
+    val connectedSessions: Int,
+    val hits: Long,
+    val misses: Long,
+    val evictions: Long,
+    val idleDisconnects: Long,
+    val connects: Long,
+    val lastConnectLatencyMillis: Long,
+    val averageConnectLatencyMillis: Long,
+    val closedSessions: Long,
+    val averageSessionLifetimeMillis: Long,
+    val longestSessionLifetimeMillis: Long
+)
+
+/**
+ * Keeps one [NordicGattManager] per tag and reuses its connection for operations issued
+ * back to back. A connection is closed after [idleTimeoutMillis] without operations, and at most
+ * [maxManagers] managers are kept, evicting the least recently used idle one.
+ */
+class GattConnectionPool(
+    private val context: Context,
+    private val idleTimeoutMillis: Long = DEFAULT_IDLE_TIMEOUT_MILLIS,
+    private val maxManagers: Int = DEFAULT_MAX_MANAGERS,
+    private val scheduler: TaskScheduler = LibraryScheduler
+) {
+    private val managers = LinkedHashMap<String, NordicGattManager>(16, 0.75f, true)
+    private val idleTimeouts = HashMap<String, ScheduledTask>()
+
+    private var hits = 0L
+    private var misses = 0L
+    private var evictions = 0L
+    private var idleDisconnects = 0L
+    private var connects = 0L
+    private var lastConnectLatency = 0L
+    private var totalConnectLatency = 0L
+    private var closedSessions = 0L
+    private var totalSessionLifetime = 0L
+    private var longestSessionLifetime = 0L
+
+    private val observer = object : NordicGattManager.SessionObserver {
+        override fun onSessionReady(manager: NordicGattManager, connectLatencyMillis: Long) {
+            synchronized(this@GattConnectionPool) {
+                connects++
+                lastConnectLatency = connectLatencyMillis
+                totalConnectLatency += connectLatencyMillis
+            }
+        }
+
+        override fun onOperationFinished(manager: NordicGattManager): Boolean {
+            if (idleTimeoutMillis <= 0) return false
+            scheduleIdleTimeout(manager.device.address)
+            return true
+        }
+
+        override fun onSessionClosed(manager: NordicGattManager, lifetimeMillis: Long) {
+            synchronized(this@GattConnectionPool) {
+                closedSessions++
+                totalSessionLifetime += lifetimeMillis
+                if (lifetimeMillis > longestSessionLifetime) longestSessionLifetime = lifetimeMillis
+                cancelIdleTimeout(manager.device.address)
+            }
+        }
+    }
+
+    /**
+     * Manager for [device] ready for a new operation. Counts as a hit when its connection is
+     * still open.
+     */
+    @Synchronized
+    fun acquire(device: BluetoothDevice): NordicGattManager {
+        val macAddress = device.address
+        cancelIdleTimeout(macAddress)
+        var manager = managers[macAddress]
+        if (manager != null && manager.isReady) {
+            hits++
+            Timber.d("$macAddress pool hit")
+            return manager
+        }
+        misses++
+        if (manager == null) {
+            evictIfFull()
+            manager = NordicGattManager(context, device)
+            manager.sessionObserver = observer
+            managers[macAddress] = manager
+        }
+        return manager
+    }
+
+    @Synchronized
+    fun get(macAddress: String): NordicGattManager? = managers[macAddress]
+
+    /**
+     * Ends the current operation of the tag and closes its connection right away.
+     */
+    @Synchronized
+    fun disconnect(macAddress: String): Boolean {
+        cancelIdleTimeout(macAddress)
+        val manager = managers[macAddress] ?: return false
+        manager.executeDisconnect()
+        return true
+    }
+
+    @Synchronized
+    fun getStatistics() = ConnectionPoolStatistics(
+        liveManagers = managers.size,
+        connectedSessions = managers.values.count { it.isConnected },
+        hits = hits,
+        misses = misses,
+        evictions = evictions,
+        idleDisconnects = idleDisconnects,
+        connects = connects,
+        lastConnectLatencyMillis = lastConnectLatency,
+        averageConnectLatencyMillis = if (connects > 0) totalConnectLatency / connects else 0,
+        closedSessions = closedSessions,
+        averageSessionLifetimeMillis = if (closedSessions > 0) totalSessionLifetime / closedSessions else 0,
+        longestSessionLifetimeMillis = longestSessionLifetime
+    )
+
+    private fun evictIfFull() {
+        if (managers.size < maxManagers) return
+        val iterator = managers.entries.iterator()
+        while (iterator.hasNext()) {
+            val (macAddress, manager) = iterator.next()
+            if (!manager.isBusy) {
+                Timber.d("$macAddress evicted from pool")
+                cancelIdleTimeout(macAddress)
+                manager.close()
+                iterator.remove()
+                evictions++
+                return
+            }
+        }
+        Timber.d("Connection pool is full of busy managers (${managers.size})")
+    }
+
+    @Synchronized
+    private fun scheduleIdleTimeout(macAddress: String) {
+        cancelIdleTimeout(macAddress)
+        lateinit var timeout: ScheduledTask
+        timeout = scheduler.schedule(idleTimeoutMillis) {
+            synchronized(this@GattConnectionPool) {
+                // a newer timeout or an acquire may have replaced this one
+                if (idleTimeouts[macAddress] !== timeout) return@schedule
+                idleTimeouts.remove(macAddress)
+                val manager = managers[macAddress]
+                if (manager != null && !manager.isBusy) {
+                    Timber.d("$macAddress idle for $idleTimeoutMillis ms, disconnecting")
+                    idleDisconnects++
+                    manager.disconnectNow()
+                }
+            }
+        }
+        idleTimeouts[macAddress] = timeout
+    }
+
+    private fun cancelIdleTimeout(macAddress: String) {
+        idleTimeouts.remove(macAddress)?.cancel()
+    }
+
+    companion object {
+        const val DEFAULT_IDLE_TIMEOUT_MILLIS = 10000L
+        const val DEFAULT_MAX_MANAGERS = 8
+    }
+}
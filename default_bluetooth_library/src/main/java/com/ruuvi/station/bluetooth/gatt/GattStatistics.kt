@@ -0,0 +1,129 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import android.os.Build
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Throughput of one log transfer, measured from the read command to the end-of-logs marker.
+ *
+ * @param timeToFirstRecordMillis from the log request, including connecting and reading the
+ * Device Information service, to the first log record
+ * @param deviceInformationFromCache whether the Device Information service read was skipped
+ */
+data class LogSyncMetrics(
+    val deviceId: String,
+    val mtu: Int,
+    val notifications: Int,
+    val records: Int,
+    val readings: Int,
+    val bytes: Long,
+    val durationMillis: Long,
+    val timeToFirstRecordMillis: Long = 0,
+    val deviceInformationFromCache: Boolean = false
+) {
+    val bytesPerSecond: Double
+        get() = perSecond(bytes.toDouble())
+
+    val recordsPerSecond: Double
+        get() = perSecond(records.toDouble())
+
+    val notificationsPerSecond: Double
+        get() = perSecond(notifications.toDouble())
+
+    private fun perSecond(value: Double): Double =
+        if (durationMillis > 0) value * 1000.0 / durationMillis else 0.0
+}
+
+/**
+ * Connection parameters negotiated with tags from one phone model and Android version.
+ */
+data class ConnectionTuningRecord(
+    val phoneModel: String,
+    val androidSdk: Int,
+    val sessions: Int,
+    val lastMtu: Int,
+    val lastInterval: Int,
+    val lastLatency: Int,
+    val lastSupervisionTimeout: Int,
+    val lastTxPhy: Int,
+    val lastRxPhy: Int,
+    val syncs: Int,
+    val syncedBytes: Long,
+    val syncMillis: Long,
+    val bestBytesPerSecond: Double
+) {
+    val averageBytesPerSecond: Double
+        get() = if (syncMillis > 0) syncedBytes * 1000.0 / syncMillis else 0.0
+}
+
+object GattStatistics {
+    private val syncMetrics = ConcurrentHashMap<String, LogSyncMetrics>()
+    private val tuning = HashMap<String, ConnectionTuningRecord>()
+
+    val phoneModel: String
+        get() = "${Build.MANUFACTURER} ${Build.MODEL}"
+
+    fun getSyncMetrics(macAddress: String): LogSyncMetrics? = syncMetrics[macAddress]
+
+    fun getConnectionTuning(): List<ConnectionTuningRecord> = synchronized(tuning) {
+        tuning.values.toList()
+    }
+
+    fun clear() {
+        syncMetrics.clear()
+        synchronized(tuning) {
+            tuning.clear()
+        }
+    }
+
+    internal fun onSessionTuned(mtu: Int, interval: Int, latency: Int, timeout: Int, txPhy: Int, rxPhy: Int) {
+        updateTuning { current ->
+            current.copy(
+                sessions = current.sessions + 1,
+                lastMtu = mtu,
+                lastInterval = interval,
+                lastLatency = latency,
+                lastSupervisionTimeout = timeout,
+                lastTxPhy = txPhy,
+                lastRxPhy = rxPhy
+            )
+        }
+    }
+
+    internal fun onSyncFinished(metrics: LogSyncMetrics) {
+        syncMetrics[metrics.deviceId] = metrics
+        updateTuning { current ->
+            current.copy(
+                syncs = current.syncs + 1,
+                syncedBytes = current.syncedBytes + metrics.bytes,
+                syncMillis = current.syncMillis + metrics.durationMillis,
+                bestBytesPerSecond = maxOf(current.bestBytesPerSecond, metrics.bytesPerSecond)
+            )
+        }
+    }
+
+    private fun updateTuning(update: (ConnectionTuningRecord) -> ConnectionTuningRecord) {
+        val key = tuningKey()
+        synchronized(tuning) {
+            tuning[key] = update(tuning[key] ?: emptyRecord())
+        }
+    }
+
+    private fun tuningKey() = "$phoneModel/${Build.VERSION.SDK_INT}"
+
+    private fun emptyRecord() = ConnectionTuningRecord(
+        phoneModel = phoneModel,
+        androidSdk = Build.VERSION.SDK_INT,
+        sessions = 0,
+        lastMtu = 0,
+        lastInterval = 0,
+        lastLatency = 0,
+        lastSupervisionTimeout = 0,
+        lastTxPhy = 0,
+        lastRxPhy = 0,
+        syncs = 0,
+        syncedBytes = 0,
+        syncMillis = 0,
+        bestBytesPerSecond = 0.0
+    )
+}
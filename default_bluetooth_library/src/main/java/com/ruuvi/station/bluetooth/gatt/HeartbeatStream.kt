@@ -0,0 +1,116 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import com.ruuvi.station.bluetooth.FoundRuuviTag
+import com.ruuvi.station.bluetooth.decoder.DecodeFormat5
+import timber.log.Timber
+
+/**
+ * Arrival statistics of the heartbeat frames of one streaming session.
+ *
+ * @param lostFrames frames missing from the measurement sequence numbers
+ */
+data class StreamingMetrics(
+    val deviceId: String,
+    val frames: Long,
+    val lostFrames: Long,
+    val duplicateFrames: Long,
+    val durationMillis: Long,
+    val lastInterArrivalMillis: Double,
+    val meanInterArrivalMillis: Double,
+    val maxInterArrivalMillis: Double
+) {
+    val framesPerSecond: Double
+        get() = if (durationMillis > 0) frames * 1000.0 / durationMillis else 0.0
+
+    val lossRate: Double
+        get() = if (frames + lostFrames > 0) lostFrames.toDouble() / (frames + lostFrames) else 0.0
+}
+
+/**
+ * Decodes heartbeat notifications, which carry a data format 5 payload, into [FoundRuuviTag]s
+ * and tracks inter-arrival time and sequence number gaps.
+ */
+class HeartbeatStream(private val deviceId: String) {
+    private val decoder = DecodeFormat5()
+
+    private var frames = 0L
+    private var lostFrames = 0L
+    private var duplicateFrames = 0L
+    private var firstArrival = 0L
+    private var lastArrival = 0L
+    private var lastInterArrival = 0L
+    private var maxInterArrival = 0L
+    private var lastSequenceNumber = -1
+
+    /**
+     * @return decoded reading, or null for a frame that is too short or repeats the previous
+     * measurement
+     */
+    fun decode(data: ByteArray): FoundRuuviTag? {
+        if (data.size < FORMAT_5_LENGTH) {
+            Timber.d("$deviceId heartbeat too short (${data.size} bytes)")
+            return null
+        }
+        val now = System.nanoTime()
+        val tag = decoder.decode(data, 0)
+        tag.id = deviceId
+        tag.connectable = true
+
+        val sequenceNumber = tag.measurementSequenceNumber
+        if (sequenceNumber != null && sequenceNumber != INVALID_SEQUENCE_NUMBER) {
+            if (lastSequenceNumber >= 0) {
+                val gap = (sequenceNumber - lastSequenceNumber) and SEQUENCE_MASK
+                if (gap == 0) {
+                    duplicateFrames++
+                    return null
+                }
+                // a large jump backwards is a tag reboot rather than lost frames
+                if (gap in 2 until MAX_COUNTED_GAP) lostFrames += gap - 1
+            }
+            lastSequenceNumber = sequenceNumber
+        }
+
+        if (frames == 0L) {
+            firstArrival = now
+        } else {
+            lastInterArrival = now - lastArrival
+            if (lastInterArrival > maxInterArrival) maxInterArrival = lastInterArrival
+        }
+        lastArrival = now
+        frames++
+        return tag
+    }
+
+    fun getMetrics(): StreamingMetrics {
+        val duration = lastArrival - firstArrival
+        return StreamingMetrics(
+            deviceId = deviceId,
+            frames = frames,
+            lostFrames = lostFrames,
+            duplicateFrames = duplicateFrames,
+            durationMillis = duration / NANOS_IN_MILLI,
+            lastInterArrivalMillis = lastInterArrival.toDouble() / NANOS_IN_MILLI,
+            meanInterArrivalMillis = if (frames > 1) duration.toDouble() / (frames - 1) / NANOS_IN_MILLI else 0.0,
+            maxInterArrivalMillis = maxInterArrival.toDouble() / NANOS_IN_MILLI
+        )
+    }
+
+    fun clear() {
+        frames = 0
+        lostFrames = 0
+        duplicateFrames = 0
+        firstArrival = 0
+        lastArrival = 0
+        lastInterArrival = 0
+        maxInterArrival = 0
+        lastSequenceNumber = -1
+    }
+
+    companion object {
+        private const val FORMAT_5_LENGTH = 18
+        private const val INVALID_SEQUENCE_NUMBER = 0xFFFF
+        private const val SEQUENCE_MASK = 0xFFFF
+        private const val MAX_COUNTED_GAP = 0x8000
+        private const val NANOS_IN_MILLI = 1000000L
+    }
+}
@@ -0,0 +1,176 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import java.util.*
+
+/**
+ * Options for a single log sync.
+ *
+ * @param aggregateResolutionsSeconds bucket sizes for min/max/mean/count aggregates, e.g. 900,
+ * 3600 and 86400. Buckets are aligned to multiples of the resolution since the epoch (UTC).
+ * Empty to skip aggregation.
+ * @param deliverRawReadings when false [com.ruuvi.station.bluetooth.IRuuviGattListener.dataReady]
+ * receives an empty list and readings are dropped as soon as they are aggregated.
+ */
+data class LogSyncOptions(
+    val aggregateResolutionsSeconds: List<Long> = emptyList(),
+    val deliverRawReadings: Boolean = true
+)
+
+interface LogAggregatesListener {
+    /**
+     * Called before [com.ruuvi.station.bluetooth.IRuuviGattListener.dataReady] when a sync
+     * with aggregation finishes. Aggregates are ordered by resolution, then by start time.
+     */
+    fun aggregatesReady(deviceId: String, aggregates: List<LogAggregate>)
+}
+
+data class AggregateValue(
+    val min: Double,
+    val max: Double,
+    val mean: Double,
+    val count: Int
+)
+
+data class LogAggregate(
+    val resolutionSeconds: Long,
+    val start: Date,
+    val temperature: AggregateValue?,
+    val humidity: AggregateValue?,
+    val pressure: AggregateValue?
+)
+
+/**
+ * Streaming min/max/mean/count aggregation of log readings at several resolutions. Buckets are
+ * kept in primitive arrays, so adding a reading does not allocate unless a bucket array grows.
+ */
+class LogAggregator(resolutionsSeconds: List<Long>) {
+    private val series = resolutionsSeconds.distinct().sorted().map { BucketSeries(it) }
+
+    fun add(timestampSeconds: Long, temperature: Double?, humidity: Double?, pressure: Double?) {
+        for (bucketSeries in series) {
+            val slot = bucketSeries.slotFor(timestampSeconds)
+            temperature?.let { bucketSeries.add(slot, TEMPERATURE, it) }
+            humidity?.let { bucketSeries.add(slot, HUMIDITY, it) }
+            pressure?.let { bucketSeries.add(slot, PRESSURE, it) }
+        }
+    }
+
+    fun getAggregates(): List<LogAggregate> {
+        val aggregates = mutableListOf<LogAggregate>()
+        for (bucketSeries in series) {
+            bucketSeries.collect(aggregates)
+        }
+        return aggregates
+    }
+
+    fun clear() {
+        series.forEach { it.clear() }
+    }
+
+    private class BucketSeries(private val resolution: Long) {
+        private var size = 0
+        private var starts = LongArray(INITIAL_CAPACITY)
+        private var counts = IntArray(INITIAL_CAPACITY * FIELDS)
+        private var mins = DoubleArray(INITIAL_CAPACITY * FIELDS)
+        private var maxs = DoubleArray(INITIAL_CAPACITY * FIELDS)
+        private var sums = DoubleArray(INITIAL_CAPACITY * FIELDS)
+        private var lastSlot = -1
+
+        /**
+         * Logs arrive in time order, so the bucket of the previous reading is checked first.
+         */
+        fun slotFor(timestampSeconds: Long): Int {
+            val start = timestampSeconds - ((timestampSeconds % resolution) + resolution) % resolution
+            if (lastSlot >= 0 && starts[lastSlot] == start) return lastSlot
+
+            var slot = Arrays.binarySearch(starts, 0, size, start)
+            if (slot < 0) {
+                slot = -slot - 1
+                insert(slot, start)
+            }
+            lastSlot = slot
+            return slot
+        }
+
+        fun add(slot: Int, field: Int, value: Double) {
+            val index = slot * FIELDS + field
+            if (counts[index] == 0) {
+                mins[index] = value
+                maxs[index] = value
+            } else {
+                if (value < mins[index]) mins[index] = value
+                if (value > maxs[index]) maxs[index] = value
+            }
+            sums[index] += value
+            counts[index]++
+        }
+
+        fun collect(target: MutableList<LogAggregate>) {
+            for (slot in 0 until size) {
+                target.add(
+                    LogAggregate(
+                        resolutionSeconds = resolution,
+                        start = Date(starts[slot] * 1000),
+                        temperature = valueOf(slot, TEMPERATURE),
+                        humidity = valueOf(slot, HUMIDITY),
+                        pressure = valueOf(slot, PRESSURE)
+                    )
+                )
+            }
+        }
+
+        fun clear() {
+            size = 0
+            lastSlot = -1
+            Arrays.fill(counts, 0)
+            Arrays.fill(sums, 0.0)
+        }
+
+        private fun valueOf(slot: Int, field: Int): AggregateValue? {
+            val index = slot * FIELDS + field
+            val count = counts[index]
+            if (count == 0) return null
+            return AggregateValue(mins[index], maxs[index], sums[index] / count, count)
+        }
+
+        private fun insert(slot: Int, start: Long) {
+            if (size == starts.size) grow()
+            if (slot < size) {
+                System.arraycopy(starts, slot, starts, slot + 1, size - slot)
+                shift(counts, slot)
+                shift(mins, slot)
+                shift(maxs, slot)
+                shift(sums, slot)
+            }
+            starts[slot] = start
+            for (field in 0 until FIELDS) {
+                counts[slot * FIELDS + field] = 0
+                sums[slot * FIELDS + field] = 0.0
+            }
+            size++
+        }
+
+        private fun shift(array: IntArray, slot: Int) =
+            System.arraycopy(array, slot * FIELDS, array, (slot + 1) * FIELDS, (size - slot) * FIELDS)
+
+        private fun shift(array: DoubleArray, slot: Int) =
+            System.arraycopy(array, slot * FIELDS, array, (slot + 1) * FIELDS, (size - slot) * FIELDS)
+
+        private fun grow() {
+            val capacity = starts.size * 2
+            starts = starts.copyOf(capacity)
+            counts = counts.copyOf(capacity * FIELDS)
+            mins = mins.copyOf(capacity * FIELDS)
+            maxs = maxs.copyOf(capacity * FIELDS)
+            sums = sums.copyOf(capacity * FIELDS)
+        }
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 64
+        private const val FIELDS = 3
+        private const val TEMPERATURE = 0
+        private const val HUMIDITY = 1
+        private const val PRESSURE = 2
+    }
+}
@@ -0,0 +1,192 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import com.ruuvi.station.bluetooth.LogReading
+import com.ruuvi.station.bluetooth.util.LongHashSet
+import com.ruuvi.station.bluetooth.util.extensions.hexStringToByteArray
+import timber.log.Timber
+import java.util.*
+
+/**
+ * Parses Nordic UART log notifications into [LogReading]s.
+ *
+ * Each log record is [RECORD_SIZE] bytes: 3 bytes of type, 4 bytes of timestamp (seconds) and
+ * 4 bytes of value. Firmware that negotiated a larger MTU may pack several records into one
+ * notification, so every notification is split into records before it is applied.
+ *
+ * Records are collected per timestamp, like the tag's own log, so records of one reading may
+ * arrive in any order and interleaved with other readings. A reading is complete once its
+ * temperature, humidity and pressure records have all arrived, or at the end of the logs.
+ * Complete readings are passed to [aggregator], and dropped right away unless [retainReadings]
+ * is set; later records for a completed timestamp are ignored. Readings already in
+ * [deliveredHistory] are dropped without being aggregated or counted, unless a record older than
+ * the history's request start shows that the tag's clock went back.
+ */
+class LogRecordParser(private val deviceId: String) {
+    private val readings = LinkedHashMap<Long, LogReading>()
+    private val pending = LinkedHashMap<Long, PendingReading>()
+    private val completed = LongHashSet(INITIAL_COMPLETED_CAPACITY)
+
+    var aggregator: LogAggregator? = null
+    var retainReadings = true
+    var deliveredHistory: TagSyncHistory? = null
+        set(value) {
+            field = value
+            historyStartSeconds = value?.getRequestStart()?.let { it.time / 1000 } ?: Long.MIN_VALUE
+        }
+    private var historyStartSeconds = Long.MIN_VALUE
+
+    var notifications = 0
+        private set
+    var bytes = 0L
+        private set
+    var records = 0
+        private set
+
+    /**
+     * Readings completed so far that will be delivered, i.e. not empty and not delivered before.
+     */
+    var readingsCount = 0
+        private set
+
+    fun parse(data: ByteArray): Result {
+        if (data.isEmpty()) return Result.IGNORED
+        if (data[0] == HEARTBEAT_FORMAT) return Result.HEARTBEAT
+
+        notifications++
+        bytes += data.size
+
+        var offset = 0
+        while (offset + RECORD_SIZE <= data.size) {
+            if (isEndOfLogs(data, offset)) {
+                completeAll()
+                return Result.END_OF_LOGS
+            }
+            applyRecord(data, offset)
+            records++
+            offset += RECORD_SIZE
+        }
+        return Result.RECORDS
+    }
+
+    /**
+     * Readings completed so far, without the all-zero records some firmware emits.
+     */
+    fun getLogs(): MutableList<LogReading> = readings.values.toMutableList()
+
+    fun clear() {
+        readings.clear()
+        pending.clear()
+        completed.clear()
+        notifications = 0
+        bytes = 0
+        records = 0
+        readingsCount = 0
+        aggregator?.clear()
+    }
+
+    private fun applyRecord(data: ByteArray, offset: Int) {
+        val timestamp = readUInt32(data, offset + 3)
+        if (completed.contains(timestamp)) return
+        if (timestamp < historyStartSeconds && deliveredHistory != null) {
+            Timber.i("$deviceId record at $timestamp before request start $historyStartSeconds, clock went back")
+            deliveredHistory = null
+        }
+
+        var entry = pending[timestamp]
+        if (entry == null) {
+            val reading = LogReading()
+            reading.id = deviceId
+            reading.date = Date(timestamp * 1000)
+            entry = PendingReading(reading)
+            pending[timestamp] = entry
+        }
+        val reading = entry.reading
+
+        val value = readUInt32(data, offset + 7)
+        when {
+            isType(data, offset, temperatureType) -> {
+                reading.temperature = value.toInt() / 100.0
+                entry.types = entry.types or TEMPERATURE
+            }
+            isType(data, offset, humidityType) -> {
+                reading.humidity = if (value == NULL_VALUE) null else value.toFloat() / 100.0
+                entry.types = entry.types or HUMIDITY
+            }
+            isType(data, offset, pressureType) -> {
+                reading.pressure = if (value == NULL_VALUE) null else value.toDouble()
+                entry.types = entry.types or PRESSURE
+            }
+            else -> {}
+        }
+        if (entry.types == ALL_TYPES) {
+            pending.remove(timestamp)
+            complete(timestamp, reading)
+        }
+    }
+
+    private fun completeAll() {
+        for ((timestamp, entry) in pending) {
+            complete(timestamp, entry.reading)
+        }
+        pending.clear()
+    }
+
+    private fun complete(timestamp: Long, reading: LogReading) {
+        completed.add(timestamp)
+        if (deliveredHistory?.isDelivered(timestamp) == true || isEmptyReading(reading)) return
+        aggregator?.add(timestamp, reading.temperature, reading.humidity, reading.pressure)
+        readingsCount++
+        if (retainReadings) readings[timestamp] = reading
+    }
+
+    /**
+     * Timestamps (seconds) of the readings completed in this sync.
+     */
+    fun getCompletedTimestamps(): LongArray = completed.toArray().also { it.sort() }
+
+    private class PendingReading(val reading: LogReading) {
+        var types = 0
+    }
+
+    enum class Result {
+        IGNORED,
+        HEARTBEAT,
+        RECORDS,
+        END_OF_LOGS
+    }
+
+    companion object {
+        const val RECORD_SIZE = 11
+        const val HEARTBEAT_FORMAT: Byte = 5
+        private const val NULL_VALUE = 0xFFFFFFFFL
+        private const val INITIAL_COMPLETED_CAPACITY = 1024
+
+        private const val TEMPERATURE = 1
+        private const val HUMIDITY = 2
+        private const val PRESSURE = 4
+        private const val ALL_TYPES = TEMPERATURE or HUMIDITY or PRESSURE
+
+        private val temperatureType = "3A3010".hexStringToByteArray()
+        private val humidityType = "3A3110".hexStringToByteArray()
+        private val pressureType = "3A3210".hexStringToByteArray()
+
+        private fun isEmptyReading(reading: LogReading): Boolean =
+            reading.temperature == 0.toDouble() && reading.humidity == 0.toDouble() && reading.pressure == 0.toDouble()
+
+        private fun isEndOfLogs(data: ByteArray, offset: Int): Boolean {
+            for (i in offset + 3 until offset + RECORD_SIZE) {
+                if (data[i] != 0xFF.toByte()) return false
+            }
+            return true
+        }
+
+        private fun isType(data: ByteArray, offset: Int, type: ByteArray): Boolean =
+            data[offset] == type[0] && data[offset + 1] == type[1] && data[offset + 2] == type[2]
+
+        private fun readUInt32(data: ByteArray, offset: Int): Long =
+            (data[offset].toLong() and 0xFF shl 24) or
+                (data[offset + 1].toLong() and 0xFF shl 16) or
+                (data[offset + 2].toLong() and 0xFF shl 8) or
+                (data[offset + 3].toLong() and 0xFF)
+    }
+}
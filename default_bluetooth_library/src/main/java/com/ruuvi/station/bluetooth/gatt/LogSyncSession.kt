@@ -0,0 +1,235 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import com.ruuvi.station.bluetooth.IRuuviGattListener
+import com.ruuvi.station.bluetooth.IRuuviTagScanner
+import com.ruuvi.station.bluetooth.util.extensions.toBytes
+import com.ruuvi.station.bluetooth.util.extensions.toHexString
+import net.swiftzer.semver.SemVer
+import timber.log.Timber
+import java.util.*
+
+/**
+ * Log sync protocol on top of a [LogSyncTransport]: decides from the firmware version whether
+ * the tag supports logging, requests the history and collects it into log readings. In streaming
+ * mode the connection stays open and heartbeat frames are delivered as tag readings.
+ */
+class LogSyncSession(private val transport: LogSyncTransport) : LogSyncTransport.Events {
+    private val deviceId = transport.deviceId
+    private val parser = LogRecordParser(deviceId)
+    private val heartbeatStream = HeartbeatStream(deviceId)
+
+    var listener: IRuuviGattListener? = null
+    var aggregatesListener: LogAggregatesListener? = null
+    var syncHistory: TagSyncHistory? = null
+    var streamListener: IRuuviTagScanner.OnTagFoundListener? = null
+
+    private var actionType: ActionType = ActionType.GET_LOGS
+    private var readLogsFrom: Date? = null
+    private var options = LogSyncOptions()
+    private var syncStartTime = 0L
+    private var operationStartTime = 0L
+    private var firstRecordTime = 0L
+    private var deviceInformationFromCache = false
+    @Volatile
+    private var connected = false
+
+    init {
+        transport.setEvents(this)
+    }
+
+    /**
+     * @param readLogsFrom start of the requested history. When null and [syncHistory] is set,
+     * the sync starts just before the last delivered reading and drops readings delivered before.
+     */
+    fun getLogs(readLogsFrom: Date?, options: LogSyncOptions = LogSyncOptions()) {
+        Timber.d("$deviceId getLogs readLogsFrom = $readLogsFrom options = $options")
+        clearState()
+        actionType = ActionType.GET_LOGS
+        val history = syncHistory
+        if (readLogsFrom == null && history != null) {
+            this.readLogsFrom = history.getRequestStart()
+            parser.deliveredHistory = history
+            Timber.d("$deviceId incremental sync from ${this.readLogsFrom}")
+        } else {
+            this.readLogsFrom = readLogsFrom
+        }
+        this.options = options
+        if (options.aggregateResolutionsSeconds.isNotEmpty()) {
+            parser.aggregator = LogAggregator(options.aggregateResolutionsSeconds)
+        }
+        parser.retainReadings = options.deliverRawReadings
+        operationStartTime = System.currentTimeMillis()
+        transport.connect()
+    }
+
+    fun getVersion() {
+        Timber.d("$deviceId getVersion")
+        clearState()
+        actionType = ActionType.GET_VERSION
+        readLogsFrom = null
+        transport.connect()
+    }
+
+    /**
+     * Keeps the connection open and passes every heartbeat frame to [streamListener] until
+     * [finish] is called.
+     */
+    fun startStreaming() {
+        Timber.d("$deviceId startStreaming")
+        clearState()
+        actionType = ActionType.STREAM
+        readLogsFrom = null
+        heartbeatStream.clear()
+        transport.connect()
+    }
+
+    fun getStreamingMetrics(): StreamingMetrics = heartbeatStream.getMetrics()
+
+    /**
+     * Ends the operation. [IRuuviGattListener.connected] reports false only when the connection
+     * actually closes, not when the pool keeps it open for the next operation.
+     */
+    fun finish() {
+        Timber.d("$deviceId finish")
+        val closing = transport.disconnect()
+        // a connection that never came up won't report its end
+        if (closing && !connected) listener?.connected(false)
+    }
+
+    private fun clearState() {
+        parser.clear()
+        parser.aggregator = null
+        parser.retainReadings = true
+        parser.deliveredHistory = null
+        options = LogSyncOptions()
+        syncStartTime = 0L
+        operationStartTime = 0L
+        firstRecordTime = 0L
+        deviceInformationFromCache = false
+    }
+
+    override fun onConnected() {
+        connected = true
+        listener?.connected(true)
+    }
+
+    override fun onDeviceInformation(info: DeviceInformation) {
+        val canReadLogs = info.canReadLogs ?: canReadLogs(info.firmware)
+        Timber.d("$deviceId canReadLogs = $canReadLogs fromCache = ${info.fromCache}")
+        deviceInformationFromCache = info.fromCache
+        listener?.deviceInfo(info.model, info.firmware, canReadLogs, info.serialNumber)
+        if (actionType == ActionType.STREAM) {
+            transport.enableLogNotifications()
+        } else if (canReadLogs && actionType == ActionType.GET_LOGS) {
+            transport.enableLogNotifications()
+            startReadingLogs()
+        } else {
+            finish()
+        }
+    }
+
+    override fun onNotification(data: ByteArray) {
+        val readingsBefore = parser.readingsCount
+        when (parser.parse(data)) {
+            LogRecordParser.Result.HEARTBEAT -> {
+                if (actionType == ActionType.STREAM) {
+                    heartbeatStream.decode(data)?.let { streamListener?.onTagFound(it) }
+                } else {
+                    listener?.heartbeat(data.toHexString())
+                }
+            }
+            LogRecordParser.Result.END_OF_LOGS -> {
+                Timber.d("$deviceId end of logs")
+                onSyncFinished()
+                parser.aggregator?.let { aggregator ->
+                    aggregatesListener?.aggregatesReady(deviceId, aggregator.getAggregates())
+                }
+                listener?.dataReady(if (options.deliverRawReadings) parser.getLogs() else mutableListOf())
+                syncHistory?.markDelivered(parser.getCompletedTimestamps())
+                finish()
+            }
+            else -> {
+                if (firstRecordTime == 0L && parser.records > 0) {
+                    firstRecordTime = System.currentTimeMillis()
+                }
+                if (parser.readingsCount != readingsBefore) {
+                    listener?.syncProgress(parser.readingsCount)
+                }
+            }
+        }
+    }
+
+    override fun onFailure(reason: String) {
+        Timber.d("$deviceId failure: $reason")
+        finish()
+    }
+
+    override fun onDisconnected() {
+        if (actionType == ActionType.STREAM) {
+            Timber.d("$deviceId streaming ended ${heartbeatStream.getMetrics()}")
+        }
+        if (!connected) return
+        connected = false
+        listener?.connected(false)
+    }
+
+    private fun startReadingLogs() {
+        Timber.d("$deviceId startReadingLogs")
+        syncStartTime = System.currentTimeMillis()
+        transport.writeCommand(getReadInterval())
+    }
+
+    private fun onSyncFinished() {
+        val metrics = LogSyncMetrics(
+            deviceId = deviceId,
+            mtu = transport.negotiatedMtu,
+            notifications = parser.notifications,
+            records = parser.records,
+            readings = parser.readingsCount,
+            bytes = parser.bytes,
+            durationMillis = System.currentTimeMillis() - syncStartTime,
+            timeToFirstRecordMillis = if (firstRecordTime > 0) firstRecordTime - operationStartTime else 0,
+            deviceInformationFromCache = deviceInformationFromCache
+        )
+        Timber.d("$deviceId sync finished $metrics")
+        GattStatistics.onSyncFinished(metrics)
+    }
+
+    private fun getReadInterval(): ByteArray {
+        val now = System.currentTimeMillis() / 1000
+        var then: Long = 0
+        readLogsFrom?.let {
+            then = it.time / 1000
+        }
+        return readCommand(now, then)
+    }
+
+    enum class ActionType {
+        GET_LOGS,
+        GET_VERSION,
+        STREAM
+    }
+
+    companion object {
+        val supportLoggingVersion: SemVer = SemVer.parse("3.28.12")
+        val readAllBytes = 0x3A3A11.toBytes().copyOfRange(1, 4)
+
+        fun readCommand(now: Long, then: Long): ByteArray {
+            val nowBytes = now.toBytes().copyOfRange(4, 8)
+            val thenBytes = then.toBytes().copyOfRange(4, 8)
+            return readAllBytes.plus(nowBytes).plus(thenBytes)
+        }
+
+        fun canReadLogs(firmware: String): Boolean {
+            try {
+                val firstNumberIndex = firmware.indexOfFirst { it.isDigit() }
+                if (firstNumberIndex == -1) return false
+                val version = SemVer.parse(firmware.subSequence(firstNumberIndex, firmware.length).toString())
+                return version.compareTo(supportLoggingVersion) != -1
+            } catch (e: IllegalArgumentException ) {
+                Timber.e(e)
+                return false
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.ruuvi.station.bluetooth.gatt
+
+/**
+ * GATT operations the log sync needs from a tag: the Device Information service and the
+ * Nordic UART service. [NordicGattManager] talks to a real tag; the unit tests use an
+ * in-process simulated one.
+ */
+interface LogSyncTransport {
+    val deviceId: String
+
+    /**
+     * ATT MTU of the current connection.
+     */
+    val negotiatedMtu: Int
+
+    fun setEvents(events: Events)
+
+    /**
+     * Connects and reads the Device Information service. Result is reported through
+     * [Events.onDeviceInformation] or [Events.onFailure].
+     */
+    fun connect()
+
+    fun enableLogNotifications()
+
+    fun writeCommand(command: ByteArray)
+
+    /**
+     * Ends the current operation. A pooled connection may stay open for the next one.
+     *
+     * @return true when the connection is being closed, [Events.onDisconnected] follows once
+     * it is
+     */
+    fun disconnect(): Boolean
+
+    interface Events {
+        fun onConnected()
+        fun onDeviceInformation(info: DeviceInformation)
+        fun onNotification(data: ByteArray)
+        fun onFailure(reason: String)
+        fun onDisconnected()
+    }
+}
+
+/**
+ * @param canReadLogs log support derived from [firmware], null when not known yet
+ * @param fromCache true when only the firmware revision was read and the rest came from
+ * [DeviceInformationCache]
+ */
+data class DeviceInformation(
+    val model: String,
+    val firmware: String,
+    val manufacturer: String,
+    val serialNumber: String?,
+    val canReadLogs: Boolean? = null,
+    val fromCache: Boolean = false
+)
@@ -3,9 +3,12 @@ package com.ruuvi.station.bluetooth.gatt
 import android.bluetooth.*
 import android.content.Context
 import android.os.Build
+import android.os.SystemClock
 import com.ruuvi.station.bluetooth.IRuuviGattListener
-import com.ruuvi.station.bluetooth.LogReading
-import com.ruuvi.station.bluetooth.util.extensions.*
+import com.ruuvi.station.bluetooth.IRuuviTagScanner
+import com.ruuvi.station.bluetooth.util.TraceEvent
+import com.ruuvi.station.bluetooth.util.TraceLog
+import com.ruuvi.station.bluetooth.util.extensions.macToLong
 import net.swiftzer.semver.SemVer
 import no.nordicsemi.android.ble.BleManager
 import no.nordicsemi.android.ble.ConnectionPriorityRequest
@@ -15,12 +18,40 @@ import timber.log.Timber
 import java.util.*
 
 class NordicGattManager(context: Context, val device: BluetoothDevice): BleManager(context) {
-    private var gattCallback: IRuuviGattListener? = null
-    private var actionType: ActionType = ActionType.GET_LOGS
-    private var readLogsFrom: Date? = null
+    private var events: LogSyncTransport.Events? = null
 
-    private var logs = mutableListOf<LogReading>()
-    private var syncedPoints = 0
+    /**
+     * Lets an owner such as [GattConnectionPool] follow the connection life cycle.
+     */
+    internal interface SessionObserver {
+        fun onSessionReady(manager: NordicGattManager, connectLatencyMillis: Long)
+
+        /**
+         * @return true to keep the connection open for the next operation
+         */
+        fun onOperationFinished(manager: NordicGattManager): Boolean
+
+        fun onSessionClosed(manager: NordicGattManager, lifetimeMillis: Long)
+    }
+
+    internal var sessionObserver: SessionObserver? = null
+
+    /**
+     * True while a log sync or version read is in progress.
+     */
+    @Volatile
+    var isBusy = false
+        private set
+    private var reusable = true
+    private var connectStartedAt = 0L
+    private var sessionStartedAt = 0L
+
+    private var negotiatedMtu = DEFAULT_MTU
+    private var connectionInterval = 0
+    private var connectionLatency = 0
+    private var supervisionTimeout = 0
+    private var txPhy = 0
+    private var rxPhy = 0
 
     private var model: String? = null
     private var serialNumber: String? = null
@@ -34,32 +65,106 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
     private var nordicTxCharacteristic: BluetoothGattCharacteristic? = null
     private var nordicRxCharacteristic: BluetoothGattCharacteristic? = null
 
+    val transport: LogSyncTransport = object : LogSyncTransport {
+        override val deviceId: String
+            get() = device.address
+
+        override val negotiatedMtu: Int
+            get() = this@NordicGattManager.negotiatedMtu
+
+        override fun setEvents(events: LogSyncTransport.Events) {
+            this@NordicGattManager.events = events
+        }
+
+        override fun connect() {
+            clearState()
+            reusable = true
+            if (isReady) {
+                Timber.d("$device reusing connection")
+                events?.onConnected()
+                readFromInfoService()
+            } else {
+                connectToDevice()
+            }
+        }
+
+        override fun enableLogNotifications() {
+            registerToNordicRxTx()
+        }
+
+        override fun writeCommand(command: ByteArray) {
+            writeToNordicRx(command)
+        }
+
+        override fun disconnect(): Boolean {
+            isBusy = false
+            val keepAlive = reusable && isReady && sessionObserver?.onOperationFinished(this@NordicGattManager) == true
+            if (!keepAlive) disconnectFromDevice()
+            return !keepAlive
+        }
+    }
+
+    private val deviceInformationCache = DeviceInformationCache.get(context)
+
+    private val session = LogSyncSession(transport).apply {
+        syncHistory = SyncHistory.get(context).forTag(device.address)
+    }
+
     override fun getGattCallback(): BleManagerGattCallback = GattCallback()
 
     fun setCallBack(callback: IRuuviGattListener) {
-        gattCallback = callback
+        session.listener = callback
+    }
+
+    fun setAggregatesListener(listener: LogAggregatesListener?) {
+        session.aggregatesListener = listener
     }
 
-    fun getLogs(readLogsFrom: Date?) {
-        Timber.d("$device getLogs readLogsFrom = $readLogsFrom")
-        clearState()
-        actionType = ActionType.GET_LOGS
-        this.readLogsFrom = readLogsFrom
-        connectToDevice()
+    fun getLogs(readLogsFrom: Date?, options: LogSyncOptions = LogSyncOptions()) {
+        isBusy = true
+        session.getLogs(readLogsFrom, options)
     }
 
     fun getVersion() {
-        Timber.d("$device getVersion")
-        clearState()
-        actionType = ActionType.GET_VERSION
-        readLogsFrom = null
-        connectToDevice()
+        isBusy = true
+        session.getVersion()
+    }
+
+    fun startStreaming(listener: IRuuviTagScanner.OnTagFoundListener) {
+        isBusy = true
+        session.streamListener = listener
+        session.startStreaming()
+    }
+
+    /**
+     * Stops streaming but lets the owner keep the connection for the next operation.
+     */
+    fun stopStreaming() {
+        session.finish()
+        session.streamListener = null
+    }
+
+    fun getStreamingMetrics(): StreamingMetrics = session.getStreamingMetrics()
+
+    /**
+     * Ends the current operation and closes the connection, even when it could be reused.
+     */
+    fun executeDisconnect() {
+        reusable = false
+        session.finish()
+    }
+
+    internal fun disconnectNow() {
+        disconnectFromDevice()
+    }
+
+    private fun onFailure(reason: String) {
+        reusable = false
+        events?.onFailure(reason)
     }
 
     private fun clearState() {
         Timber.d("$device clearState")
-        logs = mutableListOf()
-        syncedPoints = 0
         model = null
         serialNumber = null
         firmware = null
@@ -67,6 +172,7 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
     }
 
     private fun connectToDevice() {
+        connectStartedAt = SystemClock.elapsedRealtime()
         connect(device)
             .useAutoConnect(false)
             .retry(MAX_CONNECT_RETRY, 1000)
@@ -74,14 +180,38 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
             .timeout(30000)
             .invalid {
                 Timber.d("$device connect INVALID")
-                executeDisconnect()
+                onFailure("connect invalid")
             }
             .done {
                 Timber.d("$device connect DONE")
             }
             .fail { device, status ->
                 Timber.d("$device connect FAIL status = $status")
-                executeDisconnect()
+                onFailure("connect status $status")
+            }
+            .enqueue()
+    }
+
+    private fun disconnectFromDevice() {
+        Timber.d("$device executeDisconnect")
+        disconnect()
+            .done { device ->
+                Timber.d("$device executeDisconnect DONE")
+            }
+            .fail { device, status ->
+                Timber.d("$device executeDisconnect FAIL $status")
+            }
+            .enqueue()
+    }
+
+    private fun tuneConnection() {
+        requestMtu(DESIRED_MTU)
+            .with { device, mtu ->
+                Timber.d("$device requestMtu mtu = $mtu")
+                negotiatedMtu = mtu
+            }
+            .fail { device, status ->
+                Timber.d("$device requestMtu FAIL status = $status")
             }
             .enqueue()
 
@@ -89,14 +219,28 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
             requestConnectionPriority(ConnectionPriorityRequest.CONNECTION_PRIORITY_HIGH)
                 .with { device, interval, latency, timeout ->
                     Timber.d("$device requestConnectionPriority interval = $interval latency = $latency timeout = $timeout")
+                    onConnectionParameters(interval, latency, timeout)
                 }
                 .fail { device, status ->
                     Timber.d("$device requestConnectionPriority FAIL status = $status")
                 }
                 .enqueue()
+
+            readPhy()
+                .with { device, txPhy, rxPhy ->
+                    Timber.d("$device readPhy txPhy = $txPhy rxPhy = $rxPhy")
+                    this.txPhy = txPhy
+                    this.rxPhy = rxPhy
+                }
+                .enqueue()
         }
     }
 
+    private fun onConnectionParameters(interval: Int, latency: Int, timeout: Int) {
+        connectionInterval = interval
+        connectionLatency = latency
+        supervisionTimeout = timeout
+    }
 
     private fun checkIfInfoCollected() {
         val fw = firmware
@@ -104,43 +248,10 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
         val manufacturer = manufacturer
         val serialNumberCollectedOrNotExpected = !serialNumber.isNullOrEmpty() || serialNumberCharacteristic == null
         if (fw != null && model != null && manufacturer != null && serialNumberCollectedOrNotExpected) {
-            val canReadLogs = canReadLogs()
-            Timber.d("$device canReadLogs = $canReadLogs")
-            gattCallback?.deviceInfo(model, fw, canReadLogs, serialNumber)
-            if (canReadLogs && actionType == ActionType.GET_LOGS) {
-                registerToNordicRxTx()
-            } else {
-                executeDisconnect()
-            }
-        }
-    }
-
-    private fun canReadLogs(): Boolean {
-        firmware?.let { firmware ->
-            try {
-                val firstNumberIndex = firmware.indexOfFirst { it.isDigit() }
-                if (firstNumberIndex == -1) return false
-                val version = SemVer.parse(firmware.subSequence(firstNumberIndex, firmware.length).toString())
-                return version.compareTo(supportLoggingVersion) != -1
-            } catch (e: IllegalArgumentException ) {
-                Timber.e(e)
-                return false
-            }
+            val info = DeviceInformation(model, fw, manufacturer, serialNumber, LogSyncSession.canReadLogs(fw))
+            deviceInformationCache.put(device.address, info)
+            events?.onDeviceInformation(info)
         }
-        return false
-    }
-
-    fun executeDisconnect() {
-        Timber.d("$device executeDisconnect")
-        disconnect()
-            .done { device ->
-                Timber.d("$device executeDisconnect DONE")
-            }
-            .fail { device, status ->
-                Timber.d("$device executeDisconnect FAIL $status")
-            }
-            .enqueue()
-        gattCallback?.connected(false)
     }
 
     private fun registerToNordicRxTx() {
@@ -151,95 +262,75 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
         writeDescriptor(descriptor, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)
             .fail { device, status ->
                 Timber.d("$device writeDescriptor FAIL status = $status")
-                executeDisconnect()
+                onFailure("writeDescriptor status $status")
             }
             .enqueue()
 
         setNotificationCallback(nordicTxCharacteristic)
             .with { device, data ->
-                Timber.d("$device notificationCallback nordicTxCharacteristic data = $data")
-                processData(device, data)
+                TraceLog.record(
+                    TraceEvent.GATT_NOTIFICATION,
+                    device.address.macToLong(),
+                    data.size().toLong(),
+                    (data.getByte(0) ?: 0).toLong()
+                )
+                processData(data)
             }
 
         enableNotifications(nordicTxCharacteristic).enqueue()
-        startReadingLogs()
     }
 
-    private fun startReadingLogs() {
-        Timber.d("$device startReadingLogs")
-        val readInterval = getReadInterval()
-        nordicRxCharacteristic?.value = readInterval
-        writeCharacteristic(nordicRxCharacteristic, readInterval, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT)
+    private fun writeToNordicRx(command: ByteArray) {
+        Timber.d("$device writeToNordicRx")
+        nordicRxCharacteristic?.value = command
+        writeCharacteristic(nordicRxCharacteristic, command, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT)
             .fail { device, status ->
-                Timber.d("$device startReadingLogs writeCharacteristic FAIL status = $status")
-                executeDisconnect()
+                Timber.d("$device writeToNordicRx writeCharacteristic FAIL status = $status")
+                onFailure("writeCharacteristic status $status")
             }
             .enqueue()
     }
 
-    private fun processData(device: BluetoothDevice, dataResponse: Data) {
+    private fun processData(dataResponse: Data) {
         dataResponse.value?.let { data ->
-            if (data[0] == 5.toByte()) {
-                gattCallback?.heartbeat(data.toHexString())
-            } else if (data.toHexString().endsWith("ffffffffffffffff")) {
-                Timber.d("")
-                logs.removeAll { x -> x.temperature == 0.toDouble() && x.humidity == 0.toDouble() && x.pressure == 0.toDouble() }
-                gattCallback?.dataReady(logs)
-                executeDisconnect()
-            } else {
-                val type = data.copyOfRange(0, 3)
-                val timestamp = data.copyOfRange(3, 7)
-                val value = data.copyOfRange(7, 11)
-                val time = Date(timestamp.toLong() * 1000)
-                var idx = logs.indexOfFirst { x -> x.date.time == time.time }
-                if (idx == -1) {
-                    val reading = LogReading()
-                    reading.id = device.address
-                    reading.date = time
-                    logs.add(reading)
-                    idx = logs.size - 1
-                    syncedPoints++
-                    gattCallback?.syncProgress(syncedPoints)
-                }
-                when {
-                    type.contentEquals(temperatureType) -> {
-                        val temp = value.toInt() / 100.0
-                        logs[idx].temperature = temp
-                    }
-                    type.contentEquals(humidityType) -> {
-                        Timber.d("humidity $value")
-                        logs[idx].humidity = if (value.contentEquals(nullValue)) {
-                            null
-                        } else {
-                            value.toLong().toFloat() / 100.0
-                        }
-                    }
-                    type.contentEquals(pressureType) -> {
-                        Timber.d("pressure $value")
-                        logs[idx].pressure = if (value.contentEquals(nullValue)) {
-                            null
-                        } else {
-                            value.toLong().toDouble()
-                        }
-                    }
-                    else -> {}
-                }
-            }
+            events?.onNotification(data)
         }
     }
 
-    private fun getReadInterval(): ByteArray {
-        val now = System.currentTimeMillis() / 1000
-        var then: Long = 0
-        readLogsFrom?.let {
-            then = it.time / 1000
+    private fun readFromInfoService() {
+        val cached = deviceInformationCache.get(device.address)
+        if (cached != null) {
+            validateCachedInformation(cached)
+        } else {
+            readAllDeviceInformation()
         }
-        val nowBytes = now.toBytes().copyOfRange(4, 8)
-        val thenBytes = then.toBytes().copyOfRange(4, 8)
-        return readAllBytes.plus(nowBytes).plus(thenBytes)
     }
 
-    private fun readFromInfoService() {
+    /**
+     * Reads only the firmware revision and falls back to the whole service when it changed.
+     */
+    private fun validateCachedInformation(cached: DeviceInformation) {
+        Timber.d("$device validating cached device information")
+        readCharacteristic(firmwareCharacteristic)
+            .with { device, data ->
+                val firmware = data.getStringValue(0)
+                if (firmware == cached.firmware) {
+                    Timber.d("$device firmware unchanged $firmware")
+                    events?.onDeviceInformation(cached)
+                } else {
+                    Timber.d("$device firmware changed ${cached.firmware} -> $firmware")
+                    deviceInformationCache.invalidate(device.address)
+                    readAllDeviceInformation()
+                }
+            }
+            .fail { device, status ->
+                Timber.d("$device firmwareCharacteristic FAIL status = $status")
+                onFailure("firmwareCharacteristic status $status")
+            }
+            .enqueue()
+    }
+
+    private fun readAllDeviceInformation() {
         Timber.d("$device reading from Info Service")
 
         readCharacteristic(firmwareCharacteristic)
@@ -250,7 +341,7 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
             }
             .fail { device, status ->
                 Timber.d("$device firmwareCharacteristic FAIL status = $status")
-                executeDisconnect()
+                onFailure("firmwareCharacteristic status $status")
             }
             .enqueue()
 
@@ -262,7 +353,7 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
             }
             .fail { device, status ->
                 Timber.d("$device modelCharacteristic FAIL status = $status")
-                executeDisconnect()
+                onFailure("modelCharacteristic status $status")
             }
             .enqueue()
 
@@ -275,7 +366,7 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
                 }
                 .fail { device, status ->
                     Timber.d("$device serialNumberCharacteristic FAIL status = $status")
-                    executeDisconnect()
+                    onFailure("serialNumberCharacteristic status $status")
                 }
                 .enqueue()
         }
@@ -288,7 +379,7 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
             }
             .fail { device, status ->
                 Timber.d("$device manufacturerCharacteristic FAIL status = $status")
-                executeDisconnect()
+                onFailure("manufacturerCharacteristic status $status")
             }
             .enqueue()
     }
@@ -297,11 +388,12 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
         override fun initialize() {
             super.initialize()
             Timber.d("$device initialize")
+            tuneConnection()
             readFromInfoService()
         }
 
         override fun isRequiredServiceSupported(gatt: BluetoothGatt): Boolean {
-            gattCallback?.connected(true)
+            events?.onConnected()
 
             val rxService = gatt.getService(nordicRxTxService)
             if (rxService != null) {
@@ -329,12 +421,16 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
             timeout: Int
         ) {
             Timber.d("$device onConnectionUpdated interval = $interval latency = $latency timeout = $timeout")
+            onConnectionParameters(interval, latency, timeout)
             super.onConnectionUpdated(gatt, interval, latency, timeout)
         }
 
         override fun onDeviceReady() {
             Timber.d("$device onDeviceReady")
             super.onDeviceReady()
+            GattStatistics.onSessionTuned(negotiatedMtu, connectionInterval, connectionLatency, supervisionTimeout, txPhy, rxPhy)
+            sessionStartedAt = SystemClock.elapsedRealtime()
+            sessionObserver?.onSessionReady(this@NordicGattManager, sessionStartedAt - connectStartedAt)
         }
 
         override fun onServicesInvalidated() {
@@ -346,17 +442,20 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
             firmwareCharacteristic = null
             nordicTxCharacteristic = null
             nordicRxCharacteristic = null
-            gattCallback?.connected(false)
+            negotiatedMtu = DEFAULT_MTU
+            if (sessionStartedAt > 0) {
+                sessionObserver?.onSessionClosed(this@NordicGattManager, SystemClock.elapsedRealtime() - sessionStartedAt)
+                sessionStartedAt = 0
+            }
+            isBusy = false
+            events?.onDisconnected()
         }
     }
 
-    enum class ActionType {
-        GET_LOGS,
-        GET_VERSION
-    }
-
     companion object {
         const val MAX_CONNECT_RETRY = 3
+        const val DEFAULT_MTU = 23
+        const val DESIRED_MTU = 247
         private val CCCD: UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb")
         private val infoService: UUID = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb")
         private val nordicRxTxService: UUID = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e")
@@ -367,12 +466,7 @@ class NordicGattManager(context: Context, val device: BluetoothDevice): BleManag
         private val nordicRxCharacteristicUUID: UUID = UUID.fromString("6E400002-B5A3-F393-E0A9-E50E24DCCA9E")
         private val nordicTxCharacteristicUUID: UUID = UUID.fromString("6E400003-B5A3-F393-E0A9-E50E24DCCA9E")
 
-        private val temperatureType = "3A3010".hexStringToByteArray()
-        private val humidityType = "3A3110".hexStringToByteArray()
-        private val pressureType = "3A3210".hexStringToByteArray()
-        private val nullValue = "FFFFFFFF".hexStringToByteArray()
-
-        val supportLoggingVersion: SemVer = SemVer.parse("3.28.12")
-        val readAllBytes = 0x3A3A11.toBytes().copyOfRange(1, 4)
+        val supportLoggingVersion: SemVer = LogSyncSession.supportLoggingVersion
+        val readAllBytes = LogSyncSession.readAllBytes
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,236 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import android.content.Context
+import timber.log.Timber
+import java.io.*
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remembers per tag which log readings were already delivered to the app, so a sync without an
+ * explicit start date only asks the tag for the missing range and drops records the app has.
+ */
+class SyncHistory(private val directory: File) {
+    private val tags = ConcurrentHashMap<String, TagSyncHistory>()
+
+    fun forTag(macAddress: String): TagSyncHistory {
+        tags[macAddress]?.let { return it }
+        val history = TagSyncHistory(File(directory, macAddress.replace(":", "") + FILE_EXTENSION))
+        return tags.putIfAbsent(macAddress, history) ?: history
+    }
+
+    fun reset(macAddress: String) {
+        forTag(macAddress).reset()
+    }
+
+    companion object {
+        private const val FILE_EXTENSION = ".sync"
+
+        @Volatile
+        private var instance: SyncHistory? = null
+
+        fun get(context: Context): SyncHistory =
+            instance ?: synchronized(this) {
+                instance ?: SyncHistory(File(context.applicationContext.filesDir, "ruuvi_sync_history")).also {
+                    instance = it
+                }
+            }
+    }
+}
+
+/**
+ * Delivered ranges of one tag as a sorted list of non-overlapping runs of seconds, each covering
+ * readings delivered without a gap. A sync without lost readings is one run, and runs of
+ * consecutive syncs overlap by [REQUEST_OVERLAP_SECONDS] and merge; the list stays a few runs
+ * long and the file a few dozen bytes.
+ *
+ * A sync that ends before the latest delivered reading means the tag's clock went backwards,
+ * e.g. after a battery change. The older runs then no longer describe what the tag has logged,
+ * so they are dropped.
+ */
+class TagSyncHistory internal constructor(private val file: File) {
+    private var runs = LongArray(INITIAL_RUNS * 2)
+    private var runCount = 0
+    private var loaded = false
+
+    /**
+     * Latest delivered reading in seconds, 0 when nothing was delivered yet.
+     */
+    val lastDelivered: Long
+        @Synchronized get() {
+            load()
+            return lastDeliveredSeconds()
+        }
+
+    /**
+     * Where the next automatic sync should start, or null to read the whole history.
+     */
+    @Synchronized
+    fun getRequestStart(): Date? {
+        load()
+        if (runCount == 0) return null
+        return Date((lastDeliveredSeconds() - REQUEST_OVERLAP_SECONDS) * 1000)
+    }
+
+    @Synchronized
+    fun isDelivered(timestampSeconds: Long): Boolean {
+        load()
+        // last run starting at or before the timestamp
+        var low = 0
+        var high = runCount
+        while (low < high) {
+            val middle = (low + high) ushr 1
+            if (runs[middle * 2] <= timestampSeconds) low = middle + 1 else high = middle
+        }
+        return low > 0 && timestampSeconds <= runs[(low - 1) * 2 + 1]
+    }
+
+    /**
+     * Marks [timestamps] of one sync as delivered. Readings at most [GAP_TOLERANCE] logging
+     * intervals apart are joined into one run; a larger gap, e.g. a lost notification, splits the
+     * run so a later sync still delivers the missing readings. The logging interval is taken as
+     * the median spacing of the sync, since tags can be configured to log at any interval.
+     */
+    @Synchronized
+    fun markDelivered(timestamps: LongArray) {
+        if (timestamps.isEmpty()) return
+        load()
+        val sorted = timestamps.copyOf().also { it.sort() }
+        val last = sorted[sorted.size - 1]
+        if (runCount > 0 && last < lastDeliveredSeconds() - REQUEST_OVERLAP_SECONDS) {
+            Timber.i("${file.name} clock went back from ${lastDeliveredSeconds()} to $last, dropping sync history")
+            runCount = 0
+        }
+        val maxGap = (loggingInterval(sorted) * GAP_TOLERANCE).toLong()
+        var runStart = sorted[0]
+        for (i in 1 until sorted.size) {
+            if (sorted[i] - sorted[i - 1] > maxGap) {
+                addRun(runStart, sorted[i - 1])
+                runStart = sorted[i]
+            }
+        }
+        addRun(runStart, last)
+        save()
+    }
+
+    @Synchronized
+    fun reset() {
+        runCount = 0
+        loaded = true
+        file.delete()
+    }
+
+    private fun loggingInterval(sorted: LongArray): Long {
+        val spacings = LongArray(sorted.size - 1)
+        var count = 0
+        for (i in 1 until sorted.size) {
+            val spacing = sorted[i] - sorted[i - 1]
+            if (spacing > 0) spacings[count++] = spacing
+        }
+        if (count == 0) return 0
+        spacings.sort(0, count)
+        return spacings[count / 2]
+    }
+
+    private fun lastDeliveredSeconds(): Long = if (runCount == 0) 0L else runs[runCount * 2 - 1]
+
+    private fun addRun(start: Long, end: Long) {
+        var mergedStart = start
+        var mergedEnd = end
+        val merged = LongArray(runs.size + 2)
+        var count = 0
+        var inserted = false
+        for (i in 0 until runCount) {
+            val runStart = runs[i * 2]
+            val runEnd = runs[i * 2 + 1]
+            when {
+                runEnd < mergedStart - 1 -> {
+                    merged[count * 2] = runStart
+                    merged[count * 2 + 1] = runEnd
+                    count++
+                }
+                runStart > mergedEnd + 1 -> {
+                    if (!inserted) {
+                        merged[count * 2] = mergedStart
+                        merged[count * 2 + 1] = mergedEnd
+                        count++
+                        inserted = true
+                    }
+                    merged[count * 2] = runStart
+                    merged[count * 2 + 1] = runEnd
+                    count++
+                }
+                else -> {
+                    mergedStart = minOf(mergedStart, runStart)
+                    mergedEnd = maxOf(mergedEnd, runEnd)
+                }
+            }
+        }
+        if (!inserted) {
+            merged[count * 2] = mergedStart
+            merged[count * 2 + 1] = mergedEnd
+            count++
+        }
+        // the oldest runs matter least, requests start from the newest one
+        val dropped = maxOf(count - MAX_RUNS, 0)
+        runs = merged.copyOfRange(dropped * 2, maxOf(count * 2, INITIAL_RUNS * 2))
+        runCount = count - dropped
+    }
+
+    private fun load() {
+        if (loaded) return
+        loaded = true
+        if (!file.exists()) return
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                when (input.readInt()) {
+                    VERSION -> {
+                        val count = input.readInt()
+                        if (count < 0 || count > MAX_RUNS) throw IOException("Invalid run count $count")
+                        runs = LongArray(maxOf(count, INITIAL_RUNS) * 2)
+                        for (i in 0 until count * 2) {
+                            runs[i] = input.readLong()
+                        }
+                        runCount = count
+                    }
+                    BITMAP_VERSION -> {
+                        // the old format kept everything up to the latest delivered reading
+                        val lastDelivered = input.readLong()
+                        if (lastDelivered > 0) addRun(0, lastDelivered)
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            Timber.w(e, "Can't read sync history from $file")
+            runCount = 0
+        }
+    }
+
+    private fun save() {
+        try {
+            file.parentFile?.mkdirs()
+            val temporary = File(file.path + ".tmp")
+            DataOutputStream(BufferedOutputStream(FileOutputStream(temporary))).use { output ->
+                output.writeInt(VERSION)
+                output.writeInt(runCount)
+                for (i in 0 until runCount * 2) {
+                    output.writeLong(runs[i])
+                }
+            }
+            if (!temporary.renameTo(file)) {
+                Timber.w("Can't replace sync history $file")
+            }
+        } catch (e: IOException) {
+            Timber.w(e, "Can't write sync history to $file")
+        }
+    }
+
+    companion object {
+        const val REQUEST_OVERLAP_SECONDS = 600L
+        const val MAX_RUNS = 64
+        private const val GAP_TOLERANCE = 1.5
+        private const val INITIAL_RUNS = 4
+        private const val BITMAP_VERSION = 1
+        private const val VERSION = 2
+    }
+}
@@ -0,0 +1,191 @@
+package com.ruuvi.station.bluetooth.storage
+
+import com.ruuvi.station.bluetooth.util.extensions.toMacAddress
+import timber.log.Timber
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * One advertisement as the phone received it.
+ *
+ * @param timestampNanos radio timestamp, elapsed realtime nanoseconds
+ * @param address MAC address packed with macToLong
+ */
+class CapturedAdvertisement(
+    val timestampNanos: Long,
+    val address: Long,
+    val rssi: Int,
+    val payload: ByteArray
+) {
+    override fun toString(): String =
+        "CapturedAdvertisement(${address.toMacAddress()}, rssi=$rssi, timestampNanos=$timestampNanos, ${payload.size} bytes)"
+}
+
+/**
+ * Appends raw advertisements to memory-mapped segment files in [directory], so capturing costs
+ * a few buffer writes per packet and no system call.
+ *
+ * A segment is [segmentSize] bytes: a header (magic, version) followed by records of a length
+ * prefix, timestamp, packed MAC address, RSSI and payload. A zero length ends the segment. When
+ * a record doesn't fit a new segment is started, and segments beyond [maxSegments] are deleted
+ * oldest first, capping the capture at `segmentSize * maxSegments` bytes.
+ */
+class AdvertisementRecorder(
+    private val directory: File,
+    private val segmentSize: Int = DEFAULT_SEGMENT_SIZE,
+    private val maxSegments: Int = DEFAULT_MAX_SEGMENTS
+) : Closeable {
+    private var buffer: MappedByteBuffer? = null
+    private var segmentIndex = 0L
+    private var closed = false
+
+    var recorded = 0L
+        @Synchronized get
+        private set
+
+    /**
+     * Advertisements not recorded because they were larger than a segment or writing failed.
+     */
+    var dropped = 0L
+        @Synchronized get
+        private set
+
+    init {
+        require(segmentSize > HEADER_SIZE + RECORD_HEADER_SIZE) { "Segment size $segmentSize too small" }
+        require(maxSegments > 0) { "Need at least one segment" }
+        segmentIndex = (segmentFiles(directory).lastOrNull()?.let { segmentIndexOf(it) } ?: -1L) + 1
+    }
+
+    @Synchronized
+    fun record(timestampNanos: Long, address: Long, rssi: Int, payload: ByteArray?) {
+        if (closed) return
+        val data = payload ?: EMPTY
+        val required = RECORD_HEADER_SIZE + data.size
+        if (required > segmentSize - HEADER_SIZE) {
+            dropped++
+            return
+        }
+        try {
+            val buffer = buffer?.takeIf { it.remaining() >= required } ?: nextSegment()
+            buffer.putInt(required - LENGTH_SIZE)
+            buffer.putLong(timestampNanos)
+            buffer.putLong(address)
+            buffer.put(rssi.toByte())
+            buffer.put(data)
+            recorded++
+        } catch (e: IOException) {
+            Timber.w(e, "Can't write advertisement capture")
+            dropped++
+        }
+    }
+
+    /**
+     * Flushes the current segment; further advertisements are ignored.
+     */
+    @Synchronized
+    override fun close() {
+        closed = true
+        buffer?.force()
+        buffer = null
+    }
+
+    private fun nextSegment(): MappedByteBuffer {
+        buffer?.force()
+        buffer = null
+        directory.mkdirs()
+        val file = File(directory, segmentName(segmentIndex++))
+        val mapped = RandomAccessFile(file, "rw").use { segment ->
+            segment.setLength(0)
+            // the mapping stays valid after the file is closed
+            segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize.toLong())
+        }
+        mapped.putInt(MAGIC)
+        mapped.putInt(VERSION)
+        buffer = mapped
+        val segments = segmentFiles(directory)
+        for (old in segments.take(maxOf(0, segments.size - maxSegments))) {
+            if (!old.delete()) Timber.w("Can't delete capture segment $old")
+        }
+        return mapped
+    }
+
+    companion object {
+        const val DEFAULT_SEGMENT_SIZE = 1024 * 1024
+        const val DEFAULT_MAX_SEGMENTS = 8
+        internal const val MAGIC = 0x52414456 // "RADV"
+        internal const val VERSION = 1
+        internal const val HEADER_SIZE = 8
+        internal const val LENGTH_SIZE = 4
+        /** Length, timestamp, address and RSSI */
+        internal const val RECORD_HEADER_SIZE = LENGTH_SIZE + 8 + 8 + 1
+        private const val PREFIX = "capture-"
+        private const val SUFFIX = ".bin"
+        private val EMPTY = ByteArray(0)
+
+        private fun segmentName(index: Long) = PREFIX + index.toString().padStart(12, '0') + SUFFIX
+
+        private fun segmentIndexOf(file: File): Long? =
+            file.name.removePrefix(PREFIX).removeSuffix(SUFFIX).toLongOrNull()
+
+        /**
+         * Segment files in [directory], oldest first.
+         */
+        internal fun segmentFiles(directory: File): List<File> =
+            (directory.listFiles() ?: emptyArray())
+                .filter { it.name.startsWith(PREFIX) && it.name.endsWith(SUFFIX) && segmentIndexOf(it) != null }
+                .sortedBy { segmentIndexOf(it) }
+    }
+}
+
+/**
+ * Reads captures written by [AdvertisementRecorder]. Segments are memory-mapped one at a time
+ * while iterating, so only the current record is copied to the heap.
+ */
+class AdvertisementCaptureReader(private val directory: File) {
+
+    fun segments(): List<File> = AdvertisementRecorder.segmentFiles(directory)
+
+    /**
+     * All captured advertisements, oldest first, read lazily.
+     */
+    fun captures(): Sequence<CapturedAdvertisement> = sequence {
+        for (segment in segments()) {
+            val buffer = map(segment) ?: continue
+            while (buffer.remaining() >= AdvertisementRecorder.LENGTH_SIZE) {
+                val length = buffer.int
+                val payloadSize = length - (AdvertisementRecorder.RECORD_HEADER_SIZE - AdvertisementRecorder.LENGTH_SIZE)
+                if (payloadSize < 0 || length > buffer.remaining()) break
+                val timestampNanos = buffer.long
+                val address = buffer.long
+                val rssi = buffer.get().toInt()
+                val payload = ByteArray(payloadSize)
+                buffer.get(payload)
+                yield(CapturedAdvertisement(timestampNanos, address, rssi, payload))
+            }
+        }
+    }
+
+    private fun map(segment: File): ByteBuffer? = try {
+        RandomAccessFile(segment, "r").use { file ->
+            val buffer = file.channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length())
+            if (buffer.remaining() < AdvertisementRecorder.HEADER_SIZE ||
+                buffer.int != AdvertisementRecorder.MAGIC ||
+                buffer.int != AdvertisementRecorder.VERSION
+            ) {
+                Timber.w("Not a capture segment: $segment")
+                null
+            } else {
+                buffer
+            }
+        }
+    } catch (e: IOException) {
+        // deleted by the recorder while reading, or unreadable
+        Timber.w(e, "Can't read capture segment $segment")
+        null
+    }
+}
@@ -0,0 +1,194 @@
+package com.ruuvi.station.bluetooth.storage
+
+import java.nio.ByteBuffer
+
+/**
+ * Writes a bit stream into a zero-filled region of [buffer] starting at [offset].
+ */
+internal class BitWriter(private val buffer: ByteArray, private val offset: Int) {
+    var bitPosition = 0
+        private set
+
+    fun writeBit(bit: Boolean) {
+        writeBits(if (bit) 1L else 0L, 1)
+    }
+
+    fun writeBits(value: Long, count: Int) {
+        var remaining = count
+        while (remaining > 0) {
+            val index = offset + (bitPosition ushr 3)
+            val free = 8 - (bitPosition and 7)
+            val n = minOf(free, remaining)
+            val bits = ((value ushr (remaining - n)) and ((1L shl n) - 1)).toInt()
+            buffer[index] = (buffer[index].toInt() or (bits shl (free - n))).toByte()
+            bitPosition += n
+            remaining -= n
+        }
+    }
+}
+
+/**
+ * Reads a bit stream from [buffer] starting at absolute position [offset], without copying.
+ */
+internal class BitReader(private val buffer: ByteBuffer, private val offset: Int) {
+    private var bitPosition = 0
+
+    fun readBit(): Boolean = readBits(1) != 0L
+
+    fun readBits(count: Int): Long {
+        var result = 0L
+        var remaining = count
+        while (remaining > 0) {
+            val current = buffer.get(offset + (bitPosition ushr 3)).toInt() and 0xFF
+            val available = 8 - (bitPosition and 7)
+            val n = minOf(available, remaining)
+            val bits = (current ushr (available - n)) and ((1 shl n) - 1)
+            result = (result shl n) or bits.toLong()
+            bitPosition += n
+            remaining -= n
+        }
+        return result
+    }
+}
+
+/**
+ * Delta-of-delta timestamp encoding from the Gorilla paper.
+ */
+internal class TimestampEncoder {
+    private var previous = 0L
+    private var previousDelta = 0L
+
+    fun writeFirst(writer: BitWriter, timestamp: Long) {
+        writer.writeBits(timestamp, 64)
+        previous = timestamp
+        previousDelta = 0
+    }
+
+    fun write(writer: BitWriter, timestamp: Long) {
+        val delta = timestamp - previous
+        val deltaOfDelta = delta - previousDelta
+        when (deltaOfDelta) {
+            0L -> writer.writeBits(0b0, 1)
+            in -64L..63L -> {
+                writer.writeBits(0b10, 2)
+                writer.writeBits(deltaOfDelta, 7)
+            }
+            in -256L..255L -> {
+                writer.writeBits(0b110, 3)
+                writer.writeBits(deltaOfDelta, 9)
+            }
+            in -2048L..2047L -> {
+                writer.writeBits(0b1110, 4)
+                writer.writeBits(deltaOfDelta, 12)
+            }
+            else -> {
+                writer.writeBits(0b1111, 4)
+                writer.writeBits(deltaOfDelta, 32)
+            }
+        }
+        previousDelta = delta
+        previous = timestamp
+    }
+
+    companion object {
+        const val MAX_BITS = 4 + 32
+    }
+}
+
+internal class TimestampDecoder {
+    private var previous = 0L
+    private var previousDelta = 0L
+
+    fun readFirst(reader: BitReader): Long {
+        previous = reader.readBits(64)
+        previousDelta = 0
+        return previous
+    }
+
+    fun read(reader: BitReader): Long {
+        val deltaOfDelta = when {
+            !reader.readBit() -> 0L
+            !reader.readBit() -> signExtend(reader.readBits(7), 7)
+            !reader.readBit() -> signExtend(reader.readBits(9), 9)
+            !reader.readBit() -> signExtend(reader.readBits(12), 12)
+            else -> signExtend(reader.readBits(32), 32)
+        }
+        previousDelta += deltaOfDelta
+        previous += previousDelta
+        return previous
+    }
+
+    private fun signExtend(value: Long, bits: Int): Long {
+        val shift = 64 - bits
+        return (value shl shift) shr shift
+    }
+}
+
+/**
+ * XOR encoding of consecutive doubles from the Gorilla paper.
+ */
+internal class ValueEncoder {
+    private var previous = 0L
+    private var leadingZeros = Int.MAX_VALUE
+    private var trailingZeros = 0
+
+    fun writeFirst(writer: BitWriter, value: Double) {
+        previous = java.lang.Double.doubleToRawLongBits(value)
+        leadingZeros = Int.MAX_VALUE
+        trailingZeros = 0
+        writer.writeBits(previous, 64)
+    }
+
+    fun write(writer: BitWriter, value: Double) {
+        val bits = java.lang.Double.doubleToRawLongBits(value)
+        val xor = bits xor previous
+        if (xor == 0L) {
+            writer.writeBit(false)
+        } else {
+            writer.writeBit(true)
+            val leading = minOf(java.lang.Long.numberOfLeadingZeros(xor), 31)
+            val trailing = java.lang.Long.numberOfTrailingZeros(xor)
+            if (leadingZeros != Int.MAX_VALUE && leading >= leadingZeros && trailing >= trailingZeros) {
+                writer.writeBit(false)
+                writer.writeBits(xor ushr trailingZeros, 64 - leadingZeros - trailingZeros)
+            } else {
+                val significant = 64 - leading - trailing
+                writer.writeBit(true)
+                writer.writeBits(leading.toLong(), 5)
+                writer.writeBits((significant - 1).toLong(), 6)
+                writer.writeBits(xor ushr trailing, significant)
+                leadingZeros = leading
+                trailingZeros = trailing
+            }
+        }
+        previous = bits
+    }
+
+    companion object {
+        const val MAX_BITS = 2 + 5 + 6 + 64
+    }
+}
+
+internal class ValueDecoder {
+    private var previous = 0L
+    private var leadingZeros = 0
+    private var trailingZeros = 0
+
+    fun readFirst(reader: BitReader): Double {
+        previous = reader.readBits(64)
+        return java.lang.Double.longBitsToDouble(previous)
+    }
+
+    fun read(reader: BitReader): Double {
+        if (reader.readBit()) {
+            if (reader.readBit()) {
+                leadingZeros = reader.readBits(5).toInt()
+                val significant = reader.readBits(6).toInt() + 1
+                trailingZeros = 64 - leadingZeros - significant
+            }
+            val significant = 64 - leadingZeros - trailingZeros
+            previous = previous xor (reader.readBits(significant) shl trailingZeros)
+        }
+        return java.lang.Double.longBitsToDouble(previous)
+    }
+}
@@ -0,0 +1,361 @@
+package com.ruuvi.station.bluetooth.storage
+
+import android.content.Context
+import com.ruuvi.station.bluetooth.LogReading
+import timber.log.Timber
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.*
+import java.util.zip.CRC32
+
+/**
+ * Append-only store for synced history, one file per tag.
+ *
+ * Files are a sequence of [BLOCK_SIZE] byte blocks. Each block starts with a header (reading
+ * count, payload bit length, first and last timestamp) followed by a Gorilla-compressed stream:
+ * delta-of-delta timestamps in seconds and XOR-compressed temperature, humidity and pressure.
+ * Missing values are stored as NaN. Complete blocks are never written again: an append rewrites
+ * only the last block, which it reopens to keep filling, and adds new blocks after it. Before
+ * that, the old last block and the block count go to a small journal next to the file, which is
+ * deleted once the append is forced to disk; a journal found later means the append was cut
+ * short, and it's rolled back before the file is read or appended to. Range queries memory-map
+ * the file and decode just the blocks overlapping the requested range.
+ */
+class TimeSeriesStore(private val directory: File) {
+
+    /**
+     * Called after each block an append writes, before the append is committed. Lets tests cut
+     * an append short.
+     */
+    internal var onBlockWritten: ((Int) -> Unit)? = null
+
+    /**
+     * Appends [readings] newer than the last stored reading of [tagId]. Readings at or before
+     * the last stored timestamp, including duplicates within [readings], are rejected and logged.
+     *
+     * @return number of readings stored
+     */
+    @Synchronized
+    fun append(tagId: String, readings: List<LogReading>): Int {
+        if (readings.isEmpty()) return 0
+        directory.mkdirs()
+        val file = fileFor(tagId)
+        recover(file)
+
+        RandomAccessFile(file, "rw").use { randomAccessFile ->
+            val channel = randomAccessFile.channel
+            val blockCount = (channel.size() / BLOCK_SIZE).toInt()
+            val block = BlockBuilder()
+            val lastBlock = ByteBuffer.allocate(BLOCK_SIZE)
+            var lastTimestamp = Long.MIN_VALUE
+
+            if (blockCount > 0) {
+                readFully(channel, lastBlock, (blockCount - 1).toLong() * BLOCK_SIZE)
+                val header = BlockHeader.read(lastBlock, 0)
+                lastTimestamp = header.lastTimestamp
+                // reopen the last block so it keeps filling up
+                decodeBlock(lastBlock, 0, header, Long.MIN_VALUE, Long.MAX_VALUE) { timestamp, temperature, humidity, pressure ->
+                    block.add(timestamp, temperature, humidity, pressure)
+                }
+            }
+
+            val sorted = readings.sortedBy { it.date.time }
+            val accepted = ArrayList<LogReading>(sorted.size)
+            for (reading in sorted) {
+                val timestamp = reading.date.time / 1000
+                if (timestamp <= lastTimestamp) continue
+                accepted.add(reading)
+                lastTimestamp = timestamp
+            }
+            val rejected = readings.size - accepted.size
+            if (rejected > 0) Timber.w("$tagId rejected $rejected readings older than the stored history")
+            if (accepted.isEmpty()) return 0
+
+            writeJournal(journalFor(file), blockCount, lastBlock)
+            var blockIndex = maxOf(blockCount - 1, 0)
+            for (reading in accepted) {
+                if (!block.hasRoom()) {
+                    block.writeTo(channel, blockIndex)
+                    onBlockWritten?.invoke(blockIndex)
+                    blockIndex++
+                    block.reset()
+                }
+                block.add(reading.date.time / 1000, reading.temperature.orNaN(), reading.humidity.orNaN(), reading.pressure.orNaN())
+            }
+            block.writeTo(channel, blockIndex)
+            onBlockWritten?.invoke(blockIndex)
+            channel.force(false)
+            journalFor(file).delete()
+            Timber.d("$tagId stored ${accepted.size} readings")
+            return accepted.size
+        }
+    }
+
+    /**
+     * Readings of [tagId] with from <= date <= to, in time order.
+     */
+    @Synchronized
+    fun query(tagId: String, from: Date, to: Date): List<LogReading> {
+        val result = mutableListOf<LogReading>()
+        forEachReading(tagId, from.time / 1000, to.time / 1000) { timestamp, temperature, humidity, pressure ->
+            val reading = LogReading()
+            reading.id = tagId
+            reading.date = Date(timestamp * 1000)
+            reading.temperature = temperature.orNull()
+            reading.humidity = humidity.orNull()
+            reading.pressure = pressure.orNull()
+            result.add(reading)
+        }
+        return result
+    }
+
+    /**
+     * Streams readings of [tagId] in the range (seconds, inclusive) without creating objects
+     * per reading.
+     */
+    @Synchronized
+    fun forEachReading(tagId: String, fromSeconds: Long, toSeconds: Long, action: ReadingConsumer) {
+        val file = fileFor(tagId)
+        recover(file)
+        if (!file.exists() || file.length() < BLOCK_SIZE) return
+
+        RandomAccessFile(file, "r").use { randomAccessFile ->
+            val channel = randomAccessFile.channel
+            val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+            val blockCount = (channel.size() / BLOCK_SIZE).toInt()
+
+            var index = firstBlockEndingAfter(buffer, blockCount, fromSeconds)
+            while (index < blockCount) {
+                val offset = index * BLOCK_SIZE
+                val header = BlockHeader.read(buffer, offset)
+                if (header.firstTimestamp > toSeconds) break
+                decodeBlock(buffer, offset, header, fromSeconds, toSeconds) { timestamp, temperature, humidity, pressure ->
+                    action.accept(timestamp, temperature, humidity, pressure)
+                }
+                index++
+            }
+        }
+    }
+
+    @Synchronized
+    fun getLatestTimestamp(tagId: String): Date? {
+        val file = fileFor(tagId)
+        recover(file)
+        if (!file.exists() || file.length() < BLOCK_SIZE) return null
+        RandomAccessFile(file, "r").use { randomAccessFile ->
+            val channel = randomAccessFile.channel
+            val blockCount = channel.size() / BLOCK_SIZE
+            val header = ByteBuffer.allocate(BlockHeader.SIZE)
+            channel.read(header, (blockCount - 1) * BLOCK_SIZE)
+            return Date(BlockHeader.read(header, 0).lastTimestamp * 1000)
+        }
+    }
+
+    fun getSizeOnDisk(tagId: String): Long = fileFor(tagId).length()
+
+    @Synchronized
+    fun delete(tagId: String): Boolean {
+        val file = fileFor(tagId)
+        journalFor(file).delete()
+        return file.delete()
+    }
+
+    private fun fileFor(tagId: String) = File(directory, tagId.replace(":", "") + FILE_EXTENSION)
+
+    private fun journalFor(file: File) = File(directory, file.name + JOURNAL_EXTENSION)
+
+    /**
+     * Saves the block count and the last block before an append touches [blockCount] - 1 and
+     * beyond. The entry ends with a CRC32 so a journal torn by a crash is recognised.
+     */
+    private fun writeJournal(journal: File, blockCount: Int, lastBlock: ByteBuffer) {
+        val entry = ByteBuffer.allocate(JOURNAL_SIZE)
+        entry.putInt(blockCount)
+        entry.put(lastBlock.array(), 0, BLOCK_SIZE)
+        val crc = CRC32()
+        crc.update(entry.array(), 0, JOURNAL_SIZE - 8)
+        entry.putLong(crc.value)
+        entry.flip()
+        RandomAccessFile(journal, "rw").use { out ->
+            out.setLength(0)
+            out.channel.write(entry, 0)
+            out.channel.force(true)
+        }
+    }
+
+    /**
+     * Rolls back an append that didn't finish: puts the journaled last block back and cuts off
+     * the blocks written after it. A torn journal means the append stopped before writing to
+     * [file], so it's just removed.
+     */
+    private fun recover(file: File) {
+        val journal = journalFor(file)
+        if (!journal.exists()) return
+        val entry = ByteBuffer.allocate(JOURNAL_SIZE)
+        RandomAccessFile(journal, "r").use { readFully(it.channel, entry, 0) }
+        val crc = CRC32()
+        crc.update(entry.array(), 0, JOURNAL_SIZE - 8)
+        if (!entry.hasRemaining() && entry.getLong(JOURNAL_SIZE - 8) == crc.value) {
+            val blockCount = entry.getInt(0)
+            RandomAccessFile(file, "rw").use { out ->
+                if (blockCount > 0) {
+                    out.channel.write(ByteBuffer.wrap(entry.array(), 4, BLOCK_SIZE), (blockCount - 1).toLong() * BLOCK_SIZE)
+                }
+                out.setLength(blockCount.toLong() * BLOCK_SIZE)
+                out.channel.force(false)
+            }
+            Timber.w("${file.name} rolled back an interrupted append")
+        }
+        journal.delete()
+    }
+
+    private fun readFully(channel: FileChannel, buffer: ByteBuffer, position: Long) {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) return
+        }
+    }
+
+    private fun firstBlockEndingAfter(buffer: ByteBuffer, blockCount: Int, timestamp: Long): Int {
+        var low = 0
+        var high = blockCount
+        while (low < high) {
+            val middle = (low + high) ushr 1
+            if (buffer.getLong(middle * BLOCK_SIZE + BlockHeader.LAST_TIMESTAMP_OFFSET) < timestamp) {
+                low = middle + 1
+            } else {
+                high = middle
+            }
+        }
+        return low
+    }
+
+    private inline fun decodeBlock(
+        buffer: ByteBuffer,
+        offset: Int,
+        header: BlockHeader,
+        fromSeconds: Long,
+        toSeconds: Long,
+        action: (Long, Double, Double, Double) -> Unit
+    ) {
+        if (header.count == 0) return
+        val reader = BitReader(buffer, offset + BlockHeader.SIZE)
+        val timestamps = TimestampDecoder()
+        val temperatures = ValueDecoder()
+        val humidities = ValueDecoder()
+        val pressures = ValueDecoder()
+
+        var timestamp = timestamps.readFirst(reader)
+        var temperature = temperatures.readFirst(reader)
+        var humidity = humidities.readFirst(reader)
+        var pressure = pressures.readFirst(reader)
+        var i = 0
+        while (true) {
+            if (timestamp > toSeconds) return
+            if (timestamp >= fromSeconds) action(timestamp, temperature, humidity, pressure)
+            if (++i == header.count) return
+            timestamp = timestamps.read(reader)
+            temperature = temperatures.read(reader)
+            humidity = humidities.read(reader)
+            pressure = pressures.read(reader)
+        }
+    }
+
+    fun interface ReadingConsumer {
+        /**
+         * Missing values are NaN.
+         */
+        fun accept(timestampSeconds: Long, temperature: Double, humidity: Double, pressure: Double)
+    }
+
+    private class BlockHeader(val count: Int, val bitLength: Int, val firstTimestamp: Long, val lastTimestamp: Long) {
+        companion object {
+            const val SIZE = 24
+            const val LAST_TIMESTAMP_OFFSET = 16
+
+            fun read(buffer: ByteBuffer, offset: Int) = BlockHeader(
+                count = buffer.getInt(offset),
+                bitLength = buffer.getInt(offset + 4),
+                firstTimestamp = buffer.getLong(offset + 8),
+                lastTimestamp = buffer.getLong(offset + LAST_TIMESTAMP_OFFSET)
+            )
+        }
+    }
+
+    private class BlockBuilder {
+        private val bytes = ByteArray(BLOCK_SIZE)
+        private var writer = BitWriter(bytes, BlockHeader.SIZE)
+        private val timestamps = TimestampEncoder()
+        private val temperatures = ValueEncoder()
+        private val humidities = ValueEncoder()
+        private val pressures = ValueEncoder()
+        private var firstTimestamp = 0L
+        private var lastTimestamp = 0L
+
+        var count = 0
+            private set
+
+        fun hasRoom(): Boolean = writer.bitPosition + MAX_POINT_BITS <= PAYLOAD_BITS
+
+        fun add(timestamp: Long, temperature: Double, humidity: Double, pressure: Double) {
+            if (count == 0) {
+                firstTimestamp = timestamp
+                timestamps.writeFirst(writer, timestamp)
+                temperatures.writeFirst(writer, temperature)
+                humidities.writeFirst(writer, humidity)
+                pressures.writeFirst(writer, pressure)
+            } else {
+                timestamps.write(writer, timestamp)
+                temperatures.write(writer, temperature)
+                humidities.write(writer, humidity)
+                pressures.write(writer, pressure)
+            }
+            lastTimestamp = timestamp
+            count++
+        }
+
+        fun writeTo(channel: FileChannel, index: Int) {
+            val buffer = ByteBuffer.wrap(bytes)
+            buffer.putInt(0, count)
+            buffer.putInt(4, writer.bitPosition)
+            buffer.putLong(8, firstTimestamp)
+            buffer.putLong(BlockHeader.LAST_TIMESTAMP_OFFSET, lastTimestamp)
+            channel.write(buffer, index.toLong() * BLOCK_SIZE)
+        }
+
+        fun reset() {
+            Arrays.fill(bytes, 0)
+            writer = BitWriter(bytes, BlockHeader.SIZE)
+            count = 0
+        }
+    }
+
+    companion object {
+        const val BLOCK_SIZE = 4096
+        private const val FILE_EXTENSION = ".rts"
+        private const val JOURNAL_EXTENSION = ".journal"
+        private const val JOURNAL_SIZE = 4 + BLOCK_SIZE + 8
+        private const val PAYLOAD_BITS = (BLOCK_SIZE - BlockHeader.SIZE) * 8
+        private const val MAX_POINT_BITS = TimestampEncoder.MAX_BITS + 3 * ValueEncoder.MAX_BITS
+
+        @Volatile
+        private var instance: TimeSeriesStore? = null
+
+        /**
+         * The store of the app's history directory. Appends lock the instance, so every caller
+         * must share this one rather than create their own for the same directory.
+         */
+        fun get(context: Context): TimeSeriesStore =
+            instance ?: synchronized(this) {
+                instance ?: TimeSeriesStore(File(context.applicationContext.filesDir, "ruuvi_history")).also {
+                    instance = it
+                }
+            }
+
+        private fun Double?.orNaN(): Double = this ?: Double.NaN
+
+        private fun Double.orNull(): Double? = if (isNaN()) null else this
+    }
+}
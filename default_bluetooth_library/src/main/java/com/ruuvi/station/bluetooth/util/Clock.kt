@@ -0,0 +1,28 @@
+package com.ruuvi.station.bluetooth.util
+
+import android.os.SystemClock
+
+/**
+ * Monotonic time source, replaceable where timing logic has to run without real time passing.
+ */
+interface Clock {
+    fun elapsedRealtime(): Long
+
+    fun elapsedRealtimeNanos(): Long = elapsedRealtime() * 1000000
+}
+
+object SystemClockTime : Clock {
+    override fun elapsedRealtime(): Long = SystemClock.elapsedRealtime()
+
+    override fun elapsedRealtimeNanos(): Long = SystemClock.elapsedRealtimeNanos()
+}
+
+/**
+ * [System.nanoTime] based clock for running the scan pipeline outside Android, e.g. when
+ * replaying captures on a JVM. Its time base differs from [SystemClockTime].
+ */
+object NanoTimeClock : Clock {
+    override fun elapsedRealtime(): Long = System.nanoTime() / 1000000
+
+    override fun elapsedRealtimeNanos(): Long = System.nanoTime()
+}
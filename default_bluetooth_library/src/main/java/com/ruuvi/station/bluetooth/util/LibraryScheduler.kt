@@ -0,0 +1,64 @@
+package com.ruuvi.station.bluetooth.util
+
+import timber.log.Timber
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+
+/**
+ * Delayed work that can be cancelled before it runs.
+ */
+interface ScheduledTask {
+    val isDone: Boolean
+
+    fun cancel()
+}
+
+interface TaskScheduler {
+    fun schedule(delayMillis: Long, task: () -> Unit): ScheduledTask
+}
+
+/**
+ * Single daemon thread shared by all delayed work of the library, so scan cycles and reconnects
+ * don't start a thread each. Cancelled tasks are removed from the queue right away.
+ */
+object LibraryScheduler : TaskScheduler {
+    private const val THREAD_NAME = "ruuvi-scheduler"
+
+    private val executor = ScheduledThreadPoolExecutor(1, ThreadFactory { runnable ->
+        Thread(runnable, THREAD_NAME).apply { isDaemon = true }
+    }).apply {
+        removeOnCancelPolicy = true
+    }
+
+    override fun schedule(delayMillis: Long, task: () -> Unit): ScheduledTask =
+        FutureTask(executor.schedule(Runnable {
+            try {
+                task()
+            } catch (e: Exception) {
+                Timber.e(e, "Scheduled task failed")
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS))
+
+    /**
+     * Tasks waiting to run, cancelled ones excluded.
+     */
+    val pendingTasks: Int
+        get() = executor.queue.size
+
+    /**
+     * Threads the scheduler has started, at most one.
+     */
+    val threadCount: Int
+        get() = executor.poolSize
+
+    private class FutureTask(private val future: ScheduledFuture<*>) : ScheduledTask {
+        override val isDone: Boolean
+            get() = future.isDone
+
+        override fun cancel() {
+            future.cancel(false)
+        }
+    }
+}
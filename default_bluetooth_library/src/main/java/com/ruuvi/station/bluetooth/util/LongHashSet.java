@@ -0,0 +1,99 @@
+package com.ruuvi.station.bluetooth.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing set of non-negative longs, e.g. MAC addresses packed with
+ * {@code MacAddressKt.macToLong}. Stores the values in a single long[] instead of one boxed
+ * object per entry.
+ */
+public class LongHashSet {
+    private static final long EMPTY = -1L;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] slots;
+    private int size = 0;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashSet(int expectedSize) {
+        slots = new long[capacityFor(expectedSize)];
+        Arrays.fill(slots, EMPTY);
+    }
+
+    /**
+     * @return true if the value was not in the set yet
+     */
+    public boolean add(long value) {
+        if (value < 0) throw new IllegalArgumentException("Negative value " + value);
+        if ((size + 1) * 4 > slots.length * 3) {
+            rehash(slots.length * 2);
+        }
+        int mask = slots.length - 1;
+        int index = mix(value) & mask;
+        while (slots[index] != EMPTY) {
+            if (slots[index] == value) return false;
+            index = (index + 1) & mask;
+        }
+        slots[index] = value;
+        size++;
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value < 0) return false;
+        int mask = slots.length - 1;
+        int index = mix(value) & mask;
+        while (slots[index] != EMPTY) {
+            if (slots[index] == value) return true;
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * @return the values in no particular order
+     */
+    public long[] toArray() {
+        long[] values = new long[size];
+        int count = 0;
+        for (long slot : slots) {
+            if (slot != EMPTY) values[count++] = slot;
+        }
+        return values;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = slots;
+        slots = new long[capacity];
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+        for (long value : old) {
+            if (value != EMPTY) add(value);
+        }
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int mix(long value) {
+        long hash = value * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
@@ -1,6 +1,7 @@
 package com.ruuvi.station.bluetooth.util
 
 import android.app.PendingIntent
+import com.ruuvi.station.bluetooth.ScanAllowlist
 
 interface ScannerSettings {
     fun allowBackgroundScan(): Boolean
@@ -9,4 +10,28 @@ interface ScannerSettings {
     fun getNotificationTitle(): String
     fun getNotificationText(): String
     fun getNotificationPendingIntent(): PendingIntent?
+
+    /**
+     * MAC addresses of the tags a background scan waits for. The scan stops as soon as all of
+     * them have reported; when empty it runs for the full work time.
+     */
+    fun getExpectedTags(): Set<String> = emptySet()
+
+    /**
+     * Whether background scan windows keep only the latest reading per tag and deliver them
+     * together at the end of the window. Needs a batch listener on the interactor.
+     */
+    fun coalesceBackgroundResults(): Boolean = false
+
+    /**
+     * Tags scanning is limited to. Read whenever a scan starts; empty scans for all tags.
+     */
+    fun getScanAllowlist(): ScanAllowlist = ScanAllowlist()
+
+    /**
+     * On Android 8+ scan in the background with a system-held PendingIntent scan instead of the
+     * foreground service. Needs [com.ruuvi.station.bluetooth.BackgroundScanReceiver] in the
+     * app manifest.
+     */
+    fun usePendingIntentBackgroundScan(): Boolean = false
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+package com.ruuvi.station.bluetooth.util
+
+import com.ruuvi.station.bluetooth.util.extensions.toMacAddress
+import java.io.*
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Hot path events of the library. The meaning of the two values depends on the event.
+ */
+enum class TraceEvent {
+    /** value1 = RSSI, value2 = radio timestamp in elapsed realtime nanoseconds */
+    SCAN_RESULT,
+    /** value1 = measurement sequence number */
+    MEASUREMENT_SKIPPED,
+    /** value1 = notification size, value2 = first byte */
+    GATT_NOTIFICATION
+}
+
+/**
+ * @param address MAC address packed with macToLong, -1 when unknown
+ */
+data class TraceRecord(
+    val timestampNanos: Long,
+    val event: TraceEvent,
+    val address: Long,
+    val value1: Long,
+    val value2: Long
+) {
+    override fun toString(): String {
+        val device = if (address >= 0) address.toMacAddress() else "-"
+        return "$timestampNanos $event $device $value1 $value2"
+    }
+}
+
+/**
+ * Fixed-size binary events in a ring buffer, replacing per-packet log lines: recording an event
+ * stores a few longs without formatting anything, and the last [CAPACITY] events can be read
+ * or written to a file when something needs to be diagnosed.
+ *
+ * Each event type can be sampled, e.g. only every 10th scan result kept, or turned off.
+ */
+object TraceLog {
+    const val CAPACITY = 2048
+    private const val FIELDS = 6
+    private const val SEQUENCE = 0
+    private const val DUMP_VERSION = 1
+
+    /**
+     * Slot layout: sequence + 1 once complete (0 while written), timestamp, event, address,
+     * value1, value2.
+     */
+    private val slots = AtomicLongArray(CAPACITY * FIELDS)
+    private val next = AtomicLong()
+    private val sampleEvery = AtomicIntegerArray(IntArray(TraceEvent.values().size) { 1 })
+    private val seen = AtomicLongArray(TraceEvent.values().size)
+
+    @Volatile
+    var enabled = true
+
+    /**
+     * Keeps every [everyNth] event of the type, 0 turns the type off.
+     */
+    fun setSampling(event: TraceEvent, everyNth: Int) {
+        require(everyNth >= 0) { "Negative sampling $everyNth" }
+        sampleEvery.set(event.ordinal, everyNth)
+    }
+
+    fun record(event: TraceEvent, address: Long, value1: Long = 0, value2: Long = 0) {
+        if (!enabled) return
+        val every = sampleEvery.get(event.ordinal)
+        if (every == 0) return
+        if (every > 1 && seen.getAndIncrement(event.ordinal) % every != 0L) return
+        val sequence = next.getAndIncrement()
+        val base = (sequence % CAPACITY).toInt() * FIELDS
+        slots.set(base + SEQUENCE, 0)
+        slots.lazySet(base + 1, System.nanoTime())
+        slots.lazySet(base + 2, event.ordinal.toLong())
+        slots.lazySet(base + 3, address)
+        slots.lazySet(base + 4, value1)
+        slots.lazySet(base + 5, value2)
+        slots.set(base + SEQUENCE, sequence + 1)
+    }
+
+    /**
+     * @return the retained events, oldest first, without ones overwritten while reading
+     */
+    fun snapshot(): List<TraceRecord> {
+        val end = next.get()
+        val start = maxOf(0, end - CAPACITY)
+        val events = TraceEvent.values()
+        val records = ArrayList<TraceRecord>((end - start).toInt())
+        for (sequence in start until end) {
+            val base = (sequence % CAPACITY).toInt() * FIELDS
+            if (slots.get(base + SEQUENCE) != sequence + 1) continue
+            val record = TraceRecord(
+                timestampNanos = slots.get(base + 1),
+                event = events[slots.get(base + 2).toInt()],
+                address = slots.get(base + 3),
+                value1 = slots.get(base + 4),
+                value2 = slots.get(base + 5)
+            )
+            if (slots.get(base + SEQUENCE) == sequence + 1) records.add(record)
+        }
+        return records
+    }
+
+    /**
+     * Writes the retained events to [file]: version, count, then per event the timestamp,
+     * event ordinal, address and both values.
+     *
+     * @return number of events written
+     */
+    fun dump(file: File): Int {
+        val records = snapshot()
+        val temporary = File(file.path + ".tmp")
+        DataOutputStream(BufferedOutputStream(FileOutputStream(temporary))).use { output ->
+            output.writeInt(DUMP_VERSION)
+            output.writeInt(records.size)
+            for (record in records) {
+                output.writeLong(record.timestampNanos)
+                output.writeByte(record.event.ordinal)
+                output.writeLong(record.address)
+                output.writeLong(record.value1)
+                output.writeLong(record.value2)
+            }
+        }
+        if (!temporary.renameTo(file)) throw IOException("Can't replace $file")
+        return records.size
+    }
+
+    /**
+     * Events recorded since the last [clear], including overwritten ones.
+     */
+    val recordedEvents: Long
+        get() = next.get()
+
+    fun clear() {
+        next.set(0)
+        for (i in 0 until slots.length()) slots.set(i, 0)
+        for (i in 0 until seen.length()) seen.set(i, 0)
+    }
+}
@@ -0,0 +1,34 @@
+package com.ruuvi.station.bluetooth.util.extensions
+
+/**
+ * Packs a MAC address like AA:BB:CC:DD:EE:FF into the low 48 bits of a Long, or returns -1 when
+ * the string is not a MAC address.
+ */
+fun String.macToLong(): Long {
+    if (length != MAC_LENGTH) return -1
+    var value = 0L
+    for (i in 0 until MAC_LENGTH) {
+        val char = this[i]
+        if (i % 3 == 2) {
+            if (char != ':') return -1
+            continue
+        }
+        val digit = Character.digit(char, 16)
+        if (digit < 0) return -1
+        value = value shl 4 or digit.toLong()
+    }
+    return value
+}
+
+fun Long.toMacAddress(): String {
+    val builder = StringBuilder(MAC_LENGTH)
+    for (i in 5 downTo 0) {
+        val octet = (this ushr (i * 8) and 0xFF).toInt()
+        builder.append(HEX_DIGITS[octet shr 4]).append(HEX_DIGITS[octet and 0x0F])
+        if (i > 0) builder.append(':')
+    }
+    return builder.toString()
+}
+
+private const val MAC_LENGTH = 17
+private const val HEX_DIGITS = "0123456789ABCDEF"
@@ -0,0 +1,70 @@
+package com.ruuvi.station.bluetooth
+
+import android.bluetooth.BluetoothAdapter
+import android.bluetooth.le.BluetoothLeScanner
+import android.bluetooth.le.ScanResult
+import android.content.Intent
+import android.os.Parcel
+import org.junit.Assert.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class BackgroundScanReceiverTest {
+
+    @Test
+    fun extractsResultsFromBatch() {
+        val results = arrayListOf(result(TAG, -60), result(OTHER, -80))
+        val intent = Intent().putParcelableArrayListExtra(BluetoothLeScanner.EXTRA_LIST_SCAN_RESULT, results)
+
+        val extracted = BackgroundScanReceiver.extractResults(intent)
+
+        assertEquals(listOf(TAG, OTHER), extracted.map { it.device.address })
+        assertEquals(listOf(-60, -80), extracted.map { it.rssi })
+    }
+
+    @Test
+    fun extractsResultsAfterParceling() {
+        val intent = Intent().putParcelableArrayListExtra(
+            BluetoothLeScanner.EXTRA_LIST_SCAN_RESULT,
+            arrayListOf(result(TAG, -70))
+        )
+
+        val extracted = BackgroundScanReceiver.extractResults(parceled(intent))
+
+        assertEquals(1, extracted.size)
+        assertEquals(TAG, extracted[0].device.address)
+        assertEquals(-70, extracted[0].rssi)
+    }
+
+    @Test
+    fun missingResultsGiveEmptyList() {
+        assertTrue(BackgroundScanReceiver.extractResults(Intent()).isEmpty())
+        val failed = Intent().putExtra(BluetoothLeScanner.EXTRA_ERROR_CODE, 2)
+        assertTrue(BackgroundScanReceiver.extractResults(failed).isEmpty())
+    }
+
+    /**
+     * The system delivers the results in another process, so the intent arrives unparceled.
+     */
+    private fun parceled(intent: Intent): Intent {
+        val parcel = Parcel.obtain()
+        try {
+            intent.writeToParcel(parcel, 0)
+            parcel.setDataPosition(0)
+            return Intent.CREATOR.createFromParcel(parcel)
+        } finally {
+            parcel.recycle()
+        }
+    }
+
+    @Suppress("DEPRECATION")
+    private fun result(address: String, rssi: Int) =
+        ScanResult(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address), null, rssi, 0L)
+
+    companion object {
+        private const val TAG = "C3:5A:12:34:56:78"
+        private const val OTHER = "D1:00:00:00:00:01"
+    }
+}
@@ -0,0 +1,182 @@
+package com.ruuvi.station.bluetooth
+
+import android.app.Application
+import android.bluetooth.BluetoothAdapter
+import android.content.Intent
+import com.ruuvi.station.bluetooth.util.ManualScheduler
+import org.junit.Assert.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+class BluetoothCrashResolverTest {
+    private val application: Application = RuntimeEnvironment.getApplication()
+    private val adapter = BluetoothAdapter.getDefaultAdapter()
+    private val scheduler = ManualScheduler()
+
+    @Test
+    fun manyDevicesStartRecoveryOnScheduler() {
+        val resolver = resolver()
+        scan(resolver, CRASH_RISK_DEVICES)
+
+        assertFalse(adapter.isDiscovering)
+        assertFalse(resolver.isRecoveryInProgress)
+
+        scheduler.advance(0)
+        assertTrue(adapter.isDiscovering)
+        assertTrue(resolver.isRecoveryInProgress)
+        assertEquals(1, resolver.recoveryAttemptCount)
+    }
+
+    @Test
+    fun discoveryBroadcastsCompleteRecovery() {
+        val resolver = resolver()
+        scan(resolver, CRASH_RISK_DEVICES)
+        scheduler.advance(0)
+        resolver.onAdapterEvent(Intent(BluetoothAdapter.ACTION_DISCOVERY_STARTED))
+        scheduler.advance(DISCOVERY_MILLIS)
+
+        assertFalse("Discovery should be cancelled", adapter.isDiscovering)
+        assertTrue(resolver.isRecoveryInProgress)
+
+        resolver.onAdapterEvent(Intent(BluetoothAdapter.ACTION_DISCOVERY_FINISHED))
+        assertFalse(resolver.isRecoveryInProgress)
+        assertTrue(resolver.isLastRecoverySucceeded)
+        assertEquals(1, resolver.succeededRecoveryCount)
+        assertEquals(0, resolver.distinctAddressCount)
+    }
+
+    @Test
+    fun devicesAreCountedAgainAfterRecovery() {
+        val resolver = resolver()
+        scan(resolver, 10)
+        scan(resolver, 10)
+        assertEquals(10, resolver.distinctAddressCount)
+
+        resolver.forceFlush()
+        scheduler.advance(0)
+        resolver.onAdapterEvent(Intent(BluetoothAdapter.ACTION_DISCOVERY_FINISHED))
+        assertEquals(0, resolver.distinctAddressCount)
+
+        scan(resolver, 10)
+        assertEquals(10, resolver.distinctAddressCount)
+    }
+
+    @Test
+    fun missingFinishedBroadcastFailsRecovery() {
+        val resolver = resolver()
+        resolver.forceFlush()
+        scheduler.advance(0)
+        resolver.onAdapterEvent(Intent(BluetoothAdapter.ACTION_DISCOVERY_STARTED))
+        scheduler.advance(DISCOVERY_MILLIS)
+        scheduler.advance(DISCOVERY_MILLIS)
+
+        assertFalse(resolver.isRecoveryInProgress)
+        assertFalse(resolver.isLastRecoverySucceeded)
+        assertEquals(1, resolver.failedRecoveryCount)
+    }
+
+    @Test
+    fun externalDiscoveryIsIgnored() {
+        val resolver = resolver()
+        resolver.onAdapterEvent(Intent(BluetoothAdapter.ACTION_DISCOVERY_STARTED))
+        resolver.onAdapterEvent(Intent(BluetoothAdapter.ACTION_DISCOVERY_FINISHED))
+        scheduler.advance(DISCOVERY_MILLIS)
+
+        assertEquals(0, resolver.recoveryAttemptCount)
+        assertEquals(0, resolver.succeededRecoveryCount + resolver.failedRecoveryCount)
+    }
+
+    @Test
+    fun quickOffAndOnIsCrash() {
+        val resolver = resolver()
+        resolver.onAdapterEvent(stateChanged(BluetoothAdapter.STATE_OFF))
+        resolver.onAdapterEvent(stateChanged(BluetoothAdapter.STATE_TURNING_ON))
+        resolver.onAdapterEvent(stateChanged(BluetoothAdapter.STATE_ON))
+
+        assertEquals(1, resolver.detectedCrashCount)
+        assertFalse("Recovery must not run on the broadcast thread", adapter.isDiscovering)
+        scheduler.advance(0)
+        assertTrue(resolver.isRecoveryInProgress)
+    }
+
+    @Test
+    fun stopUnregistersReceiverOnce() {
+        val resolver = resolver()
+        val receivers = shadowOf(application).registeredReceivers.size
+        resolver.start()
+        resolver.start()
+        assertEquals(receivers + 1, shadowOf(application).registeredReceivers.size)
+
+        resolver.stop()
+        resolver.stop()
+        assertEquals(receivers, shadowOf(application).registeredReceivers.size)
+    }
+
+    @Test
+    fun addressesSurviveRestart() {
+        val resolver = resolver()
+        scan(resolver, 100)
+        resolver.start()
+        resolver.stop()
+        scheduler.advance(0)
+
+        assertEquals(100, resolver().distinctAddressCount)
+    }
+
+    @Test
+    fun twoThousandAddressesLoadAndSaveQuickly() {
+        val file = File(application.filesDir, STATE_FILE)
+        val saves = LongArray(ROUNDS)
+        val loads = LongArray(ROUNDS)
+        for (round in 0 until ROUNDS) {
+            file.delete()
+            val resolver = resolver()
+            scan(resolver, MEASURED_ADDRESSES, round * 1000000L)
+            resolver.start()
+            resolver.stop()
+            scheduler.advance(0)
+            saves[round] = resolver.lastSaveDurationNanos
+
+            val restored = resolver()
+            loads[round] = restored.lastLoadDurationNanos
+            assertEquals(MEASURED_ADDRESSES, restored.distinctAddressCount)
+        }
+        saves.sort()
+        loads.sort()
+        val message = "$MEASURED_ADDRESSES addresses, ${file.length()} bytes: save median ${saves[ROUNDS / 2] / 1000} us, " +
+            "load median ${loads[ROUNDS / 2] / 1000} us"
+        assertTrue(message, saves[ROUNDS / 2] < MAX_MEDIAN_NANOS)
+        assertTrue(message, loads[ROUNDS / 2] < MAX_MEDIAN_NANOS)
+    }
+
+    private fun resolver(estimate: Boolean = false) = BluetoothCrashResolver(application, estimate, scheduler)
+
+    private fun scan(resolver: BluetoothCrashResolver, count: Int, first: Long = 0L) {
+        for (i in 0 until count) {
+            resolver.notifyScannedDevice(adapter.getRemoteDevice(mac(first + i)))
+        }
+    }
+
+    private fun stateChanged(state: Int) =
+        Intent(BluetoothAdapter.ACTION_STATE_CHANGED).putExtra(BluetoothAdapter.EXTRA_STATE, state)
+
+    companion object {
+        /**
+         * One more than the resolver tolerates before it pares Bluedroid's address list.
+         */
+        private const val CRASH_RISK_DEVICES = 1990 - 400 + 1
+        private const val DISCOVERY_MILLIS = 5000L
+        private const val STATE_FILE = "BluetoothCrashResolverState.bin"
+        private const val MEASURED_ADDRESSES = 2000
+        private const val ROUNDS = 21
+        private const val MAX_MEDIAN_NANOS = 50_000_000L
+
+        fun mac(value: Long): String =
+            (5 downTo 0).joinToString(":") { "%02X".format((value shr (it * 8)) and 0xFF) }
+    }
+}
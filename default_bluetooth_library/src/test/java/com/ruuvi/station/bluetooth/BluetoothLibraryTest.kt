@@ -0,0 +1,75 @@
+package com.ruuvi.station.bluetooth
+
+import android.app.Application
+import android.app.PendingIntent
+import android.bluetooth.BluetoothAdapter
+import android.bluetooth.le.ScanRecord
+import android.bluetooth.le.ScanResult
+import com.ruuvi.station.bluetooth.simulation.SyntheticFleet
+import com.ruuvi.station.bluetooth.simulation.SyntheticFormat
+import com.ruuvi.station.bluetooth.util.ScannerSettings
+import org.junit.Assert.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.util.*
+
+@RunWith(RobolectricTestRunner::class)
+class BluetoothLibraryTest {
+    private val application: Application = RuntimeEnvironment.getApplication()
+
+    @Test
+    fun factoryPassesBatchListenerToInteractor() {
+        val found = mutableListOf<FoundRuuviTag>()
+        val batches = mutableListOf<List<FoundRuuviTag>>()
+        val interactor = BluetoothLibrary.getBluetoothInteractor(
+            application,
+            object : IRuuviTagScanner.OnTagFoundListener {
+                override fun onTagFound(tag: FoundRuuviTag) {
+                    found.add(tag)
+                }
+            },
+            settings,
+            object : OnTagBatchFoundListener {
+                override fun onTagsFound(tags: List<FoundRuuviTag>) {
+                    batches.add(tags)
+                }
+            }
+        )
+
+        interactor.startBackgroundScanWindow()
+        interactor.onPendingIntentScanResults(listOf(result(TAG, 1), result(OTHER, 1), result(TAG, 2)))
+        interactor.stopBackgroundScanWindow()
+        interactor.shutdown()
+
+        assertTrue(found.isEmpty())
+        assertEquals(1, batches.size)
+        assertEquals(setOf(TAG, OTHER), batches[0].map { it.id }.toSet())
+    }
+
+    private val settings = object : ScannerSettings {
+        override fun allowBackgroundScan() = false
+        override fun getBackgroundScanIntervalMilliseconds() = 15 * 60 * 1000L
+        override fun getNotificationIconId() = 0
+        override fun getNotificationTitle() = ""
+        override fun getNotificationText() = ""
+        override fun getNotificationPendingIntent(): PendingIntent? = null
+        override fun coalesceBackgroundResults() = true
+    }
+
+    /**
+     * ScanRecord has no public constructor, the hidden parser builds one from raw bytes.
+     */
+    @Suppress("DEPRECATION")
+    private fun result(address: String, sequenceNumber: Int): ScanResult {
+        val payload = SyntheticFleet.payload(SyntheticFormat.FORMAT_5, sequenceNumber, Random(sequenceNumber.toLong()))
+        val record = ScanRecord::class.java.getMethod("parseFromBytes", ByteArray::class.java).invoke(null, payload) as ScanRecord
+        return ScanResult(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address), record, -60, 0L)
+    }
+
+    companion object {
+        private const val TAG = "C3:5A:12:34:56:78"
+        private const val OTHER = "D1:00:00:00:00:01"
+    }
+}
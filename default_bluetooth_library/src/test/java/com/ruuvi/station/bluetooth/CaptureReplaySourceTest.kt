@@ -0,0 +1,140 @@
+package com.ruuvi.station.bluetooth
+
+import com.ruuvi.station.bluetooth.storage.CapturedAdvertisement
+import com.ruuvi.station.bluetooth.util.ManualScheduler
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class CaptureReplaySourceTest {
+    private val captures = (0 until 3).map {
+        CapturedAdvertisement(it * 1000000000L, 0xC35A12345670L + it, -60 - it, PAYLOAD)
+    }
+
+    @Test
+    fun replayIsStampedWithSourceClock() {
+        val clock = ManualScheduler(5000)
+        val source = CaptureReplaySource({ captures.asSequence() }, clock = clock)
+        val sink = RecordingSink()
+
+        assertTrue(source.run(sink))
+
+        assertSame(clock, source.clock)
+        assertEquals(listOf("C3:5A:12:34:56:70", "C3:5A:12:34:56:71", "C3:5A:12:34:56:72"), sink.advertisements.map { it.address })
+        assertTrue(sink.advertisements.all { it.timestampNanos == 5000 * 1000000L })
+        assertEquals(listOf(-60, -61, -62), sink.advertisements.map { it.rssi })
+        assertEquals(1, sink.finished)
+        assertEquals(3L, source.replayed)
+    }
+
+    @Test
+    fun stopBeforeRunDoesNotStopNextReplay() {
+        val source = CaptureReplaySource({ captures.asSequence() })
+        source.stop()
+        val sink = RecordingSink()
+
+        assertTrue(source.run(sink))
+        assertEquals(3, sink.advertisements.size)
+        assertEquals(1, sink.finished)
+    }
+
+    @Test
+    fun stopDuringReplayEndsItWithoutFinishing() {
+        lateinit var source: CaptureReplaySource
+        val sink = object : RecordingSink() {
+            override fun onAdvertisement(advertisement: Advertisement) {
+                super.onAdvertisement(advertisement)
+                source.stop()
+            }
+        }
+        source = CaptureReplaySource({ captures.asSequence() })
+
+        source.run(sink)
+        assertEquals(1, sink.advertisements.size)
+        assertEquals(0, sink.finished)
+    }
+
+    @Test
+    fun runningReplayMakesSourceUnavailable() {
+        lateinit var source: CaptureReplaySource
+        var availableDuringReplay = true
+        var nestedRun = true
+        val sink = object : RecordingSink() {
+            override fun onAdvertisement(advertisement: Advertisement) {
+                super.onAdvertisement(advertisement)
+                availableDuringReplay = source.isAvailable()
+                nestedRun = source.run(RecordingSink())
+            }
+        }
+        source = CaptureReplaySource({ captures.asSequence() })
+
+        assertTrue(source.run(sink))
+        assertFalse(availableDuringReplay)
+        assertFalse(nestedRun)
+        assertTrue(source.isAvailable())
+    }
+
+    @Test
+    fun startReplaysOnOwnThreadAndCanRepeat() {
+        val source = CaptureReplaySource({ captures.asSequence() })
+        repeat(2) {
+            // holds the replay until the second start was tried, three captures replay at once
+            val release = CountDownLatch(1)
+            val sink = object : RecordingSink() {
+                override fun onAdvertisement(advertisement: Advertisement) {
+                    release.await(5, TimeUnit.SECONDS)
+                    super.onAdvertisement(advertisement)
+                }
+            }
+            assertTrue(source.start(sink))
+            assertFalse(source.start(RecordingSink()))
+            release.countDown()
+            assertTrue(sink.awaitFinished())
+            waitUntil { source.isAvailable() }
+            assertEquals(3, sink.advertisements.size)
+        }
+    }
+
+    @Test
+    fun scaledSpeedKeepsCapturedGaps() {
+        val source = CaptureReplaySource({ captures.asSequence() }, ReplaySpeed.scaled(20.0))
+        val sink = RecordingSink()
+        source.run(sink)
+
+        val gaps = sink.advertisements.zipWithNext { a, b -> b.timestampNanos - a.timestampNanos }
+        assertTrue("Gaps $gaps", gaps.all { it >= 45000000L })
+    }
+
+    private fun waitUntil(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!condition()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline)
+            Thread.sleep(1)
+        }
+    }
+
+    private open class RecordingSink : AdvertisementSink {
+        val advertisements = mutableListOf<Advertisement>()
+        @Volatile
+        var finished = 0
+        private val done = CountDownLatch(1)
+
+        override fun onAdvertisement(advertisement: Advertisement) {
+            advertisements.add(advertisement)
+        }
+
+        override fun onSourceFailed(errorCode: Int) {}
+
+        override fun onSourceFinished() {
+            finished++
+            done.countDown()
+        }
+
+        fun awaitFinished(): Boolean = done.await(5, TimeUnit.SECONDS)
+    }
+
+    companion object {
+        private val PAYLOAD = byteArrayOf(0x02, 0x01, 0x06, 0x03, 0xFF.toByte(), 0x99.toByte(), 0x04)
+    }
+}
@@ -0,0 +1,95 @@
+package com.ruuvi.station.bluetooth
+
+import android.app.Application
+import com.ruuvi.station.bluetooth.simulation.SyntheticFleet
+import com.ruuvi.station.bluetooth.simulation.SyntheticFormat
+import org.junit.Assert.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Drives a whole [RuuviTagScanner] from a [CaptureReplaySource], without the Android scanner.
+ */
+@RunWith(RobolectricTestRunner::class)
+class RuuviTagScannerReplayTest {
+    private val application: Application = RuntimeEnvironment.getApplication()
+    private val captures = SyntheticFleet(
+        SyntheticFleet.Config(tagCount = 20, formats = listOf(SyntheticFormat.FORMAT_5), churnPerMinute = 0)
+    ).generate(10000)
+
+    @Test
+    fun replayDeliversDeduplicatedMeasurements() {
+        val scanner = scanner()
+        val found = AtomicInteger()
+        val ids = HashSet<String>()
+        scanner.startScanning(object : IRuuviTagScanner.OnTagFoundListener {
+            override fun onTagFound(tag: FoundRuuviTag) {
+                found.incrementAndGet()
+                synchronized(ids) { ids.add(tag.id!!) }
+            }
+        })
+        awaitSessionEnd(scanner)
+
+        val counters = scanner.getScanMetrics().overall.counters
+        assertEquals(captures.size.toLong(), counters[ScanCounter.RECEIVED])
+        assertEquals(found.get().toLong(), counters[ScanCounter.DELIVERED])
+        assertTrue((counters[ScanCounter.DEDUPLICATED] ?: 0) > 0)
+        assertEquals(20, ids.size)
+    }
+
+    @Test
+    fun latenciesUseReplayClock() {
+        val scanner = scanner()
+        scanner.startScanning(object : IRuuviTagScanner.OnTagFoundListener {
+            override fun onTagFound(tag: FoundRuuviTag) {}
+        })
+        awaitSessionEnd(scanner)
+
+        val latency = scanner.getScanMetrics().overall.latencies.getValue(ScanLatency.RADIO_TO_LISTENER)
+        assertTrue(latency.count > 0)
+        assertTrue("Max latency ${latency.maxNanos} ns", latency.maxNanos in 0 until 1000000000L)
+    }
+
+    @Test
+    fun finishedReplayEndsSessionAndCanRunAgain() {
+        val scanner = scanner()
+        val found = AtomicInteger()
+        val listener = object : IRuuviTagScanner.OnTagFoundListener {
+            override fun onTagFound(tag: FoundRuuviTag) {
+                found.incrementAndGet()
+            }
+        }
+        scanner.startScanning(listener)
+        awaitSessionEnd(scanner)
+        val first = found.get()
+        scanner.resetScanMetrics()
+
+        assertTrue(scanner.canScan())
+        scanner.startScanning(listener)
+        awaitSessionEnd(scanner)
+
+        val statistics = scanner.getScanSessionStatistics()
+        assertEquals(2, statistics.starts)
+        assertEquals(0, statistics.stalls)
+        assertEquals(first * 2, found.get())
+        assertEquals(captures.size.toLong(), scanner.getScanMetrics().overall.counters[ScanCounter.RECEIVED])
+    }
+
+    private fun scanner() = RuuviTagScanner(
+        application,
+        "replay",
+        ScannerState(application, null),
+        CaptureReplaySource({ captures.asSequence() })
+    )
+
+    private fun awaitSessionEnd(scanner: RuuviTagScanner) {
+        val deadline = System.currentTimeMillis() + 10000
+        while (scanner.getScanSessionStatistics().isScanning || !scanner.canScan()) {
+            assertTrue("Replay didn't finish", System.currentTimeMillis() < deadline)
+            Thread.sleep(5)
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.ruuvi.station.bluetooth
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class ScanFilterPolicyTest {
+
+    @Test
+    fun broadModeAcceptsEverything() {
+        val policy = ScanFilterPolicy()
+
+        assertTrue(policy.accept(OTHER, payload(5)))
+        assertEquals(ScanFilterMode.BROAD, policy.mode)
+        assertEquals(2, policy.getScanFilters().size)
+    }
+
+    @Test
+    fun smallAllowlistUsesOneFilterPerTagAndFormat() {
+        val policy = ScanFilterPolicy()
+        assertTrue(policy.setAllowlist(ScanAllowlist(setOf(TAG.lowercase(), "not an address"), setOf(3, 5))))
+
+        assertEquals(ScanFilterMode.ALLOWLIST, policy.mode)
+        assertEquals(2, policy.getScanFilters().size)
+        assertEquals(TAG, policy.getScanFilters()[0].deviceAddress)
+        assertFalse(policy.setAllowlist(ScanAllowlist(setOf(TAG), setOf(3, 5))))
+    }
+
+    @Test
+    fun softwareAllowlistChecksAddress() {
+        val policy = ScanFilterPolicy(maxHardwareFilters = 1)
+        policy.setAllowlist(ScanAllowlist(setOf(TAG, "AA:BB:CC:DD:EE:01")))
+
+        assertEquals(ScanFilterMode.SOFTWARE_ALLOWLIST, policy.mode)
+        assertEquals(2, policy.getScanFilters().size)
+        assertTrue(policy.accept(TAG, payload(5)))
+        assertTrue(policy.accept(TAG, null))
+        assertFalse(policy.accept(OTHER, payload(5)))
+    }
+
+    @Test
+    fun softwareAllowlistChecksDataFormat() {
+        val policy = ScanFilterPolicy(maxHardwareFilters = 1)
+        policy.setAllowlist(ScanAllowlist(setOf(TAG, "AA:BB:CC:DD:EE:01"), setOf(5)))
+
+        assertEquals(ScanFilterMode.SOFTWARE_ALLOWLIST, policy.mode)
+        assertTrue(policy.accept(TAG, payload(5)))
+        assertFalse(policy.accept(TAG, payload(3)))
+        assertFalse(policy.accept(TAG, EDDYSTONE))
+        assertFalse(policy.accept(TAG, null))
+        assertFalse(policy.accept(OTHER, payload(5)))
+
+        val statistics = policy.getStatistics().single { it.mode == ScanFilterMode.SOFTWARE_ALLOWLIST }
+        assertEquals(5L, statistics.wakeups)
+        assertEquals(4L, statistics.droppedResults)
+    }
+
+    @Test
+    fun dataFormatIsFoundAfterOtherStructures() {
+        assertEquals(5, ScanFilterPolicy.dataFormatOf(payload(5)))
+        assertEquals(3, ScanFilterPolicy.dataFormatOf(byteArrayOf(0x03, 0x08, 0x41, 0x42) + payload(3)))
+        assertEquals(-1, ScanFilterPolicy.dataFormatOf(EDDYSTONE))
+        // other manufacturer
+        assertEquals(-1, ScanFilterPolicy.dataFormatOf(byteArrayOf(0x02, 0x01, 0x06, 0x04, 0xFF.toByte(), 0x4C, 0x00, 0x05)))
+        // truncated structure
+        assertEquals(-1, ScanFilterPolicy.dataFormatOf(byteArrayOf(0x02, 0x01, 0x06, 0x1B, 0xFF.toByte(), 0x99.toByte(), 0x04)))
+        assertEquals(-1, ScanFilterPolicy.dataFormatOf(ByteArray(0)))
+    }
+
+    companion object {
+        private const val TAG = "AA:BB:CC:DD:EE:FF"
+        private const val OTHER = "11:22:33:44:55:66"
+        private val EDDYSTONE = byteArrayOf(0x02, 0x01, 0x06, 0x03, 0x03, 0xAA.toByte(), 0xFE.toByte())
+
+        private fun payload(format: Int): ByteArray =
+            byteArrayOf(0x02, 0x01, 0x06, 0x06, 0xFF.toByte(), 0x99.toByte(), 0x04, format.toByte(), 0x01, 0x02)
+    }
+}
@@ -0,0 +1,183 @@
+package com.ruuvi.station.bluetooth
+
+import com.ruuvi.station.bluetooth.util.ManualScheduler
+import org.junit.Assert.*
+import org.junit.Test
+
+class ScanSessionManagerTest {
+    private val time = ManualScheduler()
+    private val backend = FakeBackend()
+    private val session = ScanSessionManager(backend, time, time)
+
+    @Test
+    fun stopFollowedByStartKeepsScanRunning() {
+        session.requestStart()
+        session.requestStop()
+        time.advance(ScanSessionManager.STOP_MERGE_MILLIS / 2)
+        session.requestStart()
+        time.advance(ScanSessionManager.STOP_MERGE_MILLIS * 2)
+
+        assertEquals(1, backend.starts)
+        assertEquals(0, backend.stops)
+        assertEquals(1, session.getStatistics().mergedRestarts)
+        assertTrue(session.isScanning)
+    }
+
+    @Test
+    fun startsOverBudgetArePostponed() {
+        session.requestStart()
+        repeat(ScanSessionManager.MAX_STARTS + 2) {
+            session.restart()
+        }
+        assertEquals(ScanSessionManager.MAX_STARTS, backend.starts)
+        assertFalse(session.isScanning)
+
+        time.advance(ScanSessionManager.START_WINDOW_MILLIS + 1000)
+        assertEquals(ScanSessionManager.MAX_STARTS + 1, backend.starts)
+        assertTrue(session.isScanning)
+        assertEquals(1, session.getStatistics().throttledStarts)
+    }
+
+    @Test
+    fun silentScanIsRestarted() {
+        session.requestStart()
+        time.advance(ScanSessionManager.DEFAULT_STALL_TIMEOUT_MILLIS / 2)
+        session.onScanResult()
+        time.advance(ScanSessionManager.DEFAULT_STALL_TIMEOUT_MILLIS - 1)
+        assertEquals(1, backend.starts)
+
+        time.advance(ScanSessionManager.DEFAULT_STALL_TIMEOUT_MILLIS)
+        assertEquals(2, backend.starts)
+        assertEquals(1, session.getStatistics().stalls)
+    }
+
+    @Test
+    fun silenceIsExpectedWithoutStallDetection() {
+        session.stallDetectionEnabled = false
+        session.requestStart()
+        time.advance(ScanSessionManager.DEFAULT_STALL_TIMEOUT_MILLIS * 30)
+
+        assertEquals(1, backend.starts)
+        assertEquals(0, session.getStatistics().stalls)
+        assertEquals(0, time.pendingTasks)
+        assertTrue(session.isScanning)
+    }
+
+    @Test
+    fun turningOffStallDetectionCancelsWatchdog() {
+        session.requestStart()
+        assertEquals(1, time.pendingTasks)
+
+        session.stallDetectionEnabled = false
+        assertEquals(0, time.pendingTasks)
+
+        session.stallDetectionEnabled = true
+        time.advance(ScanSessionManager.DEFAULT_STALL_TIMEOUT_MILLIS)
+        assertEquals(1, session.getStatistics().stalls)
+    }
+
+    @Test
+    fun failuresBackOff() {
+        session.requestStart()
+        var expectedDelay = ScanSessionManager.FAILURE_BACKOFF_MILLIS
+        repeat(10) { failure ->
+            session.onScanFailed(2)
+            assertFalse(session.isScanning)
+            time.advance(expectedDelay - 1)
+            assertEquals("Restarted too early after failure ${failure + 1}", failure + 1, backend.starts)
+            time.advance(1)
+            assertEquals(failure + 2, backend.starts)
+            // stay within the start budget
+            time.advance(ScanSessionManager.START_WINDOW_MILLIS)
+            expectedDelay = minOf(expectedDelay * 2, ScanSessionManager.MAX_FAILURE_BACKOFF_MILLIS)
+        }
+        assertEquals(ScanSessionManager.MAX_FAILURE_BACKOFF_MILLIS, expectedDelay)
+        assertEquals(10, session.getStatistics().failures)
+    }
+
+    @Test
+    fun resultResetsBackoff() {
+        session.requestStart()
+        session.onScanFailed(2)
+        time.advance(ScanSessionManager.FAILURE_BACKOFF_MILLIS)
+        session.onScanFailed(2)
+        time.advance(ScanSessionManager.FAILURE_BACKOFF_MILLIS * 2)
+        assertEquals(3, backend.starts)
+
+        session.onScanResult()
+        session.onScanFailed(2)
+        time.advance(ScanSessionManager.FAILURE_BACKOFF_MILLIS)
+        assertEquals(4, backend.starts)
+    }
+
+    @Test
+    fun stopDuringBackoffCancelsRestart() {
+        session.requestStart()
+        session.onScanFailed(2)
+        session.requestStop()
+        time.advance(ScanSessionManager.MAX_FAILURE_BACKOFF_MILLIS)
+
+        assertEquals(1, backend.starts)
+        assertFalse(session.isScanning)
+        assertEquals(0, time.pendingTasks)
+    }
+
+    @Test
+    fun shutdownStopsRightAway() {
+        session.requestStart()
+        session.shutdown()
+
+        assertEquals(1, backend.stops)
+        assertFalse(session.isScanning)
+        assertEquals(0, time.pendingTasks)
+    }
+
+    @Test
+    fun shutdownCancelsPendingStopAndRestart() {
+        session.requestStart()
+        session.onScanFailed(2)
+        session.shutdown()
+        time.advance(ScanSessionManager.MAX_FAILURE_BACKOFF_MILLIS)
+        assertEquals(1, backend.starts)
+
+        session.requestStart()
+        session.requestStop()
+        session.shutdown()
+        time.advance(ScanSessionManager.STOP_MERGE_MILLIS)
+
+        assertEquals(2, backend.starts)
+        assertEquals(2, backend.stops)
+        assertEquals(0, time.pendingTasks)
+    }
+
+    @Test
+    fun finishedSourceEndsSessionWithoutStoppingIt() {
+        session.requestStart()
+        session.onSourceFinished()
+
+        assertFalse(session.isScanning)
+        assertEquals(0, backend.stops)
+        assertEquals(0, time.pendingTasks)
+
+        time.advance(ScanSessionManager.DEFAULT_STALL_TIMEOUT_MILLIS * 2)
+        assertEquals(1, backend.starts)
+        assertEquals(0, session.getStatistics().stalls)
+
+        session.requestStart()
+        assertEquals(2, backend.starts)
+    }
+
+    private class FakeBackend : ScanSessionManager.ScanBackend {
+        var starts = 0
+        var stops = 0
+
+        override fun start(): Boolean {
+            starts++
+            return true
+        }
+
+        override fun stop() {
+            stops++
+        }
+    }
+}
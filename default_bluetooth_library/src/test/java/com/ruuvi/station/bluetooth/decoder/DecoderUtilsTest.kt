@@ -0,0 +1,58 @@
+package com.ruuvi.station.bluetooth.decoder
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.math.BigDecimal
+import java.math.RoundingMode
+
+class DecoderUtilsTest {
+
+    @Test
+    fun roundMatchesBigDecimalForEveryDecodedValue() {
+        for (raw in Short.MIN_VALUE..Short.MAX_VALUE) {
+            // temperature of formats 5 and C5, accelerations of formats 3 and 5
+            assertRoundsLikeBigDecimal(raw / 200.0, 4)
+            assertRoundsLikeBigDecimal(raw / 1000.0, 4)
+        }
+        for (raw in 0..0xFFFF) {
+            // humidity and pressure of formats 5 and C5, voltage and pressure of format 3
+            assertRoundsLikeBigDecimal(raw / 400.0, 4)
+            assertRoundsLikeBigDecimal(raw.toDouble() + 50000, 2)
+            assertRoundsLikeBigDecimal(raw / 1000.0, 4)
+        }
+        for (raw in 0 until 0b11111111111) {
+            assertRoundsLikeBigDecimal(raw / 1000.0 + 1.6, 4)
+        }
+        for (raw in 0..0xFF) {
+            assertRoundsLikeBigDecimal(raw.toFloat() / 2.0, 2)
+        }
+        for (base in 0..0x7F) {
+            for (fraction in Byte.MIN_VALUE..Byte.MAX_VALUE) {
+                val temperature = base + fraction / 100.0
+                assertRoundsLikeBigDecimal(temperature, 2)
+                assertRoundsLikeBigDecimal(temperature * -1, 2)
+            }
+        }
+    }
+
+    @Test
+    fun roundsHalfAwayFromZero() {
+        assertEquals(0.13, DecoderUtils.round(0.125, 2), 0.0)
+        assertEquals(-0.13, DecoderUtils.round(-0.125, 2), 0.0)
+        assertEquals(0.0, DecoderUtils.round(-0.001, 2), 0.0)
+        assertEquals(Double.POSITIVE_INFINITY, 1 / DecoderUtils.round(-0.001, 2), 0.0)
+    }
+
+    @Test
+    fun findsDataAfterManufacturerHeader() {
+        val data = byteArrayOf(0x02, 0x01, 0x06, 0x1B, 0xFF.toByte(), 0x99.toByte(), 0x04, 0x05)
+
+        assertEquals(7, DecoderUtils.getActualDataOffset(data))
+        assertNull(DecoderUtils.getActualDataOffset(data.copyOf(6)))
+    }
+
+    private fun assertRoundsLikeBigDecimal(value: Double, places: Int) {
+        val expected = BigDecimal(value).setScale(places, RoundingMode.HALF_UP).toDouble()
+        assertEquals("$value to $places places", expected, DecoderUtils.round(value, places), 0.0)
+    }
+}
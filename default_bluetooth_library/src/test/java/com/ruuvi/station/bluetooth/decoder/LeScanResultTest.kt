@@ -0,0 +1,84 @@
+package com.ruuvi.station.bluetooth.decoder
+
+import com.ruuvi.station.bluetooth.simulation.SyntheticFleet
+import com.ruuvi.station.bluetooth.simulation.SyntheticFormat
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+class LeScanResultTest {
+
+    @Test
+    fun knownFormatsParse() {
+        for (format in listOf(SyntheticFormat.FORMAT_3, SyntheticFormat.FORMAT_5, SyntheticFormat.FORMAT_C5)) {
+            val result = result(SyntheticFleet.payload(format, 1, Random(1)))
+            assertNotNull("$format", result.parse())
+            assertEquals("$format", LeScanResult.ParseStatus.PARSED, result.parseStatus)
+        }
+    }
+
+    @Test
+    fun formatWithoutDecoderIsUnknown() {
+        val payload = SyntheticFleet.payload(SyntheticFormat.FORMAT_5, 1, Random(1))
+        payload[RUUVI_DATA_OFFSET] = 7
+        val result = result(payload)
+
+        assertNull(result.parse())
+        assertEquals(LeScanResult.ParseStatus.UNKNOWN_FORMAT, result.parseStatus)
+    }
+
+    @Test
+    fun truncatedKnownFormatFails() {
+        val payload = SyntheticFleet.payload(SyntheticFormat.FORMAT_5, 1, Random(1))
+        // scan records are zero-padded to their full size, only the AD length tells the data ended
+        val truncated = payload.copyOf(RUUVI_DATA_OFFSET + 10).copyOf(SCAN_RECORD_SIZE)
+        truncated[RUUVI_DATA_OFFSET - 4] = (3 + 10).toByte()
+        val result = result(truncated)
+
+        assertNull(result.parse())
+        assertEquals(LeScanResult.ParseStatus.FAILED, result.parseStatus)
+    }
+
+    @Test
+    fun otherManufacturerIsNotRuuvi() {
+        val payload = SyntheticFleet.payload(SyntheticFormat.FORMAT_5, 1, Random(1))
+        payload[RUUVI_DATA_OFFSET - 1] = 0x4C
+        payload[RUUVI_DATA_OFFSET - 2] = 0
+        val result = result(payload)
+
+        assertNull(result.parse())
+        assertEquals(LeScanResult.ParseStatus.NOT_RUUVI, result.parseStatus)
+    }
+
+    @Test
+    fun ruuviEddystoneUrlIsRuuviWithoutDecoder() {
+        val result = result(SyntheticFleet.payload(SyntheticFormat.EDDYSTONE, 1, Random(1)))
+
+        assertNull(result.parse())
+        assertEquals(LeScanResult.ParseStatus.UNKNOWN_FORMAT, result.parseStatus)
+    }
+
+    @Test
+    fun otherEddystoneUrlIsNotRuuvi() {
+        val payload = SyntheticFleet.payload(SyntheticFormat.EDDYSTONE, 1, Random(1))
+        payload[URL_OFFSET] = 'x'.code.toByte()
+        val result = result(payload)
+
+        assertNull(result.parse())
+        assertEquals(LeScanResult.ParseStatus.NOT_RUUVI, result.parseStatus)
+    }
+
+    private fun result(payload: ByteArray) = LeScanResult().apply {
+        address = "C3:5A:12:34:56:78"
+        scanData = payload
+        rssi = -60
+    }
+
+    companion object {
+        // flags structure, then length, type and company id of the manufacturer data
+        private const val RUUVI_DATA_OFFSET = 7
+        private const val SCAN_RECORD_SIZE = 31
+        // flags and service UUID list, then length, type, UUID, frame type, TX power and scheme
+        private const val URL_OFFSET = 14
+    }
+}
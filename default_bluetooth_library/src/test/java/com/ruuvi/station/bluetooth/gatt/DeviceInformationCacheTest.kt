@@ -0,0 +1,73 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import com.ruuvi.station.bluetooth.gatt.simulation.SimulatedRuuviTag
+import org.junit.Assert.*
+import org.junit.Test
+
+class DeviceInformationCacheTest {
+
+    @Test
+    fun cachedInformationRoundTrips() {
+        val cache = DeviceInformationCache(InMemoryPreferences())
+        cache.put(TAG, DeviceInformation("RuuviTag", "Ruuvi FW v3.31.1", "Ruuvi Innovations Ltd", "1234"))
+
+        val cached = cache.get(TAG)!!
+        assertEquals(
+            DeviceInformation("RuuviTag", "Ruuvi FW v3.31.1", "Ruuvi Innovations Ltd", "1234", true, fromCache = true),
+            cached
+        )
+        assertNull(cache.get("11:22:33:44:55:66"))
+
+        cache.invalidate(TAG)
+        assertNull(cache.get(TAG))
+    }
+
+    /**
+     * Time to first record with a cold and a warm cache, with the round trips a real connection
+     * has. A warm cache reads one characteristic instead of three before asking for the logs.
+     */
+    @Test
+    fun cacheShortensTimeToFirstRecord() {
+        val cache = DeviceInformationCache(InMemoryPreferences())
+        val config = SimulatedRuuviTag.Config(historyDays = 1, latencyMillis = ROUND_TRIP_MILLIS, characteristicReadMillis = ROUND_TRIP_MILLIS)
+
+        val cold = sync(SimulatedRuuviTag(TAG, config, cache))
+        val warm = sync(SimulatedRuuviTag(TAG, config, cache))
+        val message = "Time to first record without cache: ${cold.timeToFirstRecordMillis} ms, " +
+            "with cache: ${warm.timeToFirstRecordMillis} ms"
+
+        assertFalse(cold.deviceInformationFromCache)
+        assertTrue(warm.deviceInformationFromCache)
+        assertTrue(message, cold.timeToFirstRecordMillis >= 5 * ROUND_TRIP_MILLIS)
+        assertTrue(message, cold.timeToFirstRecordMillis - warm.timeToFirstRecordMillis >= 2 * ROUND_TRIP_MILLIS - 10)
+    }
+
+    @Test
+    fun firmwareUpdateInvalidatesCache() {
+        val cache = DeviceInformationCache(InMemoryPreferences())
+        sync(SimulatedRuuviTag(TAG, SimulatedRuuviTag.Config(historyDays = 1, firmware = "Ruuvi FW v3.30.0"), cache))
+
+        val updated = sync(SimulatedRuuviTag(TAG, SimulatedRuuviTag.Config(historyDays = 1, firmware = "Ruuvi FW v3.31.1"), cache))
+
+        assertFalse(updated.deviceInformationFromCache)
+        assertEquals("Ruuvi FW v3.31.1", cache.get(TAG)!!.firmware)
+    }
+
+    private fun sync(tag: SimulatedRuuviTag): LogSyncMetrics {
+        try {
+            val listener = RecordingGattListener()
+            val session = LogSyncSession(tag)
+            session.listener = listener
+            session.getLogs(null)
+            assertTrue("Sync didn't finish", listener.awaitFinished())
+            return GattStatistics.getSyncMetrics(TAG)!!
+        } finally {
+            tag.shutdown()
+        }
+    }
+
+    companion object {
+        private const val TAG = "AA:BB:CC:DD:EE:FF"
+        private const val ROUND_TRIP_MILLIS = 50L
+    }
+}
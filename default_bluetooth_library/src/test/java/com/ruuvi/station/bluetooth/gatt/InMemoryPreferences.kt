@@ -0,0 +1,79 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import android.content.SharedPreferences
+
+/**
+ * [SharedPreferences] kept in a map, for JVM tests of classes that persist small values.
+ */
+class InMemoryPreferences : SharedPreferences {
+    private val values = HashMap<String, Any?>()
+
+    override fun getAll(): Map<String, *> = synchronized(values) { HashMap(values) }
+
+    override fun getString(key: String, defValue: String?): String? = get(key) ?: defValue
+
+    @Suppress("UNCHECKED_CAST")
+    override fun getStringSet(key: String, defValues: Set<String>?): Set<String>? = get(key) ?: defValues
+
+    override fun getInt(key: String, defValue: Int): Int = get(key) ?: defValue
+
+    override fun getLong(key: String, defValue: Long): Long = get(key) ?: defValue
+
+    override fun getFloat(key: String, defValue: Float): Float = get(key) ?: defValue
+
+    override fun getBoolean(key: String, defValue: Boolean): Boolean = get(key) ?: defValue
+
+    override fun contains(key: String): Boolean = synchronized(values) { values.containsKey(key) }
+
+    override fun edit(): SharedPreferences.Editor = Editor()
+
+    override fun registerOnSharedPreferenceChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {}
+
+    override fun unregisterOnSharedPreferenceChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {}
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <T> get(key: String): T? = synchronized(values) { values[key] as T? }
+
+    private inner class Editor : SharedPreferences.Editor {
+        private val changes = HashMap<String, Any?>()
+        private var clear = false
+
+        override fun putString(key: String, value: String?) = put(key, value)
+
+        override fun putStringSet(key: String, values: Set<String>?) = put(key, values?.toSet())
+
+        override fun putInt(key: String, value: Int) = put(key, value)
+
+        override fun putLong(key: String, value: Long) = put(key, value)
+
+        override fun putFloat(key: String, value: Float) = put(key, value)
+
+        override fun putBoolean(key: String, value: Boolean) = put(key, value)
+
+        override fun remove(key: String) = put(key, null)
+
+        override fun clear(): SharedPreferences.Editor {
+            clear = true
+            return this
+        }
+
+        override fun commit(): Boolean {
+            synchronized(values) {
+                if (clear) values.clear()
+                for ((key, value) in changes) {
+                    if (value == null) values.remove(key) else values[key] = value
+                }
+            }
+            return true
+        }
+
+        override fun apply() {
+            commit()
+        }
+
+        private fun put(key: String, value: Any?): SharedPreferences.Editor {
+            changes[key] = value
+            return this
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+/**
+ * Compares [LogAggregator] to aggregates computed by brute force over the same readings.
+ */
+class LogAggregatorTest {
+
+    @Test
+    fun matchesBruteForceForReadingsInOrder() {
+        val readings = readings(Random(1), 5000, shuffle = false)
+        assertMatchesBruteForce(readings, listOf(900L, 3600L, 86400L))
+    }
+
+    @Test
+    fun matchesBruteForceForShuffledReadings() {
+        val readings = readings(Random(2), 5000, shuffle = true)
+        assertMatchesBruteForce(readings, listOf(86400L, 300L, 3600L))
+    }
+
+    @Test
+    fun matchesBruteForceWithMissingValuesAndNegativeTimestamps() {
+        val random = Random(3)
+        val readings = List(3000) {
+            Reading(
+                timestamp = random.nextInt(400000).toLong() - 200000,
+                temperature = if (random.nextInt(4) == 0) null else random.nextGaussian() * 10,
+                humidity = if (random.nextInt(3) == 0) null else random.nextDouble() * 100,
+                pressure = if (random.nextInt(5) == 0) null else 100000 + random.nextGaussian() * 500
+            )
+        }
+        assertMatchesBruteForce(readings, listOf(60L, 7200L))
+    }
+
+    @Test
+    fun clearDropsBuckets() {
+        val aggregator = LogAggregator(listOf(3600L))
+        aggregator.add(1000, 20.0, 40.0, 100000.0)
+        aggregator.clear()
+        aggregator.add(5000, 21.0, null, null)
+
+        val aggregate = aggregator.getAggregates().single()
+        assertEquals(3600L * 1000, aggregate.start.time)
+        assertEquals(AggregateValue(21.0, 21.0, 21.0, 1), aggregate.temperature)
+        assertNull(aggregate.humidity)
+    }
+
+    private fun assertMatchesBruteForce(readings: List<Reading>, resolutions: List<Long>) {
+        val aggregator = LogAggregator(resolutions)
+        readings.forEach { aggregator.add(it.timestamp, it.temperature, it.humidity, it.pressure) }
+
+        val expected = mutableListOf<LogAggregate>()
+        for (resolution in resolutions.sorted()) {
+            readings.groupBy { Math.floorDiv(it.timestamp, resolution) * resolution }
+                .toSortedMap()
+                .forEach { (start, bucket) ->
+                    expected.add(
+                        LogAggregate(
+                            resolutionSeconds = resolution,
+                            start = Date(start * 1000),
+                            temperature = bruteForce(bucket.mapNotNull { it.temperature }),
+                            humidity = bruteForce(bucket.mapNotNull { it.humidity }),
+                            pressure = bruteForce(bucket.mapNotNull { it.pressure })
+                        )
+                    )
+                }
+        }
+        val actual = aggregator.getAggregates()
+        assertEquals(expected.size, actual.size)
+        for (i in expected.indices) {
+            assertEquals(expected[i].resolutionSeconds, actual[i].resolutionSeconds)
+            assertEquals(expected[i].start, actual[i].start)
+            assertValueEquals(expected[i].temperature, actual[i].temperature)
+            assertValueEquals(expected[i].humidity, actual[i].humidity)
+            assertValueEquals(expected[i].pressure, actual[i].pressure)
+        }
+    }
+
+    private fun bruteForce(values: List<Double>): AggregateValue? =
+        if (values.isEmpty()) null else AggregateValue(values.minOrNull()!!, values.maxOrNull()!!, values.average(), values.size)
+
+    private fun assertValueEquals(expected: AggregateValue?, actual: AggregateValue?) {
+        if (expected == null) {
+            assertNull(actual)
+            return
+        }
+        assertNotNull(actual)
+        assertEquals(expected.count, actual!!.count)
+        assertEquals(expected.min, actual.min, 0.0)
+        assertEquals(expected.max, actual.max, 0.0)
+        assertEquals(expected.mean, actual.mean, 1e-9 * Math.max(1.0, Math.abs(expected.mean)))
+    }
+
+    private fun readings(random: Random, count: Int, shuffle: Boolean): List<Reading> {
+        val readings = List(count) { i ->
+            Reading(
+                timestamp = 1_600_000_000L + i * 300L + random.nextInt(60),
+                temperature = 20 + random.nextGaussian() * 5,
+                humidity = 50 + random.nextGaussian() * 10,
+                pressure = 100000 + random.nextGaussian() * 1000
+            )
+        }
+        return if (shuffle) readings.shuffled(random) else readings
+    }
+
+    private data class Reading(val timestamp: Long, val temperature: Double?, val humidity: Double?, val pressure: Double?)
+}
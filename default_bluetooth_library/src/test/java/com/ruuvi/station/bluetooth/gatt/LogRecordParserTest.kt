@@ -0,0 +1,149 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.util.*
+
+class LogRecordParserTest {
+
+    @Test
+    fun parsesPackedRecords() {
+        val parser = LogRecordParser(TAG)
+        assertEquals(
+            LogRecordParser.Result.RECORDS,
+            parser.parse(notification(temperature(100, 2150), humidity(100, 4525), pressure(100, 100100)))
+        )
+        assertEquals(LogRecordParser.Result.END_OF_LOGS, parser.parse(END_OF_LOGS))
+
+        val reading = parser.getLogs().single()
+        assertEquals(TAG, reading.id)
+        assertEquals(Date(100_000), reading.date)
+        assertEquals(21.5, reading.temperature!!, 1e-9)
+        assertEquals(45.25, reading.humidity!!, 1e-6)
+        assertEquals(100100.0, reading.pressure!!, 0.0)
+        assertEquals(3, parser.records)
+        assertEquals(1, parser.readingsCount)
+    }
+
+    @Test
+    fun interleavedRecordsDontDuplicateReadingsWithoutRetaining() {
+        val parser = LogRecordParser(TAG)
+        parser.retainReadings = false
+        parser.aggregator = LogAggregator(listOf(3600L))
+
+        parser.parse(notification(temperature(100, 2000), temperature(400, 2100)))
+        parser.parse(notification(humidity(100, 4000), pressure(100, 100000)))
+        parser.parse(notification(humidity(400, 4100), pressure(400, 100100)))
+        // a late duplicate of a completed reading
+        parser.parse(notification(temperature(100, 2000)))
+        parser.parse(END_OF_LOGS)
+
+        assertTrue(parser.getLogs().isEmpty())
+        assertEquals(2, parser.readingsCount)
+        assertArrayEquals(longArrayOf(100, 400), parser.getCompletedTimestamps())
+        val aggregate = parser.aggregator!!.getAggregates().single()
+        assertEquals(AggregateValue(20.0, 21.0, 20.5, 2), aggregate.temperature)
+        assertEquals(2, aggregate.humidity!!.count)
+    }
+
+    @Test
+    fun shuffledRecordsMatchInOrderRecords() {
+        val random = Random(4)
+        val records = mutableListOf<ByteArray>()
+        for (i in 0 until 500) {
+            val timestamp = 1_600_000_000L + i * 300
+            records.add(temperature(timestamp, 2000 + random.nextInt(500).toLong()))
+            records.add(humidity(timestamp, 4000 + random.nextInt(500).toLong()))
+            records.add(pressure(timestamp, 100000 + random.nextInt(500).toLong()))
+        }
+        val inOrder = parseAll(records, retain = true)
+        val shuffled = parseAll(records.shuffled(random), retain = false)
+
+        assertEquals(500, inOrder.readingsCount)
+        assertEquals(inOrder.readingsCount, shuffled.readingsCount)
+        assertArrayEquals(inOrder.getCompletedTimestamps(), shuffled.getCompletedTimestamps())
+        val expected = inOrder.aggregator!!.getAggregates()
+        val actual = shuffled.aggregator!!.getAggregates()
+        assertEquals(expected.size, actual.size)
+        for (i in expected.indices) {
+            assertEquals(expected[i].start, actual[i].start)
+            assertValueEquals(expected[i].temperature!!, actual[i].temperature!!)
+            assertValueEquals(expected[i].humidity!!, actual[i].humidity!!)
+            assertValueEquals(expected[i].pressure!!, actual[i].pressure!!)
+        }
+    }
+
+    @Test
+    fun incompleteReadingsCompleteAtEndOfLogs() {
+        val parser = LogRecordParser(TAG)
+        parser.parse(notification(temperature(100, 2000), humidity(100, 4000)))
+        assertEquals(0, parser.readingsCount)
+
+        parser.parse(END_OF_LOGS)
+        val reading = parser.getLogs().single()
+        assertEquals(20.0, reading.temperature!!, 1e-9)
+        assertNull(reading.pressure)
+        assertEquals(1, parser.readingsCount)
+    }
+
+    @Test
+    fun emptyReadingsAreNotCounted() {
+        val parser = LogRecordParser(TAG)
+        parser.parse(notification(temperature(100, 0), humidity(100, 0), pressure(100, 0)))
+        parser.parse(notification(temperature(400, 2000), humidity(400, 4000), pressure(400, 100000)))
+        parser.parse(END_OF_LOGS)
+
+        assertEquals(1, parser.readingsCount)
+        assertEquals(listOf(Date(400_000)), parser.getLogs().map { it.date })
+    }
+
+    @Test
+    fun heartbeatIsNotParsedAsRecords() {
+        val parser = LogRecordParser(TAG)
+        assertEquals(LogRecordParser.Result.HEARTBEAT, parser.parse(byteArrayOf(LogRecordParser.HEARTBEAT_FORMAT, 1, 2)))
+        assertEquals(LogRecordParser.Result.IGNORED, parser.parse(ByteArray(0)))
+        assertEquals(0, parser.notifications)
+    }
+
+    private fun assertValueEquals(expected: AggregateValue, actual: AggregateValue) {
+        assertEquals(expected.count, actual.count)
+        assertEquals(expected.min, actual.min, 0.0)
+        assertEquals(expected.max, actual.max, 0.0)
+        // summing in another order may change the last bits of the mean
+        assertEquals(expected.mean, actual.mean, 1e-6)
+    }
+
+    private fun parseAll(records: List<ByteArray>, retain: Boolean): LogRecordParser {
+        val parser = LogRecordParser(TAG)
+        parser.retainReadings = retain
+        parser.aggregator = LogAggregator(listOf(900L, 86400L))
+        records.chunked(7).forEach { parser.parse(notification(*it.toTypedArray())) }
+        assertEquals(LogRecordParser.Result.END_OF_LOGS, parser.parse(END_OF_LOGS))
+        return parser
+    }
+
+    companion object {
+        private const val TAG = "AA:BB:CC:DD:EE:FF"
+        private val END_OF_LOGS = byteArrayOf(0x3A, 0x3A, 0x11, -1, -1, -1, -1, -1, -1, -1, -1)
+
+        fun temperature(timestamp: Long, value: Long) = record(0x30, timestamp, value)
+        fun humidity(timestamp: Long, value: Long) = record(0x31, timestamp, value)
+        fun pressure(timestamp: Long, value: Long) = record(0x32, timestamp, value)
+
+        fun notification(vararg records: ByteArray): ByteArray {
+            val out = ByteArrayOutputStream()
+            records.forEach { out.write(it) }
+            return out.toByteArray()
+        }
+
+        private fun record(type: Int, timestamp: Long, value: Long): ByteArray {
+            val record = byteArrayOf(0x3A, type.toByte(), 0x10, 0, 0, 0, 0, 0, 0, 0, 0)
+            for (i in 0 until 4) {
+                record[3 + i] = (timestamp ushr (24 - 8 * i)).toByte()
+                record[7 + i] = (value ushr (24 - 8 * i)).toByte()
+            }
+            return record
+        }
+    }
+}
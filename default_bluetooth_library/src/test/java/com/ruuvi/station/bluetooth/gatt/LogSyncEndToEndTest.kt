@@ -0,0 +1,124 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import com.ruuvi.station.bluetooth.LogReading
+import com.ruuvi.station.bluetooth.gatt.simulation.SimulatedRuuviTag
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+
+class LogSyncEndToEndTest {
+    private val tags = mutableListOf<SimulatedRuuviTag>()
+
+    @After
+    fun tearDown() {
+        tags.forEach { it.shutdown() }
+    }
+
+    @Test
+    fun syncDeliversWholeHistory() {
+        val tag = tag(SimulatedRuuviTag.Config(historyDays = 3))
+        val listener = sync(tag)
+
+        assertEquals(1, listener.connectedEvents)
+        assertEquals(1, listener.disconnectedEvents)
+        assertEquals(true, listener.canReadLogs)
+        assertReadingsEqual(tag.history(0, tag.historyEnd), listener.readings)
+    }
+
+    @Test
+    fun packedNotificationsDeliverSameReadings() {
+        val tag = tag(SimulatedRuuviTag.Config(historyDays = 3, mtu = 247, recordsPerNotification = 20))
+        val listener = sync(tag)
+
+        assertReadingsEqual(tag.history(0, tag.historyEnd), listener.readings)
+        assertTrue(tag.notificationsSent < tag.history(0, tag.historyEnd).size)
+    }
+
+    @Test
+    fun syncFromDateDeliversOnlyNewerReadings() {
+        val tag = tag(SimulatedRuuviTag.Config(historyDays = 3))
+        val from = tag.historyEnd - 86400
+        val listener = sync(tag, from)
+
+        assertReadingsEqual(tag.history(from, tag.historyEnd), listener.readings)
+    }
+
+    @Test
+    fun lostNotificationsNeverCorruptReadings() {
+        val tag = tag(SimulatedRuuviTag.Config(historyDays = 3, notificationLossRate = 0.1, seed = 7))
+        val listener = sync(tag)
+
+        val expected = tag.history(0, tag.historyEnd).associateBy { it.date.time }
+        val readings = listener.readings!!
+        assertTrue(tag.notificationsDropped > 0)
+        assertTrue(readings.size <= expected.size)
+        for (reading in readings) {
+            val reference = expected[reading.date.time]
+            assertNotNull("Unexpected timestamp ${reading.date}", reference)
+            reading.temperature?.let { assertEquals(reference!!.temperature!!, it, 0.0) }
+            reading.humidity?.let { assertEquals(reference!!.humidity!!, it, 0.0) }
+            reading.pressure?.let { assertEquals(reference!!.pressure!!, it, 0.0) }
+        }
+    }
+
+    @Test
+    fun disconnectDuringSyncEndsSessionWithoutData() {
+        val tag = tag(SimulatedRuuviTag.Config(historyDays = 3, disconnectAfterNotifications = 100))
+        val listener = sync(tag)
+
+        assertNull(listener.readings)
+        assertTrue(listener.disconnectedEvents > 0)
+        assertEquals(100, tag.notificationsSent)
+    }
+
+    @Test
+    fun connectionKeptOpenIsNotReportedAsDisconnected() {
+        val tag = tag(SimulatedRuuviTag.Config(historyDays = 1, keepConnectionOpen = true))
+        val listener = RecordingGattListener()
+        val session = LogSyncSession(tag)
+        session.listener = listener
+        session.getLogs(null)
+
+        assertTrue("Sync didn't finish", listener.awaitData())
+        assertFalse(listener.awaitFinished(200))
+        assertEquals(1, listener.connectedEvents)
+        assertEquals(0, listener.disconnectedEvents)
+    }
+
+    @Test
+    fun unsupportedFirmwareIsNotSynced() {
+        val tag = tag(SimulatedRuuviTag.Config(firmware = "Ruuvi FW v3.28.0"))
+        val listener = sync(tag)
+
+        assertEquals(false, listener.canReadLogs)
+        assertNull(listener.readings)
+        assertEquals(1, listener.disconnectedEvents)
+        assertEquals(0, tag.notificationsSent)
+    }
+
+    private fun tag(config: SimulatedRuuviTag.Config): SimulatedRuuviTag =
+        SimulatedRuuviTag("AA:BB:CC:DD:EE:${"%02X".format(tags.size)}", config).also { tags.add(it) }
+
+    private fun sync(tag: SimulatedRuuviTag, fromSeconds: Long? = null): RecordingGattListener {
+        val listener = RecordingGattListener()
+        val session = LogSyncSession(tag)
+        session.listener = listener
+        session.getLogs(fromSeconds?.let { java.util.Date(it * 1000) })
+        assertTrue("Sync didn't finish", listener.awaitFinished())
+        return listener
+    }
+
+    private fun assertReadingsEqual(expected: List<LogReading>, actual: List<LogReading>?) {
+        assertNotNull(actual)
+        assertEquals(expected.size, actual!!.size)
+        val byTime = actual.associateBy { it.date.time }
+        for (reading in expected) {
+            val synced = byTime[reading.date.time]
+            assertNotNull("Missing reading at ${reading.date}", synced)
+            assertEquals(reading.id, synced!!.id)
+            assertEquals(reading.temperature, synced.temperature)
+            assertEquals(reading.humidity, synced.humidity)
+            assertEquals(reading.pressure, synced.pressure)
+        }
+    }
+}
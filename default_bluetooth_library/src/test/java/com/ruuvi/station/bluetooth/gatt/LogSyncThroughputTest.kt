@@ -0,0 +1,61 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import com.ruuvi.station.bluetooth.gatt.simulation.SimulatedRuuviTag
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Sync throughput against simulated tags that take [NOTIFICATION_INTERVAL_MILLIS] per
+ * notification, like a connection interval would.
+ */
+class LogSyncThroughputTest {
+    private val tags = mutableListOf<SimulatedRuuviTag>()
+
+    @After
+    fun tearDown() {
+        tags.forEach { it.shutdown() }
+    }
+
+    @Test
+    fun packedRecordsSyncFasterThanOneRecordPerNotification() {
+        val single = sync(SimulatedRuuviTag.Config(historyDays = 1, notificationIntervalMillis = NOTIFICATION_INTERVAL_MILLIS))
+        val packed = sync(
+            SimulatedRuuviTag.Config(
+                historyDays = 1,
+                mtu = 247,
+                recordsPerNotification = 22,
+                notificationIntervalMillis = NOTIFICATION_INTERVAL_MILLIS
+            )
+        )
+        val message = "Single record notifications: $single, packed notifications: $packed"
+
+        assertEquals(single.readings, packed.readings)
+        assertEquals(single.records, packed.records)
+        assertTrue(message, packed.notifications * 10 < single.notifications)
+        assertTrue(message, packed.recordsPerSecond > single.recordsPerSecond * 5)
+    }
+
+    @Test
+    fun tenDaysOfHistorySyncWithinBudget() {
+        val metrics = sync(SimulatedRuuviTag.Config(historyDays = 10, mtu = 247, recordsPerNotification = 22))
+        assertTrue("Ten days: $metrics", metrics.readings >= 10 * 288)
+        assertTrue("Ten days: $metrics", metrics.durationMillis < MAX_TEN_DAY_SYNC_MILLIS)
+    }
+
+    private fun sync(config: SimulatedRuuviTag.Config): LogSyncMetrics {
+        val tag = SimulatedRuuviTag("AA:BB:CC:DD:EE:${"%02X".format(tags.size)}", config).also { tags.add(it) }
+        val listener = RecordingGattListener()
+        val session = LogSyncSession(tag)
+        session.listener = listener
+        session.getLogs(null)
+        assertTrue("Sync didn't finish", listener.awaitFinished(120000))
+        assertEquals(tag.history(0, tag.historyEnd).size, listener.readings?.size)
+        return GattStatistics.getSyncMetrics(tag.deviceId)!!
+    }
+
+    companion object {
+        private const val NOTIFICATION_INTERVAL_MILLIS = 1L
+        private const val MAX_TEN_DAY_SYNC_MILLIS = 5000L
+    }
+}
@@ -0,0 +1,66 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import com.ruuvi.station.bluetooth.IRuuviGattListener
+import com.ruuvi.station.bluetooth.LogReading
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Collects what a [LogSyncSession] reports, for tests that wait for a sync to end.
+ */
+class RecordingGattListener : IRuuviGattListener {
+    private val finished = CountDownLatch(1)
+    private val dataReceived = CountDownLatch(1)
+
+    @Volatile
+    var readings: List<LogReading>? = null
+        private set
+    @Volatile
+    var connectedEvents = 0
+        private set
+    @Volatile
+    var disconnectedEvents = 0
+        private set
+    @Volatile
+    var canReadLogs: Boolean? = null
+        private set
+    @Volatile
+    var lastProgress = 0
+        private set
+
+    override fun connected(state: Boolean) {
+        if (state) {
+            connectedEvents++
+        } else {
+            disconnectedEvents++
+            finished.countDown()
+        }
+    }
+
+    override fun deviceInfo(model: String, fw: String, canReadLogs: Boolean, serialNumber: String?) {
+        this.canReadLogs = canReadLogs
+    }
+
+    override fun dataReady(data: List<LogReading>) {
+        readings = data
+        dataReceived.countDown()
+    }
+
+    override fun heartbeat(raw: String) {}
+
+    override fun syncProgress(syncedDataPoints: Int) {
+        lastProgress = syncedDataPoints
+    }
+
+    /**
+     * @return false when the session didn't end within [timeoutMillis]
+     */
+    fun awaitFinished(timeoutMillis: Long = 30000): Boolean =
+        finished.await(timeoutMillis, TimeUnit.MILLISECONDS)
+
+    /**
+     * @return false when no readings arrived within [timeoutMillis]
+     */
+    fun awaitData(timeoutMillis: Long = 30000): Boolean =
+        dataReceived.await(timeoutMillis, TimeUnit.MILLISECONDS)
+}
@@ -0,0 +1,214 @@
+package com.ruuvi.station.bluetooth.gatt
+
+import com.ruuvi.station.bluetooth.gatt.LogRecordParserTest.Companion.humidity
+import com.ruuvi.station.bluetooth.gatt.LogRecordParserTest.Companion.notification
+import com.ruuvi.station.bluetooth.gatt.LogRecordParserTest.Companion.pressure
+import com.ruuvi.station.bluetooth.gatt.LogRecordParserTest.Companion.temperature
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.file.Files
+import java.util.*
+
+class SyncHistoryTest {
+    private lateinit var directory: File
+    private lateinit var history: SyncHistory
+
+    @Before
+    fun setUp() {
+        directory = Files.createTempDirectory("sync").toFile()
+        history = SyncHistory(directory)
+    }
+
+    @After
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun emptyHistoryReadsEverything() {
+        val tag = history.forTag(TAG)
+
+        assertNull(tag.getRequestStart())
+        assertEquals(0L, tag.lastDelivered)
+        assertFalse(tag.isDelivered(START))
+    }
+
+    @Test
+    fun syncSpanIsDelivered() {
+        val tag = history.forTag(TAG)
+        tag.markDelivered(timestamps(START, 288))
+
+        assertFalse(tag.isDelivered(START - 1))
+        assertTrue(tag.isDelivered(START))
+        assertTrue(tag.isDelivered(START + 150 * 300 + 17))
+        assertTrue(tag.isDelivered(START + 287 * 300))
+        assertFalse(tag.isDelivered(START + 287 * 300 + 1))
+        assertEquals(START + 287 * 300, tag.lastDelivered)
+        assertEquals(Date((START + 287 * 300 - TagSyncHistory.REQUEST_OVERLAP_SECONDS) * 1000), tag.getRequestStart())
+    }
+
+    @Test
+    fun overlappingSyncsMergeIntoOneSmallFile() {
+        val tag = history.forTag(TAG)
+        var from = START
+        repeat(365) {
+            tag.markDelivered(timestamps(from, 288))
+            from += 287 * 300 - TagSyncHistory.REQUEST_OVERLAP_SECONDS
+        }
+
+        assertTrue(tag.isDelivered(START))
+        assertTrue(tag.isDelivered(from - 1000))
+        // version, run count and one run
+        assertEquals(4L + 4 + 16, directory.listFiles()!!.single().length())
+    }
+
+    @Test
+    fun gapsBetweenSyncsStayUndelivered() {
+        val tag = history.forTag(TAG)
+        tag.markDelivered(timestamps(START, 10))
+        tag.markDelivered(timestamps(START + 86400, 10))
+
+        assertTrue(tag.isDelivered(START + 9 * 300))
+        assertFalse(tag.isDelivered(START + 43200))
+        assertTrue(tag.isDelivered(START + 86400))
+
+        tag.markDelivered(timestamps(START + 9 * 300, 290))
+        assertTrue(tag.isDelivered(START + 43200))
+    }
+
+    @Test
+    fun lostReadingsStayUndelivered() {
+        val tag = history.forTag(TAG)
+        val delivered = timestamps(START, 288).filterIndexed { i, _ -> i !in 100..104 }.toLongArray()
+        tag.markDelivered(delivered)
+
+        assertTrue(tag.isDelivered(START + 99 * 300))
+        for (i in 100..104) assertFalse(tag.isDelivered(START + i * 300L))
+        assertTrue(tag.isDelivered(START + 105 * 300))
+        assertEquals(START + 287 * 300, tag.lastDelivered)
+    }
+
+    @Test
+    fun parserDeliversReadingsLostInEarlierSync() {
+        val tag = history.forTag(TAG)
+        // the reading lost is inside the overlap the next sync asks for again
+        tag.markDelivered(timestamps(START, 288).filter { it != START + 286 * 300 }.toLongArray())
+        val parser = LogRecordParser(TAG)
+        parser.deliveredHistory = tag
+
+        for (timestamp in timestamps(START + 285 * 300, 3)) {
+            parser.parse(notification(temperature(timestamp, 2000), humidity(timestamp, 4000), pressure(timestamp, 100000)))
+        }
+        parser.parse(END_OF_LOGS)
+
+        assertEquals(1, parser.readingsCount)
+        tag.markDelivered(parser.getCompletedTimestamps())
+        assertTrue(tag.isDelivered(START + 286 * 300))
+    }
+
+    @Test
+    fun runCountIsBounded() {
+        val tag = history.forTag(TAG)
+        repeat(TagSyncHistory.MAX_RUNS + 10) {
+            tag.markDelivered(longArrayOf(START + it * 10000L, START + it * 10000L + 300))
+        }
+
+        assertFalse(tag.isDelivered(START))
+        assertTrue(tag.isDelivered(START + (TagSyncHistory.MAX_RUNS + 9) * 10000L))
+        assertEquals(4L + 4 + TagSyncHistory.MAX_RUNS * 16, directory.listFiles()!!.single().length())
+    }
+
+    @Test
+    fun historySurvivesReload() {
+        history.forTag(TAG).markDelivered(timestamps(START, 100))
+        history.forTag(TAG).markDelivered(timestamps(START + 86400, 100))
+
+        val reloaded = SyncHistory(directory).forTag(TAG)
+        assertTrue(reloaded.isDelivered(START + 50 * 300))
+        assertFalse(reloaded.isDelivered(START + 50000))
+        assertEquals(START + 86400 + 99 * 300, reloaded.lastDelivered)
+    }
+
+    @Test
+    fun syncEndingBeforeLatestDeliveredReadingDropsHistory() {
+        val tag = history.forTag(TAG)
+        tag.markDelivered(timestamps(START, 288))
+        // the tag's clock restarted from an older time
+        tag.markDelivered(timestamps(START - 86400 * 10, 5))
+
+        assertFalse(tag.isDelivered(START))
+        assertTrue(tag.isDelivered(START - 86400 * 10))
+        assertEquals(START - 86400 * 10 + 4 * 300, tag.lastDelivered)
+    }
+
+    @Test
+    fun parserKeepsReadingsAfterClockWentBack() {
+        val tag = history.forTag(TAG)
+        tag.markDelivered(timestamps(START, 288))
+        val parser = LogRecordParser(TAG)
+        parser.deliveredHistory = tag
+
+        // timestamps inside the delivered span, but older than the request start
+        for (timestamp in longArrayOf(START + 300, START + 600)) {
+            parser.parse(notification(temperature(timestamp, 2000), humidity(timestamp, 4000), pressure(timestamp, 100000)))
+        }
+        parser.parse(END_OF_LOGS)
+
+        assertEquals(2, parser.readingsCount)
+        tag.markDelivered(parser.getCompletedTimestamps())
+        assertEquals(START + 600, tag.lastDelivered)
+        assertFalse(tag.isDelivered(START + 900))
+    }
+
+    @Test
+    fun parserDropsOverlapWithDeliveredReadings() {
+        val tag = history.forTag(TAG)
+        tag.markDelivered(timestamps(START, 288))
+        val parser = LogRecordParser(TAG)
+        parser.deliveredHistory = tag
+
+        val from = START + 287 * 300 - TagSyncHistory.REQUEST_OVERLAP_SECONDS + 300
+        for (timestamp in timestamps(from, 5)) {
+            parser.parse(notification(temperature(timestamp, 2000), humidity(timestamp, 4000), pressure(timestamp, 100000)))
+        }
+        parser.parse(END_OF_LOGS)
+
+        assertEquals(3, parser.readingsCount)
+    }
+
+    @Test
+    fun bitmapHistoryIsMigrated() {
+        DataOutputStream(FileOutputStream(File(directory, "AABBCCDDEEFF.sync"))).use { output ->
+            output.writeInt(1)
+            output.writeLong(START)
+            repeat(86400 / 64) { output.writeLong(-1L) }
+        }
+        val tag = history.forTag(TAG)
+
+        assertEquals(START, tag.lastDelivered)
+        assertTrue(tag.isDelivered(START - 1000))
+        assertFalse(tag.isDelivered(START + 1))
+    }
+
+    @Test
+    fun resetForgetsHistory() {
+        history.forTag(TAG).markDelivered(timestamps(START, 10))
+        history.reset(TAG)
+
+        assertNull(history.forTag(TAG).getRequestStart())
+        assertFalse(SyncHistory(directory).forTag(TAG).isDelivered(START))
+    }
+
+    private fun timestamps(from: Long, count: Int) = LongArray(count) { from + it * 300L }
+
+    companion object {
+        private const val TAG = "AA:BB:CC:DD:EE:FF"
+        private const val START = 1_600_000_000L
+        private val END_OF_LOGS = byteArrayOf(0x3A, 0x3A, 0x11, -1, -1, -1, -1, -1, -1, -1, -1)
+    }
+}
@@ -0,0 +1,270 @@
+package com.ruuvi.station.bluetooth.gatt.simulation
+
+import com.ruuvi.station.bluetooth.LogReading
+import com.ruuvi.station.bluetooth.gatt.DeviceInformation
+import com.ruuvi.station.bluetooth.gatt.DeviceInformationCache
+import com.ruuvi.station.bluetooth.gatt.LogRecordParser
+import com.ruuvi.station.bluetooth.gatt.LogSyncSession
+import com.ruuvi.station.bluetooth.gatt.LogSyncTransport
+import timber.log.Timber
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.math.PI
+import kotlin.math.sin
+
+/**
+ * In-process RuuviTag implementing the Device Information and Nordic UART services closely
+ * enough for [LogSyncSession] to sync from it. Allows running log sync end to end without a
+ * physical tag or an Android device, with injectable latency, notification loss and disconnects.
+ *
+ * Device information is read the way [com.ruuvi.station.bluetooth.gatt.NordicGattManager] reads
+ * it, one characteristic at a time, validating [deviceInformationCache] by the firmware revision
+ * when it has the tag.
+ */
+class SimulatedRuuviTag(
+    override val deviceId: String,
+    private val config: Config = Config(),
+    private val deviceInformationCache: DeviceInformationCache? = null
+) : LogSyncTransport {
+    private val executor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "SimulatedRuuviTag $deviceId").apply { isDaemon = true }
+    }
+    private val random = Random(config.seed)
+
+    @Volatile
+    private var events: LogSyncTransport.Events? = null
+    @Volatile
+    private var connected = false
+    @Volatile
+    private var notificationsEnabled = false
+
+    var notificationsSent = 0
+        private set
+    var notificationsDropped = 0
+        private set
+
+    /**
+     * Last timestamp (seconds) of the generated history.
+     */
+    val historyEnd: Long = config.historyEnd ?: System.currentTimeMillis() / 1000
+    val historyStart: Long = historyEnd - config.historyDays * SECONDS_IN_DAY
+
+    override val negotiatedMtu: Int
+        get() = config.mtu
+
+    override fun setEvents(events: LogSyncTransport.Events) {
+        this.events = events
+    }
+
+    override fun connect() {
+        executor.schedule({
+            connected = true
+            notificationsEnabled = false
+            events?.onConnected()
+            events?.onDeviceInformation(readDeviceInformation())
+        }, config.latencyMillis, TimeUnit.MILLISECONDS)
+    }
+
+    override fun enableLogNotifications() {
+        executor.execute {
+            notificationsEnabled = true
+        }
+    }
+
+    override fun writeCommand(command: ByteArray) {
+        executor.schedule({
+            if (connected && isReadCommand(command)) {
+                val buffer = ByteBuffer.wrap(command, 3, 8)
+                val now = buffer.int.toLong() and 0xFFFFFFFFL
+                val then = buffer.int.toLong() and 0xFFFFFFFFL
+                sendHistory(then, now)
+            }
+        }, config.latencyMillis, TimeUnit.MILLISECONDS)
+    }
+
+    override fun disconnect(): Boolean {
+        if (config.keepConnectionOpen) return false
+        executor.execute {
+            if (connected) {
+                connected = false
+                events?.onDisconnected()
+            }
+        }
+        return true
+    }
+
+    /**
+     * Readings the tag holds between [from] (exclusive) and [to] (inclusive), in seconds.
+     * This is what a lossless sync of that range is expected to deliver.
+     */
+    fun history(from: Long, to: Long): List<LogReading> {
+        val readings = mutableListOf<LogReading>()
+        forEachTimestamp(from, to) { timestamp ->
+            val reading = LogReading()
+            reading.id = deviceId
+            reading.date = Date(timestamp * 1000)
+            reading.temperature = temperatureAt(timestamp) / 100.0
+            reading.humidity = humidityAt(timestamp).toFloat() / 100.0
+            reading.pressure = pressureAt(timestamp).toDouble()
+            readings.add(reading)
+        }
+        return readings
+    }
+
+    fun shutdown() {
+        executor.shutdownNow()
+    }
+
+    private fun readDeviceInformation(): DeviceInformation {
+        val cached = deviceInformationCache?.get(deviceId)
+        if (cached != null) {
+            readCharacteristic()
+            if (cached.firmware == config.firmware) return cached
+            deviceInformationCache?.invalidate(deviceId)
+        }
+        // firmware, model, manufacturer and the serial number when the tag has one
+        repeat(if (config.serialNumber == null) 3 else 4) { readCharacteristic() }
+        val info = DeviceInformation(
+            config.model,
+            config.firmware,
+            config.manufacturer,
+            config.serialNumber,
+            LogSyncSession.canReadLogs(config.firmware)
+        )
+        deviceInformationCache?.put(deviceId, info)
+        return info
+    }
+
+    private fun readCharacteristic() {
+        if (config.characteristicReadMillis > 0) Thread.sleep(config.characteristicReadMillis)
+    }
+
+    private fun sendHistory(then: Long, now: Long) {
+        val recordsPerNotification = maxOf(1, minOf(config.recordsPerNotification, (config.mtu - ATT_HEADER_SIZE) / LogRecordParser.RECORD_SIZE))
+        val notification = ByteBuffer.allocate(recordsPerNotification * LogRecordParser.RECORD_SIZE)
+
+        forEachTimestamp(then, now) { timestamp ->
+            if (!connected) return
+            putRecord(notification, temperatureType, timestamp, temperatureAt(timestamp).toLong())
+            if (!flushIfFull(notification)) return
+            putRecord(notification, humidityType, timestamp, humidityAt(timestamp))
+            if (!flushIfFull(notification)) return
+            putRecord(notification, pressureType, timestamp, pressureAt(timestamp))
+            if (!flushIfFull(notification)) return
+        }
+        if (notification.position() > 0 && !flush(notification)) return
+
+        notification.put(readAllType)
+        repeat(LogRecordParser.RECORD_SIZE - readAllType.size) { notification.put(0xFF.toByte()) }
+        flush(notification)
+    }
+
+    private fun flushIfFull(notification: ByteBuffer): Boolean =
+        notification.hasRemaining() || flush(notification)
+
+    /**
+     * @return false when the connection was dropped
+     */
+    private fun flush(notification: ByteBuffer): Boolean {
+        val data = notification.array().copyOf(notification.position())
+        notification.clear()
+
+        if (config.disconnectAfterNotifications in 0..notificationsSent) {
+            Timber.d("$deviceId simulated disconnect after $notificationsSent notifications")
+            connected = false
+            events?.onDisconnected()
+            return false
+        }
+        if (config.notificationIntervalMillis > 0) {
+            try {
+                Thread.sleep(config.notificationIntervalMillis)
+            } catch (e: InterruptedException) {
+                return false
+            }
+        }
+        if (config.notificationLossRate > 0 && random.nextDouble() < config.notificationLossRate) {
+            notificationsDropped++
+        } else if (notificationsEnabled) {
+            notificationsSent++
+            events?.onNotification(data)
+        }
+        return true
+    }
+
+    private inline fun forEachTimestamp(from: Long, to: Long, action: (Long) -> Unit) {
+        val interval = config.logIntervalSeconds.toLong()
+        var timestamp = historyStart
+        if (timestamp <= from) {
+            timestamp += ((from - historyStart) / interval + 1) * interval
+        }
+        val end = minOf(to, historyEnd)
+        while (timestamp <= end) {
+            action(timestamp)
+            timestamp += interval
+        }
+    }
+
+    private fun temperatureAt(timestamp: Long): Int =
+        (2000 + 800 * sin(2 * PI * (timestamp % SECONDS_IN_DAY) / SECONDS_IN_DAY)).toInt()
+
+    private fun humidityAt(timestamp: Long): Long =
+        (4500 - 1500 * sin(2 * PI * (timestamp % SECONDS_IN_DAY) / SECONDS_IN_DAY)).toLong()
+
+    private fun pressureAt(timestamp: Long): Long =
+        100000L + (timestamp / 3600) % 2000
+
+    data class Config(
+        val model: String = "RuuviTag",
+        val firmware: String = "Ruuvi FW v3.31.1+default",
+        val manufacturer: String = "Ruuvi Innovations Ltd",
+        val serialNumber: String? = null,
+        val historyDays: Int = 10,
+        val historyEnd: Long? = null,
+        val logIntervalSeconds: Int = 300,
+        val mtu: Int = 23,
+        /**
+         * Upper bound for records packed into one notification, further limited by [mtu].
+         */
+        val recordsPerNotification: Int = 1,
+        val latencyMillis: Long = 0,
+        /**
+         * Round trip of one Device Information characteristic read.
+         */
+        val characteristicReadMillis: Long = 0,
+        val notificationIntervalMillis: Long = 0,
+        val notificationLossRate: Double = 0.0,
+        /**
+         * Drops the connection after this many notifications, -1 to never drop.
+         */
+        val disconnectAfterNotifications: Int = -1,
+        /**
+         * Keeps the connection open when an operation ends, like a pooled connection.
+         */
+        val keepConnectionOpen: Boolean = false,
+        val seed: Long = 0
+    )
+
+    companion object {
+        private const val SECONDS_IN_DAY = 86400L
+        private const val ATT_HEADER_SIZE = 3
+
+        private val readAllType = LogSyncSession.readAllBytes
+        private val temperatureType = byteArrayOf(0x3A, 0x30, 0x10)
+        private val humidityType = byteArrayOf(0x3A, 0x31, 0x10)
+        private val pressureType = byteArrayOf(0x3A, 0x32, 0x10)
+
+        private fun isReadCommand(command: ByteArray): Boolean =
+            command.size == 11 &&
+                command[0] == readAllType[0] &&
+                command[1] == readAllType[1] &&
+                command[2] == readAllType[2]
+
+        private fun putRecord(buffer: ByteBuffer, type: ByteArray, timestamp: Long, value: Long) {
+            buffer.put(type)
+            buffer.putInt(timestamp.toInt())
+            buffer.putInt(value.toInt())
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.ruuvi.station.bluetooth.simulation
+
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryType
+
+/**
+ * Bytes allocated by the current thread, from the HotSpot thread MX bean. [isSupported] is
+ * false on JVMs without thread allocation counters, where [allocatedBytes] returns -1.
+ */
+object AllocationProbe {
+    private const val GC_ROUNDS = 4
+
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+
+    val isSupported: Boolean = threadMXBean != null &&
+        threadMXBean.isThreadAllocatedMemorySupported &&
+        threadMXBean.isThreadAllocatedMemoryEnabled
+
+    fun allocatedBytes(): Long =
+        if (isSupported) threadMXBean!!.getThreadAllocatedBytes(Thread.currentThread().id) else -1
+
+    /**
+     * Heap used right after a full garbage collection, i.e. by reachable objects only. Objects
+     * with finalizers take a second collection after finalization to go, so this collects a few
+     * times and returns the smallest heap seen.
+     */
+    fun retainedHeapBytes(): Long {
+        var retained = Long.MAX_VALUE
+        for (round in 0 until GC_ROUNDS) {
+            System.gc()
+            @Suppress("DEPRECATION")
+            System.runFinalization()
+            // usage right after the collection, unlike the current usage which includes what
+            // was allocated since
+            val used = ManagementFactory.getMemoryPoolMXBeans()
+                .filter { it.type == MemoryType.HEAP }
+                .sumOf { it.collectionUsage?.used ?: 0L }
+            retained = minOf(retained, used)
+        }
+        return retained
+    }
+}
@@ -0,0 +1,139 @@
+package com.ruuvi.station.bluetooth.simulation
+
+import com.ruuvi.station.bluetooth.*
+import com.ruuvi.station.bluetooth.storage.CapturedAdvertisement
+import com.ruuvi.station.bluetooth.util.NanoTimeClock
+import org.junit.Assert.*
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+
+/**
+ * Replays [SyntheticFleet] traffic through [AdvertisementPipeline] and holds it to the load
+ * budget in the companion constants; change a limit together with the change that justifies
+ * it. The first [WARM_UP_FRACTION] of the traffic runs before measuring so the JIT has compiled
+ * the hot path, and the source hands over the next advertisement as soon as the previous one
+ * is processed, which measures capacity.
+ *
+ * Throughput is budgeted relative to the rate the fleet advertises at in real time, and both
+ * timing limits leave several times the headroom a development machine needs, so a loaded build
+ * machine passes while a hot path that can't keep up with the fleet fails. Heap and allocation budgets don't depend
+ * on the machine and are kept close to what the pipeline needs.
+ */
+class FleetLoadTest {
+    private val traffic = SyntheticFleet(SyntheticFleet.Config()).generate(DURATION_MILLIS)
+
+    @Test
+    fun fleetTrafficIsRepeatableAndInTimeOrder() {
+        val again = SyntheticFleet(SyntheticFleet.Config()).generate(DURATION_MILLIS)
+
+        assertEquals(traffic.size, again.size)
+        for (i in traffic.indices step 997) {
+            assertEquals(traffic[i].address, again[i].address)
+            assertArrayEquals(traffic[i].payload, again[i].payload)
+        }
+        assertTrue(traffic.zipWithNext().all { (a, b) -> a.timestampNanos <= b.timestampNanos })
+    }
+
+    @Test
+    fun fleetStaysWithinThroughputAndLatencyBudget() {
+        replay(newPipeline(), warmUpTraffic())
+        val pipeline = newPipeline()
+        val started = System.nanoTime()
+        val delivered = replay(pipeline, traffic)
+        val elapsed = System.nanoTime() - started
+
+        val metrics = pipeline.metrics.snapshot()
+        val throughput = traffic.size * 1e9 / elapsed
+        val realTimeRate = traffic.size * 1000.0 / DURATION_MILLIS
+        val p99Micros = metrics.overall.latencies.getValue(ScanLatency.RADIO_TO_LISTENER).percentileNanos(99.0) / 1000
+
+        assertEquals(traffic.size.toLong(), metrics.overall.counters[ScanCounter.RECEIVED])
+        assertEquals(delivered, metrics.overall.counters[ScanCounter.DELIVERED])
+        assertTrue((metrics.overall.counters[ScanCounter.DEDUPLICATED] ?: 0) > 0)
+        assertTrue("Per tag metrics for ${metrics.tags.size} tags", metrics.tags.size <= ScanMetrics.DEFAULT_MAX_TAGS)
+        assertTrue(
+            "Throughput ${throughput.toLong()}/s, fleet advertises ${realTimeRate.toLong()}/s",
+            throughput >= realTimeRate * MIN_THROUGHPUT_OVER_REAL_TIME
+        )
+        assertTrue("p99 delivery latency $p99Micros us", p99Micros <= MAX_P99_DELIVERY_LATENCY_MICROS)
+    }
+
+    /**
+     * The first half of the traffic fills the per tag state of the pipeline, which is budgeted
+     * as a whole. The second half must then leave the heap as it was: state that grows with
+     * traffic instead of with the number of tags fails it.
+     */
+    @Test
+    fun sustainedTrafficStaysWithinHeapGrowthBudget() {
+        val pipeline = newPipeline()
+        val before = AllocationProbe.retainedHeapBytes()
+        replay(pipeline, traffic.subList(0, traffic.size / 2))
+        val settled = AllocationProbe.retainedHeapBytes()
+        replay(pipeline, traffic.subList(traffic.size / 2, traffic.size))
+        val after = AllocationProbe.retainedHeapBytes()
+
+        // also keeps the pipeline and what it retains reachable while the heap is measured
+        assertEquals(traffic.size.toLong(), pipeline.metrics.snapshot().overall.counters[ScanCounter.RECEIVED])
+        assertTrue("Fleet state takes ${(after - before) / 1024} KB", after - before <= MAX_FLEET_STATE_BYTES)
+        assertTrue(
+            "Retained heap grew by ${(after - settled) / 1024} KB over the last ${traffic.size - traffic.size / 2} advertisements",
+            after - settled <= MAX_SUSTAINED_HEAP_GROWTH_BYTES
+        )
+    }
+
+    @Test
+    fun fleetStaysWithinAllocationBudget() {
+        assumeTrue(AllocationProbe.isSupported)
+        replay(newPipeline(), warmUpTraffic())
+        val pipeline = newPipeline()
+        val before = AllocationProbe.allocatedBytes()
+        replay(pipeline, traffic)
+        val perAdvertisement = (AllocationProbe.allocatedBytes() - before) / traffic.size
+
+        assertTrue("Allocated $perAdvertisement bytes per advertisement", perAdvertisement <= MAX_ALLOCATED_BYTES_PER_ADVERTISEMENT)
+    }
+
+    private fun warmUpTraffic() = traffic.subList(0, traffic.size / WARM_UP_FRACTION)
+
+    private fun newPipeline() = AdvertisementPipeline(
+        registry = AdvertisementPipeline.InMemoryRegistry(),
+        metrics = ScanMetrics(),
+        clock = NanoTimeClock
+    )
+
+    /**
+     * @return readings delivered to the listener
+     */
+    private fun replay(pipeline: AdvertisementPipeline, traffic: List<CapturedAdvertisement>): Long {
+        var delivered = 0L
+        val listener = object : IRuuviTagScanner.OnTagFoundListener {
+            override fun onTagFound(tag: FoundRuuviTag) {
+                delivered++
+            }
+        }
+        val source = CaptureReplaySource({ traffic.asSequence() }, ReplaySpeed.AS_FAST_AS_POSSIBLE, NanoTimeClock)
+        assertTrue(source.run(object : AdvertisementSink {
+            override fun onAdvertisement(advertisement: Advertisement) {
+                pipeline.process(advertisement, listener)
+            }
+
+            override fun onSourceFailed(errorCode: Int) {}
+        }))
+        return delivered
+    }
+
+    companion object {
+        private const val DURATION_MILLIS = 30000L
+        private const val WARM_UP_FRACTION = 5
+
+        /** Multiple of the rate the fleet advertises at in real time */
+        private const val MIN_THROUGHPUT_OVER_REAL_TIME = 2.0
+        /** From hand-over by the source to the tag listener returning */
+        private const val MAX_P99_DELIVERY_LATENCY_MICROS = 20000L
+        /** Retained by the pipeline for the whole fleet, registry and per tag metrics */
+        private const val MAX_FLEET_STATE_BYTES = 1L * 1024 * 1024
+        /** Over the second half of the traffic, about 3 bytes per advertisement */
+        private const val MAX_SUSTAINED_HEAP_GROWTH_BYTES = 128L * 1024
+        private const val MAX_ALLOCATED_BYTES_PER_ADVERTISEMENT = 8L * 1024
+    }
+}
@@ -0,0 +1,110 @@
+package com.ruuvi.station.bluetooth.simulation
+
+import com.ruuvi.station.bluetooth.*
+import com.ruuvi.station.bluetooth.decoder.LeScanResult
+import com.ruuvi.station.bluetooth.util.NanoTimeClock
+import com.ruuvi.station.bluetooth.util.extensions.toMacAddress
+import org.junit.Assert.*
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.util.*
+
+/**
+ * Measures the bytes [AdvertisementPipeline] allocates per packet on each [HotPathBudget] path
+ * and compares them to the path's ceiling. Packets are built before measuring, with a new
+ * sequence number each round so only [DeliveryMode.DUPLICATE_SCAN] hits duplicate suppression,
+ * and the first [WARM_UP_ROUNDS] rounds run unmeasured so the JIT has compiled the path.
+ *
+ * Needs thread allocation counters, i.e. a HotSpot based JVM; see [AllocationProbe].
+ */
+class HotPathAllocationTest {
+    private var delivered = 0L
+
+    private val listener = object : IRuuviTagScanner.OnTagFoundListener {
+        override fun onTagFound(tag: FoundRuuviTag) {
+            delivered++
+        }
+    }
+
+    private val timedListener = object : OnTimedTagFoundListener {
+        override fun onTagFound(tag: FoundRuuviTag, receivedAtNanos: Long) {
+            delivered++
+        }
+    }
+
+    @Test
+    fun everyPathStaysWithinItsCeiling() {
+        assumeTrue(AllocationProbe.isSupported)
+        val exceeded = ArrayList<String>()
+        for (path in HotPathBudget.values()) {
+            val bytesPerPacket = measure(path)
+            if (bytesPerPacket > path.maxBytesPerPacket) {
+                exceeded.add("$path allocated $bytesPerPacket bytes/packet, ceiling ${path.maxBytesPerPacket}")
+            }
+            val dropped = path.mode == DeliveryMode.DUPLICATE_SCAN || path.format == SyntheticFormat.EDDYSTONE
+            val expectedDeliveries = if (dropped) 0L else ROUNDS.toLong() * TAGS
+            assertEquals("$path deliveries", expectedDeliveries, delivered)
+        }
+        assertTrue(exceeded.joinToString("\n"), exceeded.isEmpty())
+    }
+
+    /**
+     * @return bytes allocated per measured packet
+     */
+    private fun measure(path: HotPathBudget): Long {
+        val random = Random(SEED)
+        val addresses = Array(TAGS) { ((random.nextLong() and 0xFFFFFFFFFFFFL) or 0xC00000000000L).toMacAddress() }
+        val packets = Array(WARM_UP_ROUNDS + ROUNDS) { round ->
+            val sequenceNumber = if (path.mode == DeliveryMode.DUPLICATE_SCAN) 0 else round
+            Array(TAGS) { i ->
+                Advertisement(
+                    address = addresses[i],
+                    rssi = -60,
+                    payload = SyntheticFleet.payload(path.format, sequenceNumber, random),
+                    timestampNanos = 0,
+                    connectable = false
+                )
+            }
+        }
+        val pipeline = AdvertisementPipeline(
+            registry = AdvertisementPipeline.InMemoryRegistry(),
+            clock = NanoTimeClock
+        )
+        val tagListener = if (path.mode == DeliveryMode.TIMED_SCAN) timedListener else listener
+
+        val send: (Advertisement) -> Unit
+        if (path.mode == DeliveryMode.DECODED) {
+            val readings = IdentityHashMap<Advertisement, FoundRuuviTag>()
+            for (round in packets) {
+                for (packet in round) {
+                    val reading = LeScanResult.from(packet.address, null, packet.payload, packet.rssi)
+                    assertNotNull("$path packets don't decode", reading)
+                    readings[packet] = reading
+                }
+            }
+            send = { pipeline.deliver(readings.getValue(it), tagListener, it.timestampNanos) }
+        } else {
+            send = { pipeline.process(it, tagListener) }
+        }
+
+        for (round in 0 until WARM_UP_ROUNDS) {
+            val batch = packets[round]
+            for (i in batch.indices) send(batch[i])
+        }
+        delivered = 0
+        val allocatedBefore = AllocationProbe.allocatedBytes()
+        for (round in WARM_UP_ROUNDS until packets.size) {
+            val batch = packets[round]
+            for (i in batch.indices) send(batch[i])
+        }
+        val allocated = AllocationProbe.allocatedBytes() - allocatedBefore
+        return allocated / (ROUNDS.toLong() * TAGS)
+    }
+
+    companion object {
+        private const val TAGS = 64
+        private const val ROUNDS = 200
+        private const val WARM_UP_ROUNDS = 100
+        private const val SEED = 1L
+    }
+}
@@ -0,0 +1,43 @@
+package com.ruuvi.station.bluetooth.simulation
+
+/**
+ * How a packet reaches the tag listener.
+ */
+enum class DeliveryMode {
+    /** Advertisement decoded and delivered to a plain tag listener */
+    SCAN,
+    /** Advertisement decoded and delivered to an [com.ruuvi.station.bluetooth.OnTimedTagFoundListener] */
+    TIMED_SCAN,
+    /** Advertisement decoded and dropped as a repeat of a delivered measurement */
+    DUPLICATE_SCAN,
+    /** Already decoded reading delivered, as for streamed and GATT readings */
+    DECODED
+}
+
+/**
+ * Bytes each path through the per-packet hot path may allocate per packet, checked by
+ * [HotPathAllocationTest]. Each ceiling sits about 10% above what the path was measured at.
+ * Lower a ceiling when an optimization lands so the gain can't be lost unnoticed; raising one
+ * needs a reason in the change that does it.
+ *
+ * Eddystone is measured only up to the listener hand-over, since its readings aren't decoded.
+ */
+enum class HotPathBudget(
+    val format: SyntheticFormat,
+    val mode: DeliveryMode,
+    val maxBytesPerPacket: Long
+) {
+    FORMAT_3_SCAN(SyntheticFormat.FORMAT_3, DeliveryMode.SCAN, 544),
+    FORMAT_3_TIMED_SCAN(SyntheticFormat.FORMAT_3, DeliveryMode.TIMED_SCAN, 544),
+    FORMAT_3_DECODED(SyntheticFormat.FORMAT_3, DeliveryMode.DECODED, 16),
+    FORMAT_5_SCAN(SyntheticFormat.FORMAT_5, DeliveryMode.SCAN, 608),
+    FORMAT_5_TIMED_SCAN(SyntheticFormat.FORMAT_5, DeliveryMode.TIMED_SCAN, 608),
+    FORMAT_5_DUPLICATE_SCAN(SyntheticFormat.FORMAT_5, DeliveryMode.DUPLICATE_SCAN, 608),
+    FORMAT_5_DECODED(SyntheticFormat.FORMAT_5, DeliveryMode.DECODED, 16),
+    FORMAT_C5_SCAN(SyntheticFormat.FORMAT_C5, DeliveryMode.SCAN, 544),
+    FORMAT_C5_TIMED_SCAN(SyntheticFormat.FORMAT_C5, DeliveryMode.TIMED_SCAN, 544),
+    FORMAT_C5_DUPLICATE_SCAN(SyntheticFormat.FORMAT_C5, DeliveryMode.DUPLICATE_SCAN, 544),
+    FORMAT_C5_DECODED(SyntheticFormat.FORMAT_C5, DeliveryMode.DECODED, 16),
+    EDDYSTONE_SCAN(SyntheticFormat.EDDYSTONE, DeliveryMode.SCAN, 1824),
+    EDDYSTONE_TIMED_SCAN(SyntheticFormat.EDDYSTONE, DeliveryMode.TIMED_SCAN, 1824)
+}
@@ -0,0 +1,231 @@
+package com.ruuvi.station.bluetooth.simulation
+
+import com.ruuvi.station.bluetooth.storage.CapturedAdvertisement
+import java.util.*
+
+/**
+ * Advertisement formats a synthetic tag can broadcast.
+ */
+enum class SyntheticFormat {
+    FORMAT_3,
+    FORMAT_5,
+    FORMAT_C5,
+    /** Eddystone URL carrying format 4 */
+    EDDYSTONE
+}
+
+/**
+ * A fleet of simulated tags advertising at their own rates, for driving the scan pipeline with
+ * realistic traffic and no radio. Advertisements are generated in time order from a seed, so a
+ * run can be repeated exactly, and in the form of captures so
+ * [com.ruuvi.station.bluetooth.CaptureReplaySource] can replay them.
+ */
+class SyntheticFleet(private val config: Config = Config()) {
+
+    /**
+     * @param formats formats assigned to tags in turn
+     * @param minRateHz slowest advertising rate of a tag
+     * @param maxRateHz fastest advertising rate of a tag
+     * @param advertisementsPerMeasurement how often a tag repeats a measurement before the next
+     * one, like real tags that advertise faster than they measure
+     * @param churnPerMinute tags replaced by a tag with a new random address per minute, like
+     * devices with rotating addresses
+     */
+    data class Config(
+        val tagCount: Int = 2000,
+        val formats: List<SyntheticFormat> = listOf(
+            SyntheticFormat.FORMAT_5,
+            SyntheticFormat.FORMAT_5,
+            SyntheticFormat.FORMAT_5,
+            SyntheticFormat.FORMAT_3,
+            SyntheticFormat.FORMAT_C5,
+            SyntheticFormat.EDDYSTONE
+        ),
+        val minRateHz: Double = 1.0,
+        val maxRateHz: Double = 2.0,
+        val advertisementsPerMeasurement: Int = 2,
+        val churnPerMinute: Int = 20,
+        val seed: Long = 1
+    ) {
+        init {
+            require(tagCount > 0) { "Fleet needs tags" }
+            require(formats.isNotEmpty()) { "Fleet needs formats" }
+            require(minRateHz > 0 && maxRateHz >= minRateHz) { "Invalid rates $minRateHz - $maxRateHz Hz" }
+            require(advertisementsPerMeasurement > 0) { "Invalid advertisements per measurement" }
+        }
+    }
+
+    private class Tag(
+        var address: Long,
+        val format: SyntheticFormat,
+        val intervalNanos: Long,
+        var nextNanos: Long
+    ) {
+        var sequenceNumber = 0
+        var repeats = 0
+    }
+
+    /**
+     * Advertisements of the fleet during [durationMillis], in time order, with timestamps
+     * counted from the start of the run.
+     */
+    fun generate(durationMillis: Long): List<CapturedAdvertisement> {
+        val random = Random(config.seed)
+        val queue = PriorityQueue<Tag>(config.tagCount, compareBy { it.nextNanos })
+        for (i in 0 until config.tagCount) {
+            val rate = config.minRateHz + random.nextDouble() * (config.maxRateHz - config.minRateHz)
+            val interval = (NANOS_IN_SECOND / rate).toLong()
+            queue.add(Tag(randomAddress(random), config.formats[i % config.formats.size], interval, (random.nextDouble() * interval).toLong()))
+        }
+        val end = durationMillis * 1000000
+        val churnInterval = if (config.churnPerMinute > 0) 60 * NANOS_IN_SECOND / config.churnPerMinute else Long.MAX_VALUE
+        var nextChurn = churnInterval
+        val result = ArrayList<CapturedAdvertisement>()
+        while (true) {
+            val tag = queue.poll() ?: break
+            if (tag.nextNanos >= end) break
+            while (nextChurn <= tag.nextNanos) {
+                tag.address = randomAddress(random)
+                tag.sequenceNumber = random.nextInt(MAX_SEQUENCE)
+                nextChurn += churnInterval
+            }
+            if (tag.repeats++ % config.advertisementsPerMeasurement == 0) {
+                tag.sequenceNumber = (tag.sequenceNumber + 1) % MAX_SEQUENCE
+            }
+            result.add(
+                CapturedAdvertisement(
+                    tag.nextNanos,
+                    tag.address,
+                    -40 - random.nextInt(60),
+                    payload(tag.format, tag.sequenceNumber, random)
+                )
+            )
+            tag.nextNanos += tag.intervalNanos
+            queue.add(tag)
+        }
+        return result
+    }
+
+    companion object {
+        private const val NANOS_IN_SECOND = 1000000000L
+        private const val MAX_SEQUENCE = 65535
+        private const val FLAGS = 0x01
+        private const val MANUFACTURER_DATA = 0xFF
+        private const val SERVICE_UUIDS = 0x03
+        private const val SERVICE_DATA = 0x16
+        private const val EDDYSTONE_URL_FRAME = 0x10
+        private const val HTTPS_SCHEME = 0x03
+        private const val BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+
+        /**
+         * Random static address: the two most significant bits set.
+         */
+        private fun randomAddress(random: Random): Long =
+            (random.nextLong() and 0xFFFFFFFFFFFFL) or 0xC00000000000L
+
+        /**
+         * Raw advertisement data as the scanner reports it, with plausible measurements.
+         */
+        fun payload(format: SyntheticFormat, sequenceNumber: Int, random: Random): ByteArray {
+            val temperature = -1000 + random.nextInt(5000) // centidegrees
+            val humidity = random.nextInt(10000) // centipercent
+            val pressure = 95000 + random.nextInt(10000) // Pa
+            return when (format) {
+                SyntheticFormat.FORMAT_3 -> manufacturerData(
+                    byteArrayOf(
+                        3,
+                        (humidity / 50).toByte(),
+                        ((if (temperature < 0) 0x80 else 0) or (Math.abs(temperature) / 100)).toByte(),
+                        (Math.abs(temperature) % 100).toByte(),
+                        ((pressure - 50000) shr 8).toByte(), (pressure - 50000).toByte(),
+                        0, 10, 0, 20, 3, -24,
+                        (2900 shr 8).toByte(), 2900.toByte()
+                    )
+                )
+                SyntheticFormat.FORMAT_5 -> {
+                    val data = ByteArray(24)
+                    data[0] = 5
+                    putShort(data, 1, temperature * 2)
+                    putShort(data, 3, humidity * 4)
+                    putShort(data, 5, pressure - 50000)
+                    putShort(data, 7, 10)
+                    putShort(data, 9, 20)
+                    putShort(data, 11, 1000)
+                    putShort(data, 13, (1300 shl 5) or 24)
+                    data[15] = random.nextInt(255).toByte()
+                    putShort(data, 16, sequenceNumber)
+                    manufacturerData(data)
+                }
+                SyntheticFormat.FORMAT_C5 -> {
+                    val data = ByteArray(18)
+                    data[0] = 0xC5.toByte()
+                    putShort(data, 1, temperature * 2)
+                    putShort(data, 3, humidity * 4)
+                    putShort(data, 5, pressure - 50000)
+                    putShort(data, 7, (1300 shl 5) or 24)
+                    data[9] = random.nextInt(255).toByte()
+                    putShort(data, 10, sequenceNumber)
+                    manufacturerData(data)
+                }
+                SyntheticFormat.EDDYSTONE -> {
+                    val measurement = byteArrayOf(
+                        4,
+                        (humidity / 50).toByte(),
+                        ((if (temperature < 0) 0x80 else 0) or (Math.abs(temperature) / 100)).toByte(),
+                        0,
+                        ((pressure - 50000) shr 8).toByte(), (pressure - 50000).toByte()
+                    )
+                    val url = "ruu.vi/#" + base64(measurement)
+                    eddystoneUrl(url.toByteArray(Charsets.US_ASCII))
+                }
+            }
+        }
+
+        /**
+         * Base64 of whole 3 byte groups; java.util.Base64 needs API 26.
+         */
+        private fun base64(data: ByteArray): String {
+            require(data.size % 3 == 0) { "Only whole 3 byte groups are encoded" }
+            val result = StringBuilder(data.size / 3 * 4)
+            for (i in data.indices step 3) {
+                val group = ((data[i].toInt() and 0xFF) shl 16) or
+                    ((data[i + 1].toInt() and 0xFF) shl 8) or
+                    (data[i + 2].toInt() and 0xFF)
+                for (shift in intArrayOf(18, 12, 6, 0)) {
+                    result.append(BASE64[(group shr shift) and 0x3F])
+                }
+            }
+            return result.toString()
+        }
+
+        private fun putShort(data: ByteArray, offset: Int, value: Int) {
+            data[offset] = (value shr 8).toByte()
+            data[offset + 1] = value.toByte()
+        }
+
+        private fun manufacturerData(data: ByteArray): ByteArray {
+            val payload = ByteArray(3 + 4 + data.size)
+            payload[0] = 2
+            payload[1] = FLAGS.toByte()
+            payload[2] = 0x06
+            payload[3] = (3 + data.size).toByte()
+            payload[4] = MANUFACTURER_DATA.toByte()
+            // Ruuvi company id 0x0499, little endian
+            payload[5] = 0x99.toByte()
+            payload[6] = 0x04
+            System.arraycopy(data, 0, payload, 7, data.size)
+            return payload
+        }
+
+        private fun eddystoneUrl(url: ByteArray): ByteArray {
+            val frame = byteArrayOf(
+                0xAA.toByte(), 0xFE.toByte(), EDDYSTONE_URL_FRAME.toByte(), -10, HTTPS_SCHEME.toByte()
+            ) + url
+            return byteArrayOf(
+                2, FLAGS.toByte(), 0x06,
+                3, SERVICE_UUIDS.toByte(), 0xAA.toByte(), 0xFE.toByte(),
+                (1 + frame.size).toByte(), SERVICE_DATA.toByte()
+            ) + frame
+        }
+    }
+}
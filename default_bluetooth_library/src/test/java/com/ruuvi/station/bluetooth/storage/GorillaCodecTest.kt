@@ -0,0 +1,74 @@
+package com.ruuvi.station.bluetooth.storage
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.*
+
+class GorillaCodecTest {
+
+    @Test
+    fun timestampsRoundTrip() {
+        val random = Random(1)
+        var timestamp = 1_600_000_000L
+        val timestamps = LongArray(2000) {
+            // regular intervals with occasional gaps of every encoded size
+            timestamp += when (random.nextInt(20)) {
+                0 -> random.nextInt(100).toLong()
+                1 -> random.nextInt(2000).toLong()
+                2 -> random.nextInt(86400 * 30).toLong()
+                else -> 300L
+            }
+            timestamp
+        }
+        val bytes = ByteArray(64 * 1024)
+        val writer = BitWriter(bytes, 0)
+        val encoder = TimestampEncoder()
+        encoder.writeFirst(writer, timestamps[0])
+        for (i in 1 until timestamps.size) encoder.write(writer, timestamps[i])
+
+        val reader = BitReader(ByteBuffer.wrap(bytes), 0)
+        val decoder = TimestampDecoder()
+        assertEquals(timestamps[0], decoder.readFirst(reader))
+        for (i in 1 until timestamps.size) assertEquals(timestamps[i], decoder.read(reader))
+    }
+
+    @Test
+    fun valuesRoundTripBitExact() {
+        val random = Random(2)
+        val values = DoubleArray(2000) {
+            when (random.nextInt(10)) {
+                0 -> Double.NaN
+                1 -> -0.0
+                2 -> random.nextDouble() * 1e9
+                3 -> Double.MIN_VALUE
+                else -> Math.round((20 + random.nextGaussian()) * 100) / 100.0
+            }
+        }
+        val bytes = ByteArray(64 * 1024)
+        val writer = BitWriter(bytes, 3)
+        val encoder = ValueEncoder()
+        encoder.writeFirst(writer, values[0])
+        for (i in 1 until values.size) encoder.write(writer, values[i])
+
+        val reader = BitReader(ByteBuffer.wrap(bytes), 3)
+        val decoder = ValueDecoder()
+        assertBitsEqual(values[0], decoder.readFirst(reader))
+        for (i in 1 until values.size) assertBitsEqual(values[i], decoder.read(reader))
+    }
+
+    @Test
+    fun repeatedValuesTakeOneBitEach() {
+        val bytes = ByteArray(1024)
+        val writer = BitWriter(bytes, 0)
+        val encoder = ValueEncoder()
+        encoder.writeFirst(writer, 21.5)
+        repeat(100) { encoder.write(writer, 21.5) }
+
+        assertEquals(64 + 100, writer.bitPosition)
+    }
+
+    private fun assertBitsEqual(expected: Double, actual: Double) {
+        assertEquals(java.lang.Double.doubleToRawLongBits(expected), java.lang.Double.doubleToRawLongBits(actual))
+    }
+}
@@ -0,0 +1,167 @@
+package com.ruuvi.station.bluetooth.storage
+
+import com.ruuvi.station.bluetooth.LogReading
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.file.Files
+import java.util.*
+
+class TimeSeriesStoreTest {
+    private lateinit var directory: File
+    private lateinit var store: TimeSeriesStore
+
+    @Before
+    fun setUp() {
+        directory = Files.createTempDirectory("history").toFile()
+        store = TimeSeriesStore(directory)
+    }
+
+    @After
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun appendedReadingsRoundTripAcrossBlocks() {
+        val readings = readings(START, 20000)
+        // several appends so the last block is reopened each time
+        readings.chunked(3000).forEach { assertEquals(it.size, store.append(TAG, it)) }
+
+        val stored = store.query(TAG, Date(0), Date(Long.MAX_VALUE / 2))
+        assertTrue(store.getSizeOnDisk(TAG) > TimeSeriesStore.BLOCK_SIZE)
+        assertReadingsEqual(readings, stored)
+        assertEquals(readings.last().date, store.getLatestTimestamp(TAG))
+    }
+
+    @Test
+    fun queryReturnsInclusiveRange() {
+        val readings = readings(START, 5000)
+        store.append(TAG, readings)
+
+        val from = readings[1000].date
+        val to = readings[3999].date
+        assertReadingsEqual(readings.subList(1000, 4000), store.query(TAG, from, to))
+    }
+
+    @Test
+    fun olderAndDuplicateReadingsAreRejected() {
+        val readings = readings(START, 100)
+        assertEquals(100, store.append(TAG, readings))
+
+        val late = readings(START - 3000, 10)
+        val duplicates = readings.subList(90, 100)
+        val newer = readings(readings.last().date.time / 1000 + 300, 5)
+        assertEquals(5, store.append(TAG, late + duplicates + newer + newer))
+
+        assertReadingsEqual(readings + newer, store.query(TAG, Date(0), Date(Long.MAX_VALUE / 2)))
+    }
+
+    @Test
+    fun appendLeavesOnlyTheHistoryFile() {
+        store.append(TAG, readings(START, 3000))
+        store.append(TAG, readings(START + 3000 * 300, 10))
+
+        assertEquals(listOf("AABBCCDDEEFF.rts"), directory.list()!!.toList())
+        assertEquals(0L, store.getSizeOnDisk(TAG) % TimeSeriesStore.BLOCK_SIZE)
+    }
+
+    @Test
+    fun appendWritesIntoTheExistingFile() {
+        val first = readings(START, 3000)
+        store.append(TAG, first)
+        val sealed = File(directory, "AABBCCDDEEFF.rts").readBytes().copyOf(TimeSeriesStore.BLOCK_SIZE)
+
+        RandomAccessFile(File(directory, "AABBCCDDEEFF.rts"), "r").use { opened ->
+            val second = readings(START + 3000 * 300, 3000)
+            store.append(TAG, second)
+
+            // a file replaced by rename would leave the opened handle on the old contents
+            assertEquals(store.getSizeOnDisk(TAG), opened.length())
+            val firstBlock = ByteArray(TimeSeriesStore.BLOCK_SIZE)
+            opened.readFully(firstBlock)
+            assertArrayEquals(sealed, firstBlock)
+            assertReadingsEqual(first + second, store.query(TAG, Date(0), Date(Long.MAX_VALUE / 2)))
+        }
+    }
+
+    @Test
+    fun interruptedAppendIsRolledBack() {
+        val first = readings(START, 3000)
+        store.append(TAG, first)
+        val length = store.getSizeOnDisk(TAG)
+
+        val second = readings(START + 3000 * 300, 3000)
+        store.onBlockWritten = { index -> if (index * TimeSeriesStore.BLOCK_SIZE >= length) throw IOException("crash") }
+        try {
+            store.append(TAG, second)
+            fail("Append wasn't interrupted")
+        } catch (e: IOException) {
+        }
+        assertTrue(store.getSizeOnDisk(TAG) > length)
+
+        val restarted = TimeSeriesStore(directory)
+        assertReadingsEqual(first, restarted.query(TAG, Date(0), Date(Long.MAX_VALUE / 2)))
+        assertEquals(length, restarted.getSizeOnDisk(TAG))
+        assertEquals(listOf("AABBCCDDEEFF.rts"), directory.list()!!.toList())
+
+        assertEquals(second.size, restarted.append(TAG, second))
+        assertReadingsEqual(first + second, restarted.query(TAG, Date(0), Date(Long.MAX_VALUE / 2)))
+    }
+
+    @Test
+    fun tornJournalIsIgnored() {
+        val readings = readings(START, 3000)
+        store.append(TAG, readings)
+        File(directory, "AABBCCDDEEFF.rts.journal").writeBytes(ByteArray(100) { 1 })
+
+        assertReadingsEqual(readings, store.query(TAG, Date(0), Date(Long.MAX_VALUE / 2)))
+        assertEquals(listOf("AABBCCDDEEFF.rts"), directory.list()!!.toList())
+    }
+
+    @Test
+    fun missingValuesStayMissing() {
+        val reading = LogReading()
+        reading.id = TAG
+        reading.date = Date(START * 1000)
+        reading.temperature = 21.0
+        store.append(TAG, listOf(reading))
+
+        val stored = store.query(TAG, Date(0), Date(Long.MAX_VALUE / 2)).single()
+        assertEquals(21.0, stored.temperature!!, 0.0)
+        assertNull(stored.humidity)
+        assertNull(stored.pressure)
+    }
+
+    private fun readings(fromSeconds: Long, count: Int): List<LogReading> {
+        val random = Random(fromSeconds)
+        return List(count) { i ->
+            LogReading().apply {
+                id = TAG
+                date = Date((fromSeconds + i * 300L) * 1000)
+                temperature = Math.round((20 + random.nextGaussian()) * 100) / 100.0
+                humidity = Math.round((45 + random.nextGaussian()) * 100) / 100.0
+                pressure = 100000.0 + random.nextInt(2000)
+            }
+        }
+    }
+
+    private fun assertReadingsEqual(expected: List<LogReading>, actual: List<LogReading>) {
+        assertEquals(expected.size, actual.size)
+        for (i in expected.indices) {
+            assertEquals(expected[i].date, actual[i].date)
+            assertEquals(expected[i].temperature, actual[i].temperature)
+            assertEquals(expected[i].humidity, actual[i].humidity)
+            assertEquals(expected[i].pressure, actual[i].pressure)
+        }
+    }
+
+    companion object {
+        private const val TAG = "AA:BB:CC:DD:EE:FF"
+        private const val START = 1_600_000_000L
+    }
+}
@@ -0,0 +1,87 @@
+package com.ruuvi.station.bluetooth.util
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.Random
+
+class HyperLogLogTest {
+
+    @Test
+    fun estimateTracksExactCountOfRotatingAddresses() {
+        for (distinct in intArrayOf(500, 2000, 10000)) {
+            var worst = 0.0
+            for (seed in 1L..SEEDS) {
+                val hyperLogLog = HyperLogLog()
+                val exact = LongHashSet()
+                rotatingAddresses(distinct, Random(seed)) { address ->
+                    hyperLogLog.add(address)
+                    exact.add(address)
+                }
+                val error = Math.abs(hyperLogLog.estimate() - exact.size()).toDouble() / exact.size()
+                worst = maxOf(worst, error)
+            }
+            assertTrue(
+                "Worst error ${"%.2f".format(worst * 100)} % at $distinct addresses over $SEEDS seeds",
+                worst < MAX_RELATIVE_ERROR
+            )
+        }
+    }
+
+    @Test
+    fun repeatedAddressesDontChangeEstimate() {
+        val hyperLogLog = HyperLogLog()
+        for (address in 0L until 1000L) hyperLogLog.add(address)
+        val estimate = hyperLogLog.estimate()
+
+        for (address in 0L until 1000L) assertFalse(hyperLogLog.add(address))
+        assertEquals(estimate, hyperLogLog.estimate())
+    }
+
+    @Test
+    fun registersRoundTrip() {
+        val hyperLogLog = HyperLogLog()
+        rotatingAddresses(2000, Random(3)) { hyperLogLog.add(it) }
+        val restored = HyperLogLog()
+        restored.setRegisters(hyperLogLog.registers)
+
+        assertEquals(hyperLogLog.estimate(), restored.estimate())
+        restored.clear()
+        assertEquals(0, restored.estimate())
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun invalidRegistersAreRejected() {
+        HyperLogLog().setRegisters(ByteArray(HyperLogLog.REGISTER_COUNT) { 100 })
+    }
+
+    /**
+     * Devices around the phone that advertise with random private addresses, each moving to a
+     * new address every [ROTATIONS_PER_DEVICE]th of the run and seen several times per address,
+     * until about [distinct] addresses have been seen.
+     */
+    private fun rotatingAddresses(distinct: Int, random: Random, consumer: (Long) -> Unit) {
+        val devices = LongArray(distinct / ROTATIONS_PER_DEVICE) { randomPrivateAddress(random) }
+        repeat(ROTATIONS_PER_DEVICE) {
+            repeat(SIGHTINGS_PER_ADDRESS) {
+                for (address in devices) consumer(address)
+            }
+            for (i in devices.indices) devices[i] = randomPrivateAddress(random)
+        }
+    }
+
+    /**
+     * 48 random bits with the two top bits 01, like a resolvable private address.
+     */
+    private fun randomPrivateAddress(random: Random): Long =
+        (random.nextLong() and 0x3FFFFFFFFFFFL) or 0x400000000000L
+
+    companion object {
+        private const val SEEDS = 10L
+        private const val ROTATIONS_PER_DEVICE = 10
+        private const val SIGHTINGS_PER_ADDRESS = 5
+        /**
+         * About three times the standard error of 4096 registers.
+         */
+        private const val MAX_RELATIVE_ERROR = 0.05
+    }
+}
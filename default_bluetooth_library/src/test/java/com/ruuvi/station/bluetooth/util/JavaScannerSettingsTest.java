@@ -0,0 +1,59 @@
+package com.ruuvi.station.bluetooth.util;
+
+import android.app.PendingIntent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Java apps implement {@link ScannerSettings} with only the methods it had originally; the
+ * later ones must come with defaults.
+ */
+public class JavaScannerSettingsTest {
+
+    private static class MinimalSettings implements ScannerSettings {
+        @Override
+        public boolean allowBackgroundScan() {
+            return true;
+        }
+
+        @Override
+        public long getBackgroundScanIntervalMilliseconds() {
+            return 900000L;
+        }
+
+        @Override
+        public int getNotificationIconId() {
+            return 0;
+        }
+
+        @Override
+        public String getNotificationTitle() {
+            return "title";
+        }
+
+        @Override
+        public String getNotificationText() {
+            return "text";
+        }
+
+        @Override
+        public PendingIntent getNotificationPendingIntent() {
+            return null;
+        }
+    }
+
+    @Test
+    public void optionalSettingsHaveDefaults() {
+        ScannerSettings settings = new MinimalSettings();
+
+        assertTrue(settings.getExpectedTags().isEmpty());
+        assertFalse(settings.coalesceBackgroundResults());
+        assertTrue(settings.getScanAllowlist().getAddresses().isEmpty());
+        assertFalse(settings.usePendingIntentBackgroundScan());
+        assertEquals(900000L, settings.getBackgroundScanIntervalMilliseconds());
+    }
+}
@@ -0,0 +1,63 @@
+package com.ruuvi.station.bluetooth.util
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class LibrarySchedulerTest {
+
+    @Test
+    fun thousandsOfCyclesRunOnOneThread() {
+        val threads = HashSet<Thread>()
+        repeat(CYCLES / 100) {
+            val done = CountDownLatch(100)
+            repeat(100) {
+                LibraryScheduler.schedule(0) {
+                    synchronized(threads) { threads.add(Thread.currentThread()) }
+                    done.countDown()
+                }
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS))
+        }
+
+        assertEquals(1, threads.size)
+        assertEquals(1, LibraryScheduler.threadCount)
+    }
+
+    @Test
+    fun cancelledTasksLeaveTheQueue() {
+        val pendingBefore = LibraryScheduler.pendingTasks
+        val ran = AtomicInteger()
+        // like a background scan window whose stop is replaced on every cycle
+        var stop: ScheduledTask? = null
+        repeat(CYCLES) {
+            stop?.cancel()
+            stop = LibraryScheduler.schedule(60000) { ran.incrementAndGet() }
+        }
+        assertEquals(pendingBefore + 1, LibraryScheduler.pendingTasks)
+
+        stop!!.cancel()
+        assertEquals(pendingBefore, LibraryScheduler.pendingTasks)
+        assertTrue(stop!!.isDone)
+        assertEquals(0, ran.get())
+        assertEquals(1, LibraryScheduler.threadCount)
+    }
+
+    @Test
+    fun failingTaskDoesNotStopLaterTasks() {
+        val done = CountDownLatch(1)
+        LibraryScheduler.schedule(0) { throw IllegalStateException("expected") }
+        val task = LibraryScheduler.schedule(10) { done.countDown() }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        assertEquals(1, LibraryScheduler.threadCount)
+        // isDone flips once the task returns
+        while (!task.isDone) Thread.sleep(1)
+    }
+
+    companion object {
+        private const val CYCLES = 5000
+    }
+}
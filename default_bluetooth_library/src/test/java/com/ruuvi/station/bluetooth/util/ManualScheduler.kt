@@ -0,0 +1,42 @@
+package com.ruuvi.station.bluetooth.util
+
+/**
+ * [TaskScheduler] and [Clock] whose time only moves in [advance], running due tasks on the
+ * calling thread in time order.
+ */
+class ManualScheduler(private var now: Long = 1000000L) : TaskScheduler, Clock {
+    private val tasks = mutableListOf<Task>()
+    private var sequence = 0L
+
+    val pendingTasks: Int
+        get() = tasks.size
+
+    override fun elapsedRealtime(): Long = now
+
+    override fun schedule(delayMillis: Long, task: () -> Unit): ScheduledTask =
+        Task(now + delayMillis, sequence++, task).also { tasks.add(it) }
+
+    fun advance(millis: Long) {
+        val end = now + millis
+        while (true) {
+            val next = tasks.filter { it.at <= end }.minWithOrNull(compareBy({ it.at }, { it.sequence })) ?: break
+            tasks.remove(next)
+            now = next.at
+            next.done = true
+            next.action()
+        }
+        now = end
+    }
+
+    private inner class Task(val at: Long, val sequence: Long, val action: () -> Unit) : ScheduledTask {
+        var done = false
+
+        override val isDone: Boolean
+            get() = done
+
+        override fun cancel() {
+            done = true
+            tasks.remove(this)
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.ruuvi.station.bluetooth.util
+
+import com.ruuvi.station.bluetooth.util.extensions.macToLong
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import timber.log.Timber
+import java.io.DataInputStream
+import java.io.FileInputStream
+
+class TraceLogTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Before
+    fun setUp() {
+        TraceLog.clear()
+    }
+
+    @After
+    fun tearDown() {
+        TraceEvent.values().forEach { TraceLog.setSampling(it, 1) }
+        TraceLog.enabled = true
+        TraceLog.clear()
+        Timber.uprootAll()
+    }
+
+    @Test
+    fun snapshotKeepsLastEventsInOrder() {
+        repeat(TraceLog.CAPACITY + 10) {
+            TraceLog.record(TraceEvent.SCAN_RESULT, ADDRESS, it.toLong())
+        }
+        val records = TraceLog.snapshot()
+
+        assertEquals(TraceLog.CAPACITY, records.size)
+        assertEquals(10L, records.first().value1)
+        assertEquals(TraceLog.CAPACITY + 9L, records.last().value1)
+        assertEquals(TraceLog.CAPACITY + 10L, TraceLog.recordedEvents)
+    }
+
+    @Test
+    fun samplingKeepsEveryNthEvent() {
+        TraceLog.setSampling(TraceEvent.SCAN_RESULT, 10)
+        TraceLog.setSampling(TraceEvent.GATT_NOTIFICATION, 0)
+        repeat(100) {
+            TraceLog.record(TraceEvent.SCAN_RESULT, ADDRESS, it.toLong())
+            TraceLog.record(TraceEvent.GATT_NOTIFICATION, ADDRESS, 20)
+            TraceLog.record(TraceEvent.MEASUREMENT_SKIPPED, ADDRESS, it.toLong())
+        }
+        val records = TraceLog.snapshot()
+
+        assertEquals(10, records.count { it.event == TraceEvent.SCAN_RESULT })
+        assertEquals(0, records.count { it.event == TraceEvent.GATT_NOTIFICATION })
+        assertEquals(100, records.count { it.event == TraceEvent.MEASUREMENT_SKIPPED })
+    }
+
+    @Test
+    fun disabledLogRecordsNothing() {
+        TraceLog.enabled = false
+        TraceLog.record(TraceEvent.SCAN_RESULT, ADDRESS)
+
+        assertTrue(TraceLog.snapshot().isEmpty())
+    }
+
+    @Test
+    fun dumpWritesEvents() {
+        TraceLog.record(TraceEvent.SCAN_RESULT, ADDRESS, -70, 123456789L)
+        TraceLog.record(TraceEvent.MEASUREMENT_SKIPPED, ADDRESS, 42)
+        val file = folder.newFile("trace.bin")
+
+        assertEquals(2, TraceLog.dump(file))
+        DataInputStream(FileInputStream(file)).use { input ->
+            assertEquals(1, input.readInt())
+            assertEquals(2, input.readInt())
+            input.readLong()
+            assertEquals(TraceEvent.SCAN_RESULT.ordinal, input.readByte().toInt())
+            assertEquals(ADDRESS, input.readLong())
+            assertEquals(-70L, input.readLong())
+            assertEquals(123456789L, input.readLong())
+        }
+    }
+
+    /**
+     * Compares recording the per-packet events with the Timber lines they replaced, formatted
+     * the same way, once with a tree planted as in debug builds and once without any tree.
+     */
+    @Test
+    fun recordingIsCheaperThanLogging() {
+        val id = ADDRESS_STRING
+        val notification = ByteArray(20) { it.toByte() }
+        var sequenceNumber = 0
+
+        val withoutTree = measure {
+            sequenceNumber++
+            Timber.d("Measurement skipped for $id sequenceNumber = $sequenceNumber")
+            Timber.d("$id notificationCallback nordicTxCharacteristic data = ${hex(notification)}")
+        }
+        val tree = DiscardingTree()
+        Timber.plant(tree)
+        val withTree = measure {
+            sequenceNumber++
+            Timber.d("Measurement skipped for $id sequenceNumber = $sequenceNumber")
+            Timber.d("$id notificationCallback nordicTxCharacteristic data = ${hex(notification)}")
+        }
+        Timber.uprootAll()
+        val trace = measure {
+            sequenceNumber++
+            TraceLog.record(TraceEvent.MEASUREMENT_SKIPPED, id.macToLong(), sequenceNumber.toLong())
+            TraceLog.record(TraceEvent.GATT_NOTIFICATION, id.macToLong(), notification.size.toLong(), notification[0].toLong())
+        }
+        val message = "Two events: Timber with tree ${"%.0f".format(withTree)} ns, without tree " +
+            "${"%.0f".format(withoutTree)} ns, TraceLog ${"%.0f".format(trace)} ns (${tree.characters} characters logged)"
+        assertTrue(message, trace < withTree)
+        assertTrue(message, trace < withoutTree)
+    }
+
+    /**
+     * @return median nanoseconds per call over [ROUNDS] rounds, after a warmup round
+     */
+    private fun measure(action: () -> Unit): Double {
+        val rounds = DoubleArray(ROUNDS)
+        for (round in -1 until ROUNDS) {
+            val start = System.nanoTime()
+            repeat(ITERATIONS) { action() }
+            if (round >= 0) rounds[round] = (System.nanoTime() - start).toDouble() / ITERATIONS
+        }
+        rounds.sort()
+        return rounds[ROUNDS / 2]
+    }
+
+    private fun hex(data: ByteArray) = data.joinToString("-") { "%02X".format(it) }
+
+    private class DiscardingTree : Timber.Tree() {
+        var characters = 0L
+
+        override fun log(priority: Int, tag: String?, message: String, t: Throwable?) {
+            characters += message.length
+        }
+    }
+
+    companion object {
+        private const val ADDRESS_STRING = "C3:5A:12:34:56:78"
+        private const val ADDRESS = 0xC35A12345678L
+        private const val ROUNDS = 5
+        private const val ITERATIONS = 100000
+    }
+}